@@ -24,6 +24,7 @@ uniform mat4 lightSpace_matrix;
 //point shadows
 uniform samplerCube shadowCubemap;
 uniform float shadowCubemapFar;
+uniform int shadowCubemapEnabled;	//0 if the light's cubemap hasn't been rendered yet
 
 vec3 sampleOffsetDirections[20] = vec3[]
 (
@@ -176,7 +177,7 @@ void main()
         }
 	}
 	
-	if(light.type == POINT_LIGHT || light.type == SPOT_LIGHT){
+	if((light.type == POINT_LIGHT || light.type == SPOT_LIGHT) && shadowCubemapEnabled != 0){
 		vec3 toFrag = lightDir * -1;
 		float currentDepth = distance; 
 		float sampledDepth = texture(shadowCubemap, toFrag).r * shadowCubemapFar;
@@ -1,8 +1,7 @@
 package entity;
 
-import java.util.ArrayList;
-
 import model.AssetManager;
+import model.CollisionHits;
 import model.Model;
 import util.Mat4;
 import util.Vec3;
@@ -20,6 +19,8 @@ public class Ball extends Entity {
 
 	private long modelInstanceID;
 
+	private CollisionHits collisionHits = new CollisionHits();
+
 	public Ball(Vec3 pos, Vec3 vel, float radius, int scene) {
 		super();
 
@@ -45,15 +46,15 @@ public class Ball extends Entity {
 		this.pos.addi(vel);
 
 		// resolve intersections by applying a force
-		ArrayList<Vec3[]> intersections = Model.sphereIntersect(this.scene, this.pos, this.radius);
+		this.collisionHits.clear();
+		Model.sphereIntersect(this.scene, this.pos, this.radius, this.collisionHits);
 		Vec3 closestPoint = null;
 		float minDist = -1f;
-		for (Vec3[] a : intersections) {
-			Vec3 v = a[0];
-			float dist = new Vec3(v, this.pos).length();
+		for (int i = 0; i < this.collisionHits.size(); i++) {
+			float dist = this.collisionHits.getDistance(i);
 			if (closestPoint == null || dist < minDist) {
 				minDist = dist;
-				closestPoint = v;
+				closestPoint = this.collisionHits.getPoint(i, new Vec3());
 			}
 		}
 
@@ -1,8 +1,7 @@
 package entity;
 
-import java.util.ArrayList;
-
 import model.AssetManager;
+import model.CollisionHits;
 import model.Model;
 import util.Mat4;
 import util.MathUtils;
@@ -21,6 +20,8 @@ public class Capsule extends Entity {
 
 	private boolean noUpdate; // if you just want a renderable capsule
 
+	private CollisionHits collisionHits = new CollisionHits();
+
 	public Capsule(Vec3 pos, Vec3 vel, float radius, float height, int scene) {
 		super();
 
@@ -95,9 +96,10 @@ public class Capsule extends Entity {
 		Vec3 capsule_topSphere = pos.add(new Vec3(0, height - radius, 0));
 
 		// resolve intersections by applying a force to each one
-		ArrayList<Vec3[]> intersections = Model.capsuleIntersect(scene, capsule_bottom, capsule_top, radius);
-		for (Vec3[] a : intersections) {
-			Vec3 v = a[0];
+		this.collisionHits.clear();
+		Model.capsuleIntersect(scene, capsule_bottom, capsule_top, radius, this.collisionHits);
+		for (int i = 0; i < this.collisionHits.size(); i++) {
+			Vec3 v = this.collisionHits.getPoint(i, new Vec3());
 			Vec3 capsule_c = MathUtils.point_lineSegmentProjectClamped(v, capsule_bottomSphere, capsule_topSphere); // closest point on capsule midline
 			Vec3 toCenter = new Vec3(v, capsule_c);
 
@@ -142,6 +142,15 @@ public class Framebuffer {
 		glBindFramebuffer(GL_FRAMEBUFFER, fbo);
 	}
 
+	//copies the given buffers, like GL_DEPTH_BUFFER_BIT | GL_COLOR_BUFFER_BIT, over to another framebuffer.
+	//depth can only be copied between framebuffers with the same depth format.
+	public void blitTo(Framebuffer other, int mask) {
+		glBindFramebuffer(GL_READ_FRAMEBUFFER, this.fbo);
+		glBindFramebuffer(GL_DRAW_FRAMEBUFFER, other.fbo);
+		glBlitFramebuffer(0, 0, this.width, this.height, 0, 0, other.width, other.height, mask, GL_NEAREST);
+		glBindFramebuffer(GL_FRAMEBUFFER, 0);
+	}
+
 	public void unbind() {
 		glBindFramebuffer(GL_FRAMEBUFFER, 0);
 	}
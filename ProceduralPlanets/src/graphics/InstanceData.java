@@ -0,0 +1,215 @@
+package graphics;
+
+import java.util.Arrays;
+
+import util.Mat4;
+import util.Vec3;
+
+public class InstanceData {
+
+	// cpu side copy of the per instance attributes of one scene of a VertexArray, packed exactly the way the instance
+	// buffers expect them. It doesn't touch opengl, VertexArray does the uploading.
+
+	// writing an instance only marks it dirty if something about it actually changed, and each attribute keeps track of
+	// the range of instances that changed since the last upload, so only that range has to be sent to the gpu. If one
+	// particle out of thousands moves, only its model matrix gets uploaded.
+
+	// the dirty range is one range per attribute, so two far apart instances changing also uploads everything in between.
+	// that's still one upload call, and it's never more than uploading the whole thing.
+
+	public static final int MODEL_MAT = 0;
+	public static final int COLOR_ID = 1;
+	public static final int MATERIAL = 2;
+	public static final int NUM_ATTRIBS = 3;
+
+	// floats per instance of each attribute
+	private static final int[] STRIDES = { 16, 3, 4 + 4 + 1 }; // mat4 in column major order, rgb, diffuse specular shininess
+
+	private int size, capacity;
+	private float[][] data;
+
+	// instances in [dirtyStart, dirtyEnd) of each attribute changed since the last markClean()
+	private int[] dirtyStart, dirtyEnd;
+
+	// capacity changed, so the gpu buffers have to be reallocated
+	private boolean resized;
+
+	public InstanceData() {
+		this(16);
+	}
+
+	public InstanceData(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.size = 0;
+		this.data = new float[NUM_ATTRIBS][];
+		this.dirtyStart = new int[NUM_ATTRIBS];
+		this.dirtyEnd = new int[NUM_ATTRIBS];
+		for (int a = 0; a < NUM_ATTRIBS; a++) {
+			this.data[a] = new float[this.capacity * STRIDES[a]];
+		}
+		this.markClean();
+		this.resized = true;
+	}
+
+	public static int getStride(int attrib) {
+		return STRIDES[attrib];
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	// the packed floats of an attribute, instance i starts at i * getStride(attrib)
+	public float[] getData(int attrib) {
+		return this.data[attrib];
+	}
+
+	// instances past the old size have to be written before the next upload. Whatever the gpu has there isn't
+	// necessarily what's in here anymore, so they get uploaded whether or not writing them changes anything.
+	public void setSize(int size) {
+		if (size > this.capacity) {
+			int capacity = this.capacity;
+			while (capacity < size) {
+				capacity *= 2;
+			}
+			for (int a = 0; a < NUM_ATTRIBS; a++) {
+				this.data[a] = Arrays.copyOf(this.data[a], capacity * STRIDES[a]);
+			}
+			this.capacity = capacity;
+			this.resized = true;
+		}
+		if (size > this.size) {
+			for (int a = 0; a < NUM_ATTRIBS; a++) {
+				this.dirtyStart[a] = Math.min(this.dirtyStart[a], this.size);
+				this.dirtyEnd[a] = Math.max(this.dirtyEnd[a], size);
+			}
+		}
+		this.size = size;
+	}
+
+	public void set(int i, Mat4 modelMat, Vec3 colorID, Material material) {
+		this.setModelMat(i, modelMat);
+		this.setColorID(i, colorID);
+		this.setMaterial(i, material);
+	}
+
+	public void setModelMat(int i, Mat4 m) {
+		float[] out = this.data[MODEL_MAT];
+		int o = i * STRIDES[MODEL_MAT];
+		boolean changed = false;
+		for (int col = 0; col < 4; col++) {
+			for (int row = 0; row < 4; row++) {
+				changed |= this.write(out, o + row + col * 4, m.mat[row][col]);
+			}
+		}
+		if (changed) {
+			this.markDirty(MODEL_MAT, i);
+		}
+	}
+
+	// m holds a model matrix in column major order starting at offset, like InstanceList keeps them
+	public void setModelMat(int i, float[] m, int offset) {
+		float[] out = this.data[MODEL_MAT];
+		int o = i * STRIDES[MODEL_MAT];
+		boolean changed = false;
+		for (int k = 0; k < 16; k++) {
+			changed |= this.write(out, o + k, m[offset + k]);
+		}
+		if (changed) {
+			this.markDirty(MODEL_MAT, i);
+		}
+	}
+
+	public void setColorID(int i, Vec3 colorID) {
+		this.setColorID(i, colorID.x, colorID.y, colorID.z);
+	}
+
+	public void setColorID(int i, float r, float g, float b) {
+		float[] out = this.data[COLOR_ID];
+		int o = i * STRIDES[COLOR_ID];
+		boolean changed = false;
+		changed |= this.write(out, o + 0, r);
+		changed |= this.write(out, o + 1, g);
+		changed |= this.write(out, o + 2, b);
+		if (changed) {
+			this.markDirty(COLOR_ID, i);
+		}
+	}
+
+	public void setMaterial(int i, Material material) {
+		float[] out = this.data[MATERIAL];
+		int o = i * STRIDES[MATERIAL];
+		boolean changed = false;
+		changed |= this.write(out, o + 0, material.getDiffuse().x);
+		changed |= this.write(out, o + 1, material.getDiffuse().y);
+		changed |= this.write(out, o + 2, material.getDiffuse().z);
+		changed |= this.write(out, o + 3, material.getDiffuse().w);
+		changed |= this.write(out, o + 4, material.getSpecular().x);
+		changed |= this.write(out, o + 5, material.getSpecular().y);
+		changed |= this.write(out, o + 6, material.getSpecular().z);
+		changed |= this.write(out, o + 7, material.getSpecular().w);
+		changed |= this.write(out, o + 8, material.getShininess());
+		if (changed) {
+			this.markDirty(MATERIAL, i);
+		}
+	}
+
+	// copies instance src over instance dst, for filling the hole a removed instance leaves
+	public void move(int src, int dst) {
+		for (int a = 0; a < NUM_ATTRIBS; a++) {
+			int stride = STRIDES[a];
+			float[] d = this.data[a];
+			boolean changed = false;
+			for (int k = 0; k < stride; k++) {
+				changed |= this.write(d, dst * stride + k, d[src * stride + k]);
+			}
+			if (changed) {
+				this.markDirty(a, dst);
+			}
+		}
+	}
+
+	private boolean write(float[] out, int index, float value) {
+		if (out[index] == value) {
+			return false;
+		}
+		out[index] = value;
+		return true;
+	}
+
+	private void markDirty(int attrib, int i) {
+		this.dirtyStart[attrib] = Math.min(this.dirtyStart[attrib], i);
+		this.dirtyEnd[attrib] = Math.max(this.dirtyEnd[attrib], i + 1);
+	}
+
+	public boolean isResized() {
+		return this.resized;
+	}
+
+	public boolean isDirty(int attrib) {
+		return this.getDirtyStart(attrib) < this.getDirtyEnd(attrib);
+	}
+
+	// the dirty range, clamped to the current size, since anything past it isn't drawn
+	public int getDirtyStart(int attrib) {
+		return this.dirtyStart[attrib];
+	}
+
+	public int getDirtyEnd(int attrib) {
+		return Math.min(this.dirtyEnd[attrib], this.size);
+	}
+
+	// call after uploading
+	public void markClean() {
+		this.resized = false;
+		for (int a = 0; a < NUM_ATTRIBS; a++) {
+			this.dirtyStart[a] = Integer.MAX_VALUE;
+			this.dirtyEnd[a] = 0;
+		}
+	}
+
+}
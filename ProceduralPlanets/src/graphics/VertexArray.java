@@ -6,7 +6,10 @@ import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.opengl.GL31.*;
 import static org.lwjgl.opengl.GL33.*;
 
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -41,9 +44,15 @@ public class VertexArray {
 
 	private int renderType;
 	private int vao, vbo, tbo, nbo, ntbo, nbtbo, ibo;
-	private HashMap<Integer, int[]> scenes; // numInstances, mat4, colorID, material
+	// instance buffers of each scene, one set per view. View ALL_INSTANCES holds every instance of the scene, the others
+	// hold subsets of them, like whatever survived culling for one pass, so each pass can keep its own without
+	// overwriting the others.
+	private HashMap<Integer, InstanceBuffers[]> scenes;
+	public static final int ALL_INSTANCES = 0;
 	private int triCount; // number of triangles in the mesh
 
+	private static FloatBuffer uploadBuffer; // staging for instance uploads, reused so they don't allocate
+
 	// don't edit these, these are just for future reference
 	private float[] vertices, normals, tangents, bitangents, uvs;
 	private int[] indices;
@@ -73,7 +82,7 @@ public class VertexArray {
 
 		this.renderType = renderType;
 		this.triCount = indices.length;
-		this.scenes = new HashMap<Integer, int[]>();
+		this.scenes = new HashMap<Integer, InstanceBuffers[]>();
 
 		vao = glGenVertexArrays();
 		glBindVertexArray(vao);
@@ -123,52 +132,103 @@ public class VertexArray {
 		this.init(v.getVertices(), v.getNormals(), v.getTangents(), v.getBitangents(), v.getUVs(), v.getIndices(), v.getRenderType());
 	}
 
-	// seperate methods for updating materials and updating model mats??
-	// but updating instances is the way that we can get rid of them...
-	// there has to be one method for updating both, no other way around it.
+	//replaces the index buffer, the vertices stay the same
+	public void setIndices(int[] indices) {
+		this.indices = indices;
+		this.triCount = indices.length;
+
+		glBindVertexArray(vao);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ibo);
+		glBufferData(GL_ELEMENT_ARRAY_BUFFER, BufferUtils.createIntBuffer(indices), GL_STATIC_DRAW);
+
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		glBindVertexArray(0);
+	}
 
-	// orr, we can have a seperate method for removing a model instance.
-	// but then, we'd have to modify the entire buffer data anyways.
+	// writes the instances into the cpu side copy of the scene's instance buffers, and uploads whatever changed.
 	public void updateInstances(HashMap<Long, Mat4> mat4Map, HashMap<Long, Material> materialMap, int whichScene) {
-		int numInstances = mat4Map.size();
-		Mat4[] modelMats = new Mat4[numInstances];
-		Vec3[] colorIDs = new Vec3[numInstances];
-		Material[] materials = new Material[numInstances];
+		InstanceData data = this.getInstanceData(whichScene);
+		data.setSize(mat4Map.size());
 		int i = 0;
 		for (long ID : mat4Map.keySet()) {
-			colorIDs[i] = Model.convertIDToRGB(ID);
-			modelMats[i] = mat4Map.get(ID);
-			materials[i] = materialMap.get(ID);
+			data.set(i, mat4Map.get(ID), Model.convertIDToRGB(ID), materialMap.get(ID));
 			i++;
 		}
+		this.uploadInstances(whichScene);
+	}
+
+	// the cpu side copy of the scene's instance buffers, write into it then call uploadInstances()
+	public InstanceData getInstanceData(int whichScene) {
+		return this.getInstanceData(whichScene, ALL_INSTANCES);
+	}
 
-		if (scenes.get(whichScene) == null) {
+	public InstanceData getInstanceData(int whichScene, int view) {
+		return this.getInstanceBuffers(whichScene, view).data;
+	}
+
+	private InstanceBuffers getInstanceBuffers(int whichScene, int view) {
+		InstanceBuffers[] views = this.scenes.get(whichScene);
+		if (views == null || views.length <= view) {
+			views = views == null ? new InstanceBuffers[view + 1] : Arrays.copyOf(views, view + 1);
+			this.scenes.put(whichScene, views);
+		}
+		if (views[view] == null) {
 			// instanced model buffer doesn't exist yet
-			scenes.put(whichScene, new int[] { numInstances, glGenBuffers(), glGenBuffers(), glGenBuffers() });
+			views[view] = new InstanceBuffers();
+		}
+		return views[view];
+	}
+
+	public void uploadInstances(int whichScene) {
+		this.uploadInstances(whichScene, ALL_INSTANCES);
+	}
+
+	// uploads the instances that changed since the last upload. If the buffers had to grow, they're reallocated, and
+	// since glBufferData() gives the buffer new storage, draws still reading the old storage don't stall the upload.
+	public void uploadInstances(int whichScene, int view) {
+		InstanceBuffers b = this.getInstanceBuffers(whichScene, view);
+		InstanceData data = b.data;
+		for (int a = 0; a < InstanceData.NUM_ATTRIBS; a++) {
+			int stride = InstanceData.getStride(a);
+			glBindBuffer(GL_ARRAY_BUFFER, b.buffers[a]);
+			if (data.isResized()) {
+				glBufferData(GL_ARRAY_BUFFER, (long) data.getCapacity() * stride * 4, GL_DYNAMIC_DRAW);
+				uploadRange(data.getData(a), 0, data.size() * stride);
+			}
+			else if (data.isDirty(a)) {
+				uploadRange(data.getData(a), data.getDirtyStart(a) * stride, (data.getDirtyEnd(a) - data.getDirtyStart(a)) * stride);
+			}
 		}
-		int[] scene = scenes.get(whichScene);
-		scene[0] = numInstances;
-		int modelMatBuffer = scene[1];
-		int colorIDBuffer = scene[2];
-		int materialBuffer = scene[3];
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		data.markClean();
+	}
 
-		glBindBuffer(GL_ARRAY_BUFFER, modelMatBuffer);
-		glBufferData(GL_ARRAY_BUFFER, BufferUtils.createFloatBuffer(modelMats), GL_DYNAMIC_DRAW); // TODO switch to glBufferSubData
-		glBindBuffer(GL_ARRAY_BUFFER, colorIDBuffer);
-		glBufferData(GL_ARRAY_BUFFER, BufferUtils.createFloatBuffer(colorIDs), GL_DYNAMIC_DRAW); // TODO switch to glBufferSubData
-		glBindBuffer(GL_ARRAY_BUFFER, materialBuffer);
-		glBufferData(GL_ARRAY_BUFFER, BufferUtils.createFloatBuffer(materials), GL_DYNAMIC_DRAW); // TODO switch to glBufferSubData
+	// uploads floats [offset, offset + length) of the array to the same place in the buffer bound to GL_ARRAY_BUFFER
+	private static void uploadRange(float[] array, int offset, int length) {
+		if (length == 0) {
+			return;
+		}
+		if (uploadBuffer == null || uploadBuffer.capacity() < length) {
+			uploadBuffer = BufferUtils.createFloatBuffer(new float[length]);
+		}
+		((Buffer) uploadBuffer).clear();
+		((Buffer) uploadBuffer.put(array, offset, length)).flip();
+		glBufferSubData(GL_ARRAY_BUFFER, (long) offset * 4, uploadBuffer);
 	}
 
 	public void bindScene(int whichScene) {
-		if (scenes.get(whichScene) == null) {
+		this.bindScene(whichScene, ALL_INSTANCES);
+	}
+
+	public void bindScene(int whichScene, int view) {
+		InstanceBuffers[] views = this.scenes.get(whichScene);
+		if (views == null || views.length <= view || views[view] == null) {
 			System.err.println("SCREEN " + whichScene + " MODEL NOT INSTANTIATED");
 			return;
 		}
-		int[] scene = scenes.get(whichScene);
-		int modelMatBuffer = scene[1];
-		int colorIDBuffer = scene[2];
-		int materialBuffer = scene[3];
+		int modelMatBuffer = views[view].buffers[InstanceData.MODEL_MAT];
+		int colorIDBuffer = views[view].buffers[InstanceData.COLOR_ID];
+		int materialBuffer = views[view].buffers[InstanceData.MATERIAL];
 
 		// TODO figure out whether or not we need to configure the pointer gaps and
 		// offsets every time we want to bind a new buffer
@@ -470,11 +530,16 @@ public class VertexArray {
 	}
 
 	public void render(int whichScene) {
-		if (this.scenes.get(whichScene) == null) { // TODO fix this
+		this.render(whichScene, ALL_INSTANCES);
+	}
+
+	public void render(int whichScene, int view) {
+		InstanceBuffers[] views = this.scenes.get(whichScene);
+		if (views == null || views.length <= view || views[view] == null) { // TODO fix this
 			return;
 		}
-		int numInstances = this.scenes.get(whichScene)[0];
-		bindScene(whichScene);
+		int numInstances = views[view].data.size();
+		bindScene(whichScene, view);
 		bind();
 		drawInstanced(numInstances);
 		unbind();
@@ -492,8 +557,17 @@ public class VertexArray {
 	}
 
 	private void killInstanceBuffers() {
-		for (int[] i : this.scenes.values()) {
-			glDeleteBuffers(new int[] { i[1], i[2], i[3] });
+		for (InstanceBuffers[] views : this.scenes.values()) {
+			for (InstanceBuffers b : views) {
+				if (b != null) {
+					glDeleteBuffers(b.buffers);
+				}
+			}
 		}
 	}
+
+	private static class InstanceBuffers {
+		private InstanceData data = new InstanceData();
+		private int[] buffers = { glGenBuffers(), glGenBuffers(), glGenBuffers() }; // indexed by InstanceData attribute
+	}
 }
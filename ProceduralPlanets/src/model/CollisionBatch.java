@@ -0,0 +1,171 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import util.Vec3;
+
+public class CollisionBatch {
+
+	// a list of independent collision queries, that are evaluated together against a CollisionSnapshot.
+	// the queries are spread across the fork join pool, so things like every pellet of a shotgun blast, or every
+	// bullet a server has to validate in one tick, don't have to be traced one after another.
+
+	// every query gets its own CollisionHits, so the results come back per query, in the order they were added.
+	// clear() keeps the buffers around, so one batch can be reused every tick.
+
+	public static final int RAY = 0;
+	public static final int RAY_CLOSEST = 1; // only the closest hit along the ray, meant for bullets
+	public static final int SPHERE = 2;
+	public static final int CAPSULE = 3;
+
+	// batches smaller than this aren't worth handing to the pool, and bigger ones are split until each task has this many queries
+	private static final int GRAIN = 4;
+
+	private static final int FLOATS_PER_QUERY = 7; // ray : origin, dir. sphere : origin, radius. capsule : bottom, top, radius
+
+	private int size;
+	private int[] types;
+	private float[] params;
+	private ArrayList<CollisionHits> hits = new ArrayList<>();
+
+	public CollisionBatch() {
+		this(8);
+	}
+
+	public CollisionBatch(int capacity) {
+		capacity = Math.max(1, capacity);
+		this.types = new int[capacity];
+		this.params = new float[capacity * FLOATS_PER_QUERY];
+		this.size = 0;
+	}
+
+	public void clear() {
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// each of these adds a query, and returns its index
+	public int addRay(Vec3 ray_origin, Vec3 ray_dir) {
+		return this.add(RAY, ray_origin, ray_dir, 0);
+	}
+
+	public int addRayClosest(Vec3 ray_origin, Vec3 ray_dir) {
+		return this.add(RAY_CLOSEST, ray_origin, ray_dir, 0);
+	}
+
+	public int addSphere(Vec3 sphere_origin, float sphere_radius) {
+		return this.add(SPHERE, sphere_origin, sphere_origin, sphere_radius);
+	}
+
+	public int addCapsule(Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius) {
+		return this.add(CAPSULE, capsule_bottom, capsule_top, capsule_radius);
+	}
+
+	private int add(int type, Vec3 a, Vec3 b, float radius) {
+		if (this.size == this.types.length) {
+			int capacity = this.types.length * 2;
+			this.types = Arrays.copyOf(this.types, capacity);
+			this.params = Arrays.copyOf(this.params, capacity * FLOATS_PER_QUERY);
+		}
+		int i = this.size++;
+		int o = i * FLOATS_PER_QUERY;
+		this.types[i] = type;
+		this.params[o + 0] = a.x;
+		this.params[o + 1] = a.y;
+		this.params[o + 2] = a.z;
+		this.params[o + 3] = b.x;
+		this.params[o + 4] = b.y;
+		this.params[o + 5] = b.z;
+		this.params[o + 6] = radius;
+		if (this.hits.size() == i) {
+			this.hits.add(new CollisionHits());
+		}
+		return i;
+	}
+
+	public int getType(int query) {
+		return this.types[query];
+	}
+
+	// the hits of one query from the last run. For RAY_CLOSEST queries, this holds at most one hit
+	public CollisionHits getHits(int query) {
+		return this.hits.get(query);
+	}
+
+	// evaluates every query against the snapshot, and blocks until they're all done.
+	public void run(CollisionSnapshot snapshot) {
+		if (this.size <= GRAIN) {
+			this.run(snapshot, 0, this.size);
+			return;
+		}
+		ForkJoinPool.commonPool().invoke(new QueryTask(this, snapshot, 0, this.size));
+	}
+
+	// queries [start, end) only touch their own hits, so ranges can run on different threads
+	private void run(CollisionSnapshot snapshot, int start, int end) {
+		Vec3 a = new Vec3(0);
+		Vec3 b = new Vec3(0);
+		for (int i = start; i < end; i++) {
+			int o = i * FLOATS_PER_QUERY;
+			a.x = this.params[o + 0];
+			a.y = this.params[o + 1];
+			a.z = this.params[o + 2];
+			b.x = this.params[o + 3];
+			b.y = this.params[o + 4];
+			b.z = this.params[o + 5];
+			float radius = this.params[o + 6];
+			CollisionHits h = this.hits.get(i);
+			h.clear();
+			switch (this.types[i]) {
+			case RAY:
+				snapshot.rayIntersect(a, b, h);
+				break;
+
+			case RAY_CLOSEST:
+				snapshot.rayIntersectClosest(a, b, h);
+				break;
+
+			case SPHERE:
+				snapshot.sphereIntersect(a, radius, h);
+				break;
+
+			case CAPSULE:
+				snapshot.capsuleIntersect(a, b, radius, h);
+				break;
+			}
+		}
+	}
+
+	//runs the queries in [start, end), splitting the range in half until it's small enough
+	private static class QueryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private CollisionBatch batch;
+		private CollisionSnapshot snapshot;
+		private int start, end;
+
+		public QueryTask(CollisionBatch batch, CollisionSnapshot snapshot, int start, int end) {
+			this.batch = batch;
+			this.snapshot = snapshot;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start > GRAIN) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new QueryTask(this.batch, this.snapshot, this.start, mid), new QueryTask(this.batch, this.snapshot, mid, this.end));
+				return;
+			}
+			this.batch.run(this.snapshot, this.start, this.end);
+		}
+	}
+
+}
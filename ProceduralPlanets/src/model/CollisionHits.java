@@ -0,0 +1,165 @@
+package model;
+
+import java.util.Arrays;
+
+import util.IntList;
+import util.Mat4;
+import util.Vec3;
+
+public class CollisionHits {
+
+	// caller owned buffer that collision queries write their hits into, instead of returning
+	// a new ArrayList<Vec3[]> every time. Everything is stored in primitive arrays, and clear()
+	// keeps them around, so one buffer can be reused every tick without producing garbage.
+
+	// the buffer also carries the scratch space the queries need, so a buffer should only be
+	// used by one thread at a time.
+
+	// for each hit, we store
+	// point : world space point of intersection
+	// normal : world space normal of the triangle that was hit
+	// triangle : index of the triangle within its collision mesh
+	// mesh : index of the collision mesh within its model
+	// instanceID : model instance that was hit, 0 if the query was made directly against a collision mesh
+	// distance : for rays, how far along the ray the hit is. For spheres and capsules, how far the hit is from the center,
+	// or from the segment between the centers of the end spheres.
+
+	private int size;
+
+	private float[] points;
+	private float[] normals;
+	private int[] triangles;
+	private int[] meshes;
+	private long[] instanceIDs;
+	private float[] distances;
+
+	// scratch space for the queries
+	IntList candidates = new IntList();
+	IntList proxies = new IntList();
+	IntList treeStack = new IntList();
+	int[] bvhStack = new int[TriangleBVH.getTraversalStackSize()];
+	Mat4 transform = new Mat4();
+	Mat4 invTransform = new Mat4();
+	float[] triangle = new float[9];
+	CollisionTriangles worldTriangle = new CollisionTriangles(1);
+	float[] closest = new float[3];
+	float[] normal = new float[3];
+
+	public CollisionHits() {
+		this(8);
+	}
+
+	public CollisionHits(int capacity) {
+		capacity = Math.max(1, capacity);
+		this.points = new float[capacity * 3];
+		this.normals = new float[capacity * 3];
+		this.triangles = new int[capacity];
+		this.meshes = new int[capacity];
+		this.instanceIDs = new long[capacity];
+		this.distances = new float[capacity];
+		this.size = 0;
+	}
+
+	public void clear() {
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// the writers are public for colliders outside of this package, like planet.PlanetCollider.
+
+	// appends a hit, and returns its index
+	public int add(float px, float py, float pz, float nx, float ny, float nz, int triangle, float distance) {
+		if (this.size == this.triangles.length) {
+			int capacity = this.triangles.length * 2;
+			this.points = Arrays.copyOf(this.points, capacity * 3);
+			this.normals = Arrays.copyOf(this.normals, capacity * 3);
+			this.triangles = Arrays.copyOf(this.triangles, capacity);
+			this.meshes = Arrays.copyOf(this.meshes, capacity);
+			this.instanceIDs = Arrays.copyOf(this.instanceIDs, capacity);
+			this.distances = Arrays.copyOf(this.distances, capacity);
+		}
+		int i = this.size++;
+		this.set(i, px, py, pz, nx, ny, nz, triangle, distance);
+		return i;
+	}
+
+	// overwrites a hit, the mesh and instance ID are reset.
+	public void set(int i, float px, float py, float pz, float nx, float ny, float nz, int triangle, float distance) {
+		this.points[i * 3 + 0] = px;
+		this.points[i * 3 + 1] = py;
+		this.points[i * 3 + 2] = pz;
+		this.normals[i * 3 + 0] = nx;
+		this.normals[i * 3 + 1] = ny;
+		this.normals[i * 3 + 2] = nz;
+		this.triangles[i] = triangle;
+		this.meshes[i] = 0;
+		this.instanceIDs[i] = 0;
+		this.distances[i] = distance;
+	}
+
+	// tags hits [start, size) with the mesh and instance they came from
+	public void setSource(int start, int mesh, long instanceID) {
+		for (int i = start; i < this.size; i++) {
+			this.meshes[i] = mesh;
+			this.instanceIDs[i] = instanceID;
+		}
+	}
+
+	public float getPointX(int i) {
+		return this.points[i * 3 + 0];
+	}
+
+	public float getPointY(int i) {
+		return this.points[i * 3 + 1];
+	}
+
+	public float getPointZ(int i) {
+		return this.points[i * 3 + 2];
+	}
+
+	public Vec3 getPoint(int i, Vec3 out) {
+		out.x = this.points[i * 3 + 0];
+		out.y = this.points[i * 3 + 1];
+		out.z = this.points[i * 3 + 2];
+		return out;
+	}
+
+	public float getNormalX(int i) {
+		return this.normals[i * 3 + 0];
+	}
+
+	public float getNormalY(int i) {
+		return this.normals[i * 3 + 1];
+	}
+
+	public float getNormalZ(int i) {
+		return this.normals[i * 3 + 2];
+	}
+
+	public Vec3 getNormal(int i, Vec3 out) {
+		out.x = this.normals[i * 3 + 0];
+		out.y = this.normals[i * 3 + 1];
+		out.z = this.normals[i * 3 + 2];
+		return out;
+	}
+
+	public int getTriangle(int i) {
+		return this.triangles[i];
+	}
+
+	public int getMesh(int i) {
+		return this.meshes[i];
+	}
+
+	public long getInstanceID(int i) {
+		return this.instanceIDs[i];
+	}
+
+	public float getDistance(int i) {
+		return this.distances[i];
+	}
+
+}
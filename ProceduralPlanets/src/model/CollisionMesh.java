@@ -3,8 +3,8 @@ package model;
 import java.util.ArrayList;
 
 import graphics.VertexArray;
+import util.IntList;
 import util.Mat4;
-import util.MathUtils;
 import util.Vec3;
 
 public class CollisionMesh {
@@ -14,92 +14,192 @@ public class CollisionMesh {
 	// to get the collision mesh of a model instance, should access it statically
 	// through Model
 
-	private Vec3[] vertices;
+	// queries first walk the bvh to find the triangles near the probe, and only run the
+	// narrowphase on those.
+
+	// both the bvh and the narrowphase work in model space. Instead of transforming the mesh into world space,
+	// the probe is transformed into model space with the inverse of the instance transform, and only the hits
+	// get mapped back out to world space.
+
+	// rays survive any affine transform. Spheres and capsules only stay spheres and capsules under a similarity
+	// transform (rotation, uniform scale, translation). Under non-uniform scale they'd become ellipsoids, so for
+	// those we fall back to transforming the candidate triangles into world space instead.
+
+	// padding added to the probe bounds, so float error from the inverse transform can't cull a real hit
+	private static final float BOUNDS_EPSILON = 0.0001f;
+
+	// how far the axes of a transform can differ in length before we stop treating the scale as uniform
+	private static final float UNIFORM_SCALE_EPSILON = 0.0001f;
+
+	// buffer for the list queries, one per thread
+	private static final ThreadLocal<CollisionHits> listHits = new ThreadLocal<CollisionHits>() {
+		@Override
+		protected CollisionHits initialValue() {
+			return new CollisionHits();
+		}
+	};
+
+	private float[] vertices;
 	private int[] indices;
 
+	private TriangleBVH bvh;
+
+	// precomputed narrowphase data of every triangle, in model space
+	private CollisionTriangles triangles;
+
+	// model space bounds of all the vertices
+	private Vec3 boundsMin, boundsMax;
+
 	public CollisionMesh(float[] vertices, int[] indices) {
-		this.vertices = new Vec3[vertices.length / 3];
-		for (int i = 0; i < vertices.length; i += 3) {
-			this.vertices[i / 3] = new Vec3(vertices[i + 0], vertices[i + 1], vertices[i + 2]);
-		}
+		this.vertices = vertices;
 		this.indices = indices;
+		this.init();
 	}
 
 	public CollisionMesh(VertexArray vao) {
 		float[] vertices = vao.getVertices();
 		int[] indices = vao.getIndices();
 
-		this.vertices = new Vec3[vertices.length / 3];
+		this.vertices = new float[vertices.length];
 		this.indices = new int[indices.length];
-		for (int i = 0; i < vertices.length; i += 3) {
-			this.vertices[i / 3] = new Vec3(vertices[i + 0], vertices[i + 1], vertices[i + 2]);
+		for (int i = 0; i < vertices.length; i++) {
+			this.vertices[i] = vertices[i];
 		}
 		for (int i = 0; i < indices.length; i++) {
 			this.indices[i] = indices[i];
 		}
+		this.init();
 	}
 
-	private Vec3[] transformVertices(Mat4 transform) {
-		Vec3[] vTransformed = new Vec3[vertices.length];
-		for (int i = 0; i < vertices.length; i++) {
-			vTransformed[i] = transform.mul(vertices[i], 1f);
+	private void init() {
+		this.bvh = new TriangleBVH(this.vertices, this.indices);
+		this.triangles = new CollisionTriangles(this.vertices, this.indices);
+
+		this.boundsMin = new Vec3(Float.MAX_VALUE);
+		this.boundsMax = new Vec3(-Float.MAX_VALUE);
+		for (int i = 0; i < this.vertices.length; i += 3) {
+			this.boundsMin.x = Math.min(this.boundsMin.x, this.vertices[i + 0]);
+			this.boundsMin.y = Math.min(this.boundsMin.y, this.vertices[i + 1]);
+			this.boundsMin.z = Math.min(this.boundsMin.z, this.vertices[i + 2]);
+			this.boundsMax.x = Math.max(this.boundsMax.x, this.vertices[i + 0]);
+			this.boundsMax.y = Math.max(this.boundsMax.y, this.vertices[i + 1]);
+			this.boundsMax.z = Math.max(this.boundsMax.z, this.vertices[i + 2]);
 		}
-		return vTransformed;
 	}
 
-	public ArrayList<Vec3[]> rayIntersect(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform) {
-		ArrayList<Vec3[]> result = new ArrayList<>();
+	// if the mesh is empty, min will be greater than max
+	public Vec3 getBoundsMin() {
+		return this.boundsMin;
+	}
 
-		Vec3[] vTransformed = this.transformVertices(transform);
+	public Vec3 getBoundsMax() {
+		return this.boundsMax;
+	}
 
-		for (int t = 0; t < this.indices.length; t += 3) {
-			Vec3 t0 = new Vec3(vTransformed[indices[t + 0]]);
-			Vec3 t1 = new Vec3(vTransformed[indices[t + 1]]);
-			Vec3 t2 = new Vec3(vTransformed[indices[t + 2]]);
+	/**
+	 * If the transform is a similarity transform, returns the amount it scales by, else returns -1.
+	 * 
+	 * @param transform
+	 * @return
+	 */
+	private static float getUniformScale(Mat4 transform) {
+		float[][] m = transform.mat;
 
-			Vec3 intersect = MathUtils.ray_triangleIntersect(ray_origin, ray_dir, t0, t1, t2);
-			if (intersect != null) {
-				Vec3 normal = MathUtils.computeTriangleNormal(t0, t1, t2);
-				result.add(new Vec3[] { intersect, normal, t0, t1, t2 });
-			}
+		// axes have to be the same length, and perpendicular to each other
+		float sx = (float) Math.sqrt(m[0][0] * m[0][0] + m[1][0] * m[1][0] + m[2][0] * m[2][0]);
+		float sy = (float) Math.sqrt(m[0][1] * m[0][1] + m[1][1] * m[1][1] + m[2][1] * m[2][1]);
+		float sz = (float) Math.sqrt(m[0][2] * m[0][2] + m[1][2] * m[1][2] + m[2][2] * m[2][2]);
+		if (sx == 0) {
+			return -1;
 		}
-		return result;
+		float tolerance = UNIFORM_SCALE_EPSILON * sx;
+		if (Math.abs(sx - sy) > tolerance || Math.abs(sx - sz) > tolerance) {
+			return -1;
+		}
+		float xy = m[0][0] * m[0][1] + m[1][0] * m[1][1] + m[2][0] * m[2][1];
+		float yz = m[0][1] * m[0][2] + m[1][1] * m[1][2] + m[2][1] * m[2][2];
+		float zx = m[0][2] * m[0][0] + m[1][2] * m[1][0] + m[2][2] * m[2][0];
+		float dotTolerance = UNIFORM_SCALE_EPSILON * sx * sx;
+		if (Math.abs(xy) > dotTolerance || Math.abs(yz) > dotTolerance || Math.abs(zx) > dotTolerance) {
+			return -1;
+		}
+		return sx;
 	}
 
-	public ArrayList<Vec3[]> sphereIntersect(Vec3 sphere_origin, float sphere_radius, Mat4 transform) {
-		ArrayList<Vec3[]> result = new ArrayList<>();
-
-		Vec3[] vTransformed = this.transformVertices(transform);
+	// collects every triangle, used when the transform can't be inverted
+	private void collectAllTriangles(IntList out) {
+		for (int t = 0; t < this.indices.length / 3; t++) {
+			out.add(t);
+		}
+	}
 
-		for (int t = 0; t < this.indices.length; t += 3) {
-			Vec3 t0 = new Vec3(vTransformed[indices[t + 0]]);
-			Vec3 t1 = new Vec3(vTransformed[indices[t + 1]]);
-			Vec3 t2 = new Vec3(vTransformed[indices[t + 2]]);
+	// takes a world space axis aligned box, and collects every triangle whose model space bounds overlap it.
+	private void collectBoxCandidates(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Mat4 invTransform, IntList out, int[] stack) {
+		if (invTransform == null) {
+			this.collectAllTriangles(out);
+			return;
+		}
 
-			Vec3 intersect = MathUtils.sphere_triangleIntersect(sphere_origin, sphere_radius, t0, t1, t2);
-			if (intersect != null) {
-				Vec3 normal = MathUtils.computeTriangleNormal(t0, t1, t2);
-				result.add(new Vec3[] { intersect, normal, t0, t1, t2 });
-			}
+		// bound the 8 corners of the box in model space
+		float[][] m = invTransform.mat;
+		float bMinX = Float.MAX_VALUE, bMinY = Float.MAX_VALUE, bMinZ = Float.MAX_VALUE;
+		float bMaxX = -Float.MAX_VALUE, bMaxY = -Float.MAX_VALUE, bMaxZ = -Float.MAX_VALUE;
+		for (int i = 0; i < 8; i++) {
+			float x = (i & 1) == 0 ? minX : maxX;
+			float y = (i & 2) == 0 ? minY : maxY;
+			float z = (i & 4) == 0 ? minZ : maxZ;
+			float cx = m[0][0] * x + m[0][1] * y + m[0][2] * z + m[0][3];
+			float cy = m[1][0] * x + m[1][1] * y + m[1][2] * z + m[1][3];
+			float cz = m[2][0] * x + m[2][1] * y + m[2][2] * z + m[2][3];
+			bMinX = Math.min(bMinX, cx);
+			bMinY = Math.min(bMinY, cy);
+			bMinZ = Math.min(bMinZ, cz);
+			bMaxX = Math.max(bMaxX, cx);
+			bMaxY = Math.max(bMaxY, cy);
+			bMaxZ = Math.max(bMaxZ, cz);
 		}
-		return result;
+		this.collectLocalBoxCandidates(bMinX, bMinY, bMinZ, bMaxX, bMaxY, bMaxZ, out, stack);
 	}
 
-	public ArrayList<Vec3[]> capsuleIntersect(Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, Mat4 transform) {
-		ArrayList<Vec3[]> result = new ArrayList<>();
+	// takes a model space axis aligned box, and collects every triangle whose bounds overlap it.
+	private void collectLocalBoxCandidates(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out, int[] stack) {
+		float pad = BOUNDS_EPSILON * Math.max(1f, Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)));
+		this.bvh.queryBox(minX - pad, minY - pad, minZ - pad, maxX + pad, maxY + pad, maxZ + pad, out, stack);
+	}
 
-		Vec3[] vTransformed = this.transformVertices(transform);
+	// the list queries below are built on the CollisionHits queries further down, with a buffer per thread, so they share
+	// the precomputed triangles and the scratch space. Each result is { intersect, normal, t0, t1, t2 }, in world space.
 
-		for (int t = 0; t < this.indices.length; t += 3) {
-			Vec3 t0 = new Vec3(vTransformed[indices[t + 0]]);
-			Vec3 t1 = new Vec3(vTransformed[indices[t + 1]]);
-			Vec3 t2 = new Vec3(vTransformed[indices[t + 2]]);
+	public ArrayList<Vec3[]> rayIntersect(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform) {
+		CollisionHits hits = listHits.get();
+		hits.clear();
+		this.rayIntersect(ray_origin, ray_dir, transform, hits);
+		return this.makeResults(hits, transform);
+	}
 
-			Vec3 intersect = MathUtils.capsule_triangleIntersect(capsule_bottom, capsule_top, capsule_radius, t0, t1, t2);
-			if (intersect != null) {
-				Vec3 normal = MathUtils.computeTriangleNormal(t0, t1, t2);
-				result.add(new Vec3[] { intersect, normal, t0, t1, t2 });
-			}
+	public ArrayList<Vec3[]> sphereIntersect(Vec3 sphere_origin, float sphere_radius, Mat4 transform) {
+		CollisionHits hits = listHits.get();
+		hits.clear();
+		this.sphereIntersect(sphere_origin, sphere_radius, transform, hits);
+		return this.makeResults(hits, transform);
+	}
+
+	public ArrayList<Vec3[]> capsuleIntersect(Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, Mat4 transform) {
+		CollisionHits hits = listHits.get();
+		hits.clear();
+		this.capsuleIntersect(capsule_bottom, capsule_top, capsule_radius, transform, hits);
+		return this.makeResults(hits, transform);
+	}
+
+	// builds the list results out of the hits of this mesh
+	private ArrayList<Vec3[]> makeResults(CollisionHits hits, Mat4 transform) {
+		ArrayList<Vec3[]> result = new ArrayList<>(hits.size());
+		float[] w = hits.triangle;
+		for (int i = 0; i < hits.size(); i++) {
+			this.loadWorldTriangle(hits.getTriangle(i), transform, hits.worldTriangle, w);
+			Vec3 intersect = hits.getPoint(i, new Vec3());
+			Vec3 normal = hits.getNormal(i, new Vec3());
+			result.add(new Vec3[] { intersect, normal, new Vec3(w[0], w[1], w[2]), new Vec3(w[3], w[4], w[5]), new Vec3(w[6], w[7], w[8]) });
 		}
 		return result;
 	}
@@ -120,4 +220,271 @@ public class CollisionMesh {
 		return ans;
 	}
 
+	// the queries below write into a caller owned CollisionHits buffer instead of building a list of Vec3[]. They work
+	// directly on the float arrays, and take all their scratch space from the buffer, so they don't allocate.
+
+	/**
+	 * Appends every hit along the ray to hits, and returns how many were added.
+	 * 
+	 * @param ray_origin
+	 * @param ray_dir
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public int rayIntersect(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform, CollisionHits hits) {
+		return this.rayIntersect(ray_origin, ray_dir, transform, hits, false);
+	}
+
+	/**
+	 * Keeps only the closest hit along the ray in hits. If hits already holds a hit, say from another mesh, it's only
+	 * replaced if this mesh has a closer one, so hits should either be empty or hold one hit from a previous closest query.
+	 * Returns true if hits was changed.
+	 * 
+	 * @param ray_origin
+	 * @param ray_dir
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public boolean rayIntersectClosest(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform, CollisionHits hits) {
+		return this.rayIntersect(ray_origin, ray_dir, transform, hits, true) != 0;
+	}
+
+	private int rayIntersect(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform, CollisionHits hits, boolean closest) {
+		float dirLength = ray_dir.length();
+		if (dirLength == 0) {
+			return 0;
+		}
+
+		// t is measured in lengths of ray_dir in both spaces
+		Mat4 inv = hits.invTransform;
+		boolean local = transform.inverse(inv);
+		float ox = ray_origin.x, oy = ray_origin.y, oz = ray_origin.z;
+		float dx = ray_dir.x, dy = ray_dir.y, dz = ray_dir.z;
+		if (local) {
+			float[][] m = inv.mat;
+			ox = m[0][0] * ray_origin.x + m[0][1] * ray_origin.y + m[0][2] * ray_origin.z + m[0][3];
+			oy = m[1][0] * ray_origin.x + m[1][1] * ray_origin.y + m[1][2] * ray_origin.z + m[1][3];
+			oz = m[2][0] * ray_origin.x + m[2][1] * ray_origin.y + m[2][2] * ray_origin.z + m[2][3];
+			dx = m[0][0] * ray_dir.x + m[0][1] * ray_dir.y + m[0][2] * ray_dir.z;
+			dy = m[1][0] * ray_dir.x + m[1][1] * ray_dir.y + m[1][2] * ray_dir.z;
+			dz = m[2][0] * ray_dir.x + m[2][1] * ray_dir.y + m[2][2] * ray_dir.z;
+		}
+
+		boolean replace = closest && hits.size() != 0;
+		float tMax = replace ? hits.getDistance(0) / dirLength : Float.MAX_VALUE;
+
+		IntList candidates = hits.candidates;
+		candidates.clear();
+		if (local) {
+			this.bvh.queryRay(ox, oy, oz, dx, dy, dz, tMax, candidates, hits.bvhStack);
+		}
+		else {
+			// degenerate transform, test everything in world space
+			this.collectAllTriangles(candidates);
+		}
+
+		// in model space the precomputed triangles are used directly, otherwise each candidate is transformed into the
+		// single scratch triangle of the buffer
+		CollisionTriangles tris = local ? this.triangles : hits.worldTriangle;
+		int added = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			int t = candidates.get(i);
+			int k = local ? t : this.loadWorldTriangle(t, transform, tris, hits.triangle);
+			float rayT = tris.rayIntersect(k, ox, oy, oz, dx, dy, dz);
+			if (rayT < 0 || (closest && rayT > tMax)) {
+				continue;
+			}
+			if (closest) {
+				tMax = rayT;
+			}
+			tris.writeHit(hits, replace, k, t, ox + dx * rayT, oy + dy * rayT, oz + dz * rayT, local ? transform : null, rayT * dirLength, hits.normal);
+			replace = closest;
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Appends every triangle the sphere intersects to hits, and returns how many were added.
+	 * 
+	 * @param sphere_origin
+	 * @param sphere_radius
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public int sphereIntersect(Vec3 sphere_origin, float sphere_radius, Mat4 transform, CollisionHits hits) {
+		Mat4 inv = hits.invTransform;
+		boolean invertible = transform.inverse(inv);
+		float scale = invertible ? getUniformScale(transform) : -1;
+		boolean local = scale > 0;
+
+		float cx = sphere_origin.x, cy = sphere_origin.y, cz = sphere_origin.z;
+		float r = sphere_radius;
+		IntList candidates = hits.candidates;
+		candidates.clear();
+		if (local) {
+			float[][] m = inv.mat;
+			cx = m[0][0] * sphere_origin.x + m[0][1] * sphere_origin.y + m[0][2] * sphere_origin.z + m[0][3];
+			cy = m[1][0] * sphere_origin.x + m[1][1] * sphere_origin.y + m[1][2] * sphere_origin.z + m[1][3];
+			cz = m[2][0] * sphere_origin.x + m[2][1] * sphere_origin.y + m[2][2] * sphere_origin.z + m[2][3];
+			r = sphere_radius / scale;
+			this.collectLocalBoxCandidates(cx - r, cy - r, cz - r, cx + r, cy + r, cz + r, candidates, hits.bvhStack);
+		}
+		else {
+			// the sphere won't be a sphere in model space, test the candidates in world space instead
+			this.collectBoxCandidates(cx - r, cy - r, cz - r, cx + r, cy + r, cz + r, invertible ? inv : null, candidates, hits.bvhStack);
+		}
+
+		CollisionTriangles tris = local ? this.triangles : hits.worldTriangle;
+		float[] p = hits.closest;
+		int added = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			int t = candidates.get(i);
+			int k = local ? t : this.loadWorldTriangle(t, transform, tris, hits.triangle);
+			// cheap rejects first, the bvh leaves hold a few triangles each
+			if (!tris.overlapsBox(k, cx - r, cy - r, cz - r, cx + r, cy + r, cz + r) || Math.abs(tris.planeDistance(k, cx, cy, cz)) >= r) {
+				continue;
+			}
+			if (!tris.closestPoint(k, cx, cy, cz, p)) {
+				continue;
+			}
+			float ex = p[0] - cx, ey = p[1] - cy, ez = p[2] - cz;
+			float dist = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+			if (dist >= r) {
+				continue;
+			}
+			tris.writeHit(hits, false, k, t, p[0], p[1], p[2], local ? transform : null, local ? dist * scale : dist, hits.normal);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Appends every triangle the capsule intersects to hits, and returns how many were added.
+	 * 
+	 * @param capsule_bottom
+	 * @param capsule_top
+	 * @param capsule_radius
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public int capsuleIntersect(Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, Mat4 transform, CollisionHits hits) {
+		Mat4 inv = hits.invTransform;
+		boolean invertible = transform.inverse(inv);
+		float scale = invertible ? getUniformScale(transform) : -1;
+		boolean local = scale > 0;
+
+		float bx = capsule_bottom.x, by = capsule_bottom.y, bz = capsule_bottom.z;
+		float tx = capsule_top.x, ty = capsule_top.y, tz = capsule_top.z;
+		float r = capsule_radius;
+		if (local) {
+			float[][] m = inv.mat;
+			bx = m[0][0] * capsule_bottom.x + m[0][1] * capsule_bottom.y + m[0][2] * capsule_bottom.z + m[0][3];
+			by = m[1][0] * capsule_bottom.x + m[1][1] * capsule_bottom.y + m[1][2] * capsule_bottom.z + m[1][3];
+			bz = m[2][0] * capsule_bottom.x + m[2][1] * capsule_bottom.y + m[2][2] * capsule_bottom.z + m[2][3];
+			tx = m[0][0] * capsule_top.x + m[0][1] * capsule_top.y + m[0][2] * capsule_top.z + m[0][3];
+			ty = m[1][0] * capsule_top.x + m[1][1] * capsule_top.y + m[1][2] * capsule_top.z + m[1][3];
+			tz = m[2][0] * capsule_top.x + m[2][1] * capsule_top.y + m[2][2] * capsule_top.z + m[2][3];
+			r = capsule_radius / scale;
+		}
+
+		IntList candidates = hits.candidates;
+		candidates.clear();
+		float minX = Math.min(bx, tx) - r, minY = Math.min(by, ty) - r, minZ = Math.min(bz, tz) - r;
+		float maxX = Math.max(bx, tx) + r, maxY = Math.max(by, ty) + r, maxZ = Math.max(bz, tz) + r;
+		if (local) {
+			this.collectLocalBoxCandidates(minX, minY, minZ, maxX, maxY, maxZ, candidates, hits.bvhStack);
+		}
+		else {
+			this.collectBoxCandidates(minX, minY, minZ, maxX, maxY, maxZ, invertible ? inv : null, candidates, hits.bvhStack);
+		}
+
+		// capsule_bottom and capsule_top are the ends of the capsule, pull them in by the radius to get the segment
+		// between the centers of the end spheres.
+		float ux = tx - bx, uy = ty - by, uz = tz - bz;
+		float uLength = (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+		if (uLength != 0) {
+			ux /= uLength;
+			uy /= uLength;
+			uz /= uLength;
+		}
+		float ax = bx + ux * r, ay = by + uy * r, az = bz + uz * r;
+		float abx = (tx - ux * r) - ax, aby = (ty - uy * r) - ay, abz = (tz - uz * r) - az;
+
+		CollisionTriangles tris = local ? this.triangles : hits.worldTriangle;
+		float[] p = hits.closest;
+		int added = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			int t = candidates.get(i);
+			int k = local ? t : this.loadWorldTriangle(t, transform, tris, hits.triangle);
+			if (!tris.overlapsBox(k, minX, minY, minZ, maxX, maxY, maxZ)) {
+				continue;
+			}
+			float dist = tris.capsuleIntersect(k, bx, by, bz, ux, uy, uz, ax, ay, az, abx, aby, abz, r, p);
+			if (dist < 0) {
+				continue;
+			}
+			tris.writeHit(hits, false, k, t, p[0], p[1], p[2], local ? transform : null, local ? dist * scale : dist, hits.normal);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Appends every triangle that overlaps the world space box to out, transformed into world space, and returns how many
+	 * were added. Meant for queries that test the same triangles over and over, like sweeping a character around, so that
+	 * they only have to walk the bvh once.
+	 * 
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param transform
+	 * @param out
+	 * @param hits      only used for its scratch space
+	 * @return
+	 */
+	public int collectTriangles(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Mat4 transform, CollisionTriangles out, CollisionHits hits) {
+		Mat4 inv = hits.invTransform;
+		boolean invertible = transform.inverse(inv);
+		IntList candidates = hits.candidates;
+		candidates.clear();
+		this.collectBoxCandidates(minX, minY, minZ, maxX, maxY, maxZ, invertible ? inv : null, candidates, hits.bvhStack);
+
+		CollisionTriangles tri = hits.worldTriangle;
+		float[] w = hits.triangle;
+		int added = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			this.loadWorldTriangle(candidates.get(i), transform, tri, w);
+			if (tri.isDegenerate(0) || !tri.overlapsBox(0, minX, minY, minZ, maxX, maxY, maxZ)) {
+				continue;
+			}
+			out.add(w[0], w[1], w[2], w[3], w[4], w[5], w[6], w[7], w[8]);
+			added++;
+		}
+		return added;
+	}
+
+	// transforms triangle t into world space, and writes it into the first slot of out. Returns that slot.
+	private int loadWorldTriangle(int t, Mat4 transform, CollisionTriangles out, float[] w) {
+		float[][] m = transform.mat;
+		for (int k = 0; k < 3; k++) {
+			int v = this.indices[t * 3 + k] * 3;
+			float x = this.vertices[v + 0];
+			float y = this.vertices[v + 1];
+			float z = this.vertices[v + 2];
+			w[k * 3 + 0] = m[0][0] * x + m[0][1] * y + m[0][2] * z + m[0][3];
+			w[k * 3 + 1] = m[1][0] * x + m[1][1] * y + m[1][2] * z + m[1][3];
+			w[k * 3 + 2] = m[2][0] * x + m[2][1] * y + m[2][2] * z + m[2][3];
+		}
+		out.set(0, w[0], w[1], w[2], w[3], w[4], w[5], w[6], w[7], w[8]);
+		return 0;
+	}
+
 }
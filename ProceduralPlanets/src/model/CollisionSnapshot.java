@@ -0,0 +1,97 @@
+package model;
+
+import util.IntList;
+import util.Mat4;
+import util.Vec3;
+
+public class CollisionSnapshot {
+
+	// read only copy of the active collision instances of one scene, taken with Model.getCollisionSnapshot().
+	// it has its own copy of the broadphase tree and of the instance transforms, so any number of threads can
+	// query it at once, while the scene itself keeps changing on the update thread.
+
+	// the collision geometry itself isn't copied, collision meshes and colliders never change after they're built.
+
+	// the queries are the same as the ones on Model that take a CollisionHits, and each thread needs its own buffer.
+
+	private DynamicAABBTree tree; // null if the scene has nothing to collide with
+
+	// indexed by proxy in the tree
+	private Model[] models;
+	private Mat4[] transforms;
+
+	CollisionSnapshot(DynamicAABBTree tree, Model[] models, Mat4[] transforms) {
+		this.tree = tree;
+		this.models = models;
+		this.transforms = transforms;
+	}
+
+	public int rayIntersect(Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		if (this.tree == null) {
+			return 0;
+		}
+		int start = hits.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		this.tree.queryRay(ray_origin.x, ray_origin.y, ray_origin.z, ray_dir.x, ray_dir.y, ray_dir.z, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			int proxy = proxies.get(i);
+			this.models[proxy].intersectRay(this.tree.getID(proxy), this.transforms[proxy], ray_origin, ray_dir, hits);
+		}
+		return hits.size() - start;
+	}
+
+	public boolean rayIntersectClosest(Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		if (this.tree == null) {
+			return false;
+		}
+		boolean changed = false;
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		this.tree.queryRay(ray_origin.x, ray_origin.y, ray_origin.z, ray_dir.x, ray_dir.y, ray_dir.z, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			int proxy = proxies.get(i);
+			if (this.models[proxy].intersectRayClosest(this.tree.getID(proxy), this.transforms[proxy], ray_origin, ray_dir, hits)) {
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	public int sphereIntersect(Vec3 sphere_origin, float sphere_radius, CollisionHits hits) {
+		if (this.tree == null) {
+			return 0;
+		}
+		int start = hits.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		this.tree.queryBox(sphere_origin.x - sphere_radius, sphere_origin.y - sphere_radius, sphere_origin.z - sphere_radius, sphere_origin.x + sphere_radius, sphere_origin.y + sphere_radius, sphere_origin.z + sphere_radius, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			int proxy = proxies.get(i);
+			this.models[proxy].intersectSphere(this.tree.getID(proxy), this.transforms[proxy], sphere_origin, sphere_radius, hits);
+		}
+		return hits.size() - start;
+	}
+
+	public int capsuleIntersect(Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, CollisionHits hits) {
+		if (this.tree == null) {
+			return 0;
+		}
+		int start = hits.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		float minX = Math.min(capsule_bottom.x, capsule_top.x) - capsule_radius;
+		float minY = Math.min(capsule_bottom.y, capsule_top.y) - capsule_radius;
+		float minZ = Math.min(capsule_bottom.z, capsule_top.z) - capsule_radius;
+		float maxX = Math.max(capsule_bottom.x, capsule_top.x) + capsule_radius;
+		float maxY = Math.max(capsule_bottom.y, capsule_top.y) + capsule_radius;
+		float maxZ = Math.max(capsule_bottom.z, capsule_top.z) + capsule_radius;
+		this.tree.queryBox(minX, minY, minZ, maxX, maxY, maxZ, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			int proxy = proxies.get(i);
+			this.models[proxy].intersectCapsule(this.tree.getID(proxy), this.transforms[proxy], capsule_bottom, capsule_top, capsule_radius, hits);
+		}
+		return hits.size() - start;
+	}
+
+}
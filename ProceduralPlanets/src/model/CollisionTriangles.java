@@ -0,0 +1,506 @@
+package model;
+
+import java.util.Arrays;
+
+import util.Mat4;
+import util.MathUtils;
+
+public class CollisionTriangles {
+
+	// the narrowphase data of a set of triangles. Everything a query needs per triangle is computed once in set(), and
+	// stored in one flat array per quantity, so the queries only read a few floats per candidate instead of gathering the
+	// vertices through the index buffer and rebuilding the edges and normal every time.
+
+	// for each triangle t, we store
+	// origin : the first vertex
+	// edges : second vertex - first vertex, and third vertex - first vertex
+	// normal : unit normal, following the winding. All 0 if the triangle is degenerate
+	// plane distance : normal dot origin, so normal dot p - plane distance is the signed distance from p to the plane
+	// bounds : minX, minY, minZ, maxX, maxY, maxZ
+
+	private static final int MAX_SWEEP_ITERATIONS = 32;
+	private static final float SWEEP_APPROACH_EPSILON = 0.0001f; // motion that's this close to parallel to a contact doesn't push into it
+
+	private int size;
+
+	private float[] origins;
+	private float[] edges0;
+	private float[] edges1;
+	private float[] normals;
+	private float[] planeDists;
+	private float[] bounds;
+
+	public CollisionTriangles(int size) {
+		this.size = size;
+		this.origins = new float[size * 3];
+		this.edges0 = new float[size * 3];
+		this.edges1 = new float[size * 3];
+		this.normals = new float[size * 3];
+		this.planeDists = new float[size];
+		this.bounds = new float[size * 6];
+	}
+
+	public CollisionTriangles(float[] vertices, int[] indices) {
+		this(indices.length / 3);
+		for (int t = 0; t < this.size; t++) {
+			int a = indices[t * 3 + 0] * 3;
+			int b = indices[t * 3 + 1] * 3;
+			int c = indices[t * 3 + 2] * 3;
+			this.set(t, vertices[a], vertices[a + 1], vertices[a + 2], vertices[b], vertices[b + 1], vertices[b + 2], vertices[c], vertices[c + 1], vertices[c + 2]);
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// removes every triangle, but keeps the arrays around for add()
+	public void clear() {
+		this.size = 0;
+	}
+
+	// appends a triangle, and returns its index
+	public int add(float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+		if (this.size == this.planeDists.length) {
+			int capacity = Math.max(8, this.planeDists.length * 2);
+			this.origins = Arrays.copyOf(this.origins, capacity * 3);
+			this.edges0 = Arrays.copyOf(this.edges0, capacity * 3);
+			this.edges1 = Arrays.copyOf(this.edges1, capacity * 3);
+			this.normals = Arrays.copyOf(this.normals, capacity * 3);
+			this.planeDists = Arrays.copyOf(this.planeDists, capacity);
+			this.bounds = Arrays.copyOf(this.bounds, capacity * 6);
+		}
+		int t = this.size++;
+		this.set(t, ax, ay, az, bx, by, bz, cx, cy, cz);
+		return t;
+	}
+
+	public void set(int t, float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz) {
+		int o = t * 3;
+		this.origins[o + 0] = ax;
+		this.origins[o + 1] = ay;
+		this.origins[o + 2] = az;
+
+		float e0x = bx - ax, e0y = by - ay, e0z = bz - az;
+		float e1x = cx - ax, e1y = cy - ay, e1z = cz - az;
+		this.edges0[o + 0] = e0x;
+		this.edges0[o + 1] = e0y;
+		this.edges0[o + 2] = e0z;
+		this.edges1[o + 0] = e1x;
+		this.edges1[o + 1] = e1y;
+		this.edges1[o + 2] = e1z;
+
+		float nx = e0y * e1z - e0z * e1y;
+		float ny = e0z * e1x - e0x * e1z;
+		float nz = e0x * e1y - e0y * e1x;
+		float nLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (nLength == 0) {
+			nx = 0;
+			ny = 0;
+			nz = 0;
+		}
+		else {
+			nx /= nLength;
+			ny /= nLength;
+			nz /= nLength;
+		}
+		this.normals[o + 0] = nx;
+		this.normals[o + 1] = ny;
+		this.normals[o + 2] = nz;
+		this.planeDists[t] = nx * ax + ny * ay + nz * az;
+
+		int b6 = t * 6;
+		this.bounds[b6 + 0] = Math.min(ax, Math.min(bx, cx));
+		this.bounds[b6 + 1] = Math.min(ay, Math.min(by, cy));
+		this.bounds[b6 + 2] = Math.min(az, Math.min(bz, cz));
+		this.bounds[b6 + 3] = Math.max(ax, Math.max(bx, cx));
+		this.bounds[b6 + 4] = Math.max(ay, Math.max(by, cy));
+		this.bounds[b6 + 5] = Math.max(az, Math.max(bz, cz));
+	}
+
+	// writes the three vertices of triangle t into out, in the order they were given to set()
+	public void getVertices(int t, float[] out) {
+		int o = t * 3;
+		for (int k = 0; k < 3; k++) {
+			out[k * 3 + 0] = this.origins[o + 0] + (k == 1 ? this.edges0[o + 0] : k == 2 ? this.edges1[o + 0] : 0);
+			out[k * 3 + 1] = this.origins[o + 1] + (k == 1 ? this.edges0[o + 1] : k == 2 ? this.edges1[o + 1] : 0);
+			out[k * 3 + 2] = this.origins[o + 2] + (k == 1 ? this.edges0[o + 2] : k == 2 ? this.edges1[o + 2] : 0);
+		}
+	}
+
+	public boolean isDegenerate(int t) {
+		int o = t * 3;
+		return this.normals[o + 0] == 0 && this.normals[o + 1] == 0 && this.normals[o + 2] == 0;
+	}
+
+	public float getNormalX(int t) {
+		return this.normals[t * 3 + 0];
+	}
+
+	public float getNormalY(int t) {
+		return this.normals[t * 3 + 1];
+	}
+
+	public float getNormalZ(int t) {
+		return this.normals[t * 3 + 2];
+	}
+
+	// signed distance from p to the plane of the triangle, positive on the side the normal points to
+	public float planeDistance(int t, float px, float py, float pz) {
+		int o = t * 3;
+		return this.normals[o + 0] * px + this.normals[o + 1] * py + this.normals[o + 2] * pz - this.planeDists[t];
+	}
+
+	public boolean overlapsBox(int t, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		int b6 = t * 6;
+		return this.bounds[b6 + 0] <= maxX && this.bounds[b6 + 3] >= minX && this.bounds[b6 + 1] <= maxY && this.bounds[b6 + 4] >= minY && this.bounds[b6 + 2] <= maxZ && this.bounds[b6 + 5] >= minZ;
+	}
+
+	// double sided ray triangle intersection, returns t along the ray, or -1 if it misses.
+	public float rayIntersect(int t, float ox, float oy, float oz, float dx, float dy, float dz) {
+		int o = t * 3;
+		float e0x = this.edges0[o + 0], e0y = this.edges0[o + 1], e0z = this.edges0[o + 2];
+		float e1x = this.edges1[o + 0], e1y = this.edges1[o + 1], e1z = this.edges1[o + 2];
+		float px = dy * e1z - dz * e1y;
+		float py = dz * e1x - dx * e1z;
+		float pz = dx * e1y - dy * e1x;
+		float det = e0x * px + e0y * py + e0z * pz;
+		if (det == 0) {
+			// ray is parallel to the triangle, or the triangle is degenerate
+			return -1;
+		}
+		float invDet = 1f / det;
+		float sx = ox - this.origins[o + 0], sy = oy - this.origins[o + 1], sz = oz - this.origins[o + 2];
+		float u = (sx * px + sy * py + sz * pz) * invDet;
+		if (u < 0 || u > 1) {
+			return -1;
+		}
+		float qx = sy * e0z - sz * e0y;
+		float qy = sz * e0x - sx * e0z;
+		float qz = sx * e0y - sy * e0x;
+		float v = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (v < 0 || u + v > 1) {
+			return -1;
+		}
+		float rayT = (e1x * qx + e1y * qy + e1z * qz) * invDet;
+		return rayT < 0 ? -1 : rayT;
+	}
+
+	// writes the point on the triangle closest to p into out. Returns false for degenerate triangles, the list versions
+	// of the queries never report hits on those either.
+	public boolean closestPoint(int t, float px, float py, float pz, float[] out) {
+		return this.closestPoint(t, px, py, pz, out, 0);
+	}
+
+	// same as above, but writes the point into out starting at offset
+	public boolean closestPoint(int t, float px, float py, float pz, float[] out, int offset) {
+		if (this.isDegenerate(t)) {
+			return false;
+		}
+		int o = t * 3;
+		float ax = this.origins[o + 0], ay = this.origins[o + 1], az = this.origins[o + 2];
+		float abx = this.edges0[o + 0], aby = this.edges0[o + 1], abz = this.edges0[o + 2];
+		float acx = this.edges1[o + 0], acy = this.edges1[o + 1], acz = this.edges1[o + 2];
+
+		// find which voronoi region of the triangle p is in
+		float apx = px - ax, apy = py - ay, apz = pz - az;
+		float d1 = abx * apx + aby * apy + abz * apz;
+		float d2 = acx * apx + acy * apy + acz * apz;
+		if (d1 <= 0 && d2 <= 0) {
+			return setPoint(out, offset, ax, ay, az);
+		}
+
+		float bx = ax + abx, by = ay + aby, bz = az + abz;
+		float bpx = px - bx, bpy = py - by, bpz = pz - bz;
+		float d3 = abx * bpx + aby * bpy + abz * bpz;
+		float d4 = acx * bpx + acy * bpy + acz * bpz;
+		if (d3 >= 0 && d4 <= d3) {
+			return setPoint(out, offset, bx, by, bz);
+		}
+
+		float vc = d1 * d4 - d3 * d2;
+		if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+			float v = d1 / (d1 - d3);
+			return setPoint(out, offset, ax + abx * v, ay + aby * v, az + abz * v);
+		}
+
+		float cx = ax + acx, cy = ay + acy, cz = az + acz;
+		float cpx = px - cx, cpy = py - cy, cpz = pz - cz;
+		float d5 = abx * cpx + aby * cpy + abz * cpz;
+		float d6 = acx * cpx + acy * cpy + acz * cpz;
+		if (d6 >= 0 && d5 <= d6) {
+			return setPoint(out, offset, cx, cy, cz);
+		}
+
+		float vb = d5 * d2 - d1 * d6;
+		if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+			float w = d2 / (d2 - d6);
+			return setPoint(out, offset, ax + acx * w, ay + acy * w, az + acz * w);
+		}
+
+		float va = d3 * d6 - d5 * d4;
+		if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+			float w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+			return setPoint(out, offset, bx + (cx - bx) * w, by + (cy - by) * w, bz + (cz - bz) * w);
+		}
+
+		// inside the face
+		float denom = 1f / (va + vb + vc);
+		float v = vb * denom;
+		float w = vc * denom;
+		return setPoint(out, offset, ax + abx * v + acx * w, ay + aby * v + acy * w, az + abz * v + acz * w);
+	}
+
+	// tests the capsule with its bottom at b, unit axis u, and the segment a + ab * h between the centers of its end spheres
+	// against the triangle. Writes the closest point on the triangle into out, and returns its distance to the segment, or
+	// -1 if they don't intersect.
+	public float capsuleIntersect(int t, float bx, float by, float bz, float ux, float uy, float uz, float ax, float ay, float az, float abx, float aby, float abz, float r, float[] out) {
+		// if both end spheres are further than r from the plane on the same side, the whole capsule misses it
+		float da = this.planeDistance(t, ax, ay, az);
+		float db = this.planeDistance(t, ax + abx, ay + aby, az + abz);
+		if ((da >= r && db >= r) || (da <= -r && db <= -r)) {
+			return -1;
+		}
+
+		// same as MathUtils.capsule_triangleIntersect. Find where the capsule's line crosses the triangle's plane,
+		// clamp that onto the triangle, and test the sphere on the segment that is closest to it.
+		int o = t * 3;
+		float nx = this.normals[o + 0], ny = this.normals[o + 1], nz = this.normals[o + 2];
+		float denom = nx * ux + ny * uy + nz * uz;
+		float refX = this.origins[o + 0], refY = this.origins[o + 1], refZ = this.origins[o + 2];
+		if (denom != 0) {
+			float s = -this.planeDistance(t, bx, by, bz) / denom;
+			if (!this.closestPoint(t, bx + ux * s, by + uy * s, bz + uz * s, out)) {
+				return -1;
+			}
+			refX = out[0];
+			refY = out[1];
+			refZ = out[2];
+		}
+		float h = closestOnSegment(refX, refY, refZ, ax, ay, az, abx, aby, abz);
+		float cx = ax + abx * h, cy = ay + aby * h, cz = az + abz * h;
+
+		if (!this.closestPoint(t, cx, cy, cz, out)) {
+			return -1;
+		}
+		float ex = out[0] - cx, ey = out[1] - cy, ez = out[2] - cz;
+		if (ex * ex + ey * ey + ez * ez >= r * r) {
+			return -1;
+		}
+
+		// distance to the segment itself, not just the sphere we tested
+		h = closestOnSegment(out[0], out[1], out[2], ax, ay, az, abx, aby, abz);
+		ex = out[0] - (ax + abx * h);
+		ey = out[1] - (ay + aby * h);
+		ez = out[2] - (az + abz * h);
+		return (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+	}
+
+	// distance between the segment a + ab * h, h in [0, 1], and the triangle. Writes the closest point on the triangle, and
+	// then the closest point on the segment, into out, which needs room for 12 floats, the last 6 are scratch space.
+	// Returns -1 for degenerate triangles.
+	public float segmentDistance(int t, float ax, float ay, float az, float abx, float aby, float abz, float[] out) {
+		if (this.isDegenerate(t)) {
+			return -1;
+		}
+		int o = t * 3;
+
+		// if the segment crosses the triangle, they touch where it goes through the plane
+		float da = this.planeDistance(t, ax, ay, az);
+		float db = this.planeDistance(t, ax + abx, ay + aby, az + abz);
+		if ((da <= 0 && db >= 0) || (da >= 0 && db <= 0)) {
+			float h = this.rayIntersect(t, ax, ay, az, abx, aby, abz);
+			if (h >= 0 && h <= 1) {
+				setPoint(out, 0, ax + abx * h, ay + aby * h, az + abz * h);
+				setPoint(out, 3, ax + abx * h, ay + aby * h, az + abz * h);
+				return 0;
+			}
+		}
+
+		// otherwise, the closest points are either at an end of the segment, or between the segment and an edge
+		this.closestPoint(t, ax, ay, az, out);
+		setPoint(out, 3, ax, ay, az);
+		float best = distSq(out);
+
+		this.closestPoint(t, ax + abx, ay + aby, az + abz, out, 6);
+		setPoint(out, 9, ax + abx, ay + aby, az + abz);
+		best = keepCloser(out, best);
+
+		float vx = this.origins[o + 0], vy = this.origins[o + 1], vz = this.origins[o + 2];
+		float e0x = this.edges0[o + 0], e0y = this.edges0[o + 1], e0z = this.edges0[o + 2];
+		float e1x = this.edges1[o + 0], e1y = this.edges1[o + 1], e1z = this.edges1[o + 2];
+		closestSegmentSegment(vx, vy, vz, e0x, e0y, e0z, ax, ay, az, abx, aby, abz, out);
+		best = keepCloser(out, best);
+		closestSegmentSegment(vx, vy, vz, e1x, e1y, e1z, ax, ay, az, abx, aby, abz, out);
+		best = keepCloser(out, best);
+		closestSegmentSegment(vx + e0x, vy + e0y, vz + e0z, e1x - e0x, e1y - e0y, e1z - e0z, ax, ay, az, abx, aby, abz, out);
+		best = keepCloser(out, best);
+		return (float) Math.sqrt(best);
+	}
+
+	// sweeps the capsule around the segment a + ab * h with radius r along the motion m, and returns the fraction of m it can
+	// move before it comes within tolerance of the triangle, or -1 if it can go the whole way. Capsules that start out
+	// touching the triangle only count as hitting it if they move towards it.
+	// At the time of impact, out holds the closest points like in segmentDistance().
+	public float capsuleSweep(int t, float ax, float ay, float az, float abx, float aby, float abz, float r, float mx, float my, float mz, float tolerance, float[] out) {
+		float mLength = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+		if (mLength == 0) {
+			return -1;
+		}
+
+		// conservative advancement. Under a translation, the distance to the triangle can't shrink faster than the capsule
+		// moves, so moving by the gap never passes through the triangle, no matter how far the capsule goes in one step.
+		float toi = 0;
+		for (int i = 0; i < MAX_SWEEP_ITERATIONS; i++) {
+			float dist = this.segmentDistance(t, ax + mx * toi, ay + my * toi, az + mz * toi, abx, aby, abz, out);
+			if (dist < 0) {
+				return -1;
+			}
+			float gap = dist - r;
+			if (gap <= tolerance) {
+				if (i != 0) {
+					return toi;
+				}
+				// already touching, see which way the motion goes relative to the contact
+				float approach = dist == 0 ? 0 : ((out[3] - out[0]) * mx + (out[4] - out[1]) * my + (out[5] - out[2]) * mz) / dist;
+				return approach < -SWEEP_APPROACH_EPSILON * mLength ? 0 : -1;
+			}
+			toi += gap / mLength;
+			if (toi > 1) {
+				return -1;
+			}
+		}
+		// out of iterations, stopping short is still safe
+		return toi;
+	}
+
+	// writes the world space unit normal of triangle t into out. It's computed off of the transformed edges, so it's right
+	// under any affine transform. If transform is null, the triangles are already in world space.
+	public void getWorldNormal(int t, Mat4 transform, float[] out) {
+		int o = t * 3;
+		if (transform == null) {
+			out[0] = this.normals[o + 0];
+			out[1] = this.normals[o + 1];
+			out[2] = this.normals[o + 2];
+			return;
+		}
+		float[][] m = transform.mat;
+		float e0x = this.edges0[o + 0], e0y = this.edges0[o + 1], e0z = this.edges0[o + 2];
+		float e1x = this.edges1[o + 0], e1y = this.edges1[o + 1], e1z = this.edges1[o + 2];
+		float w0x = m[0][0] * e0x + m[0][1] * e0y + m[0][2] * e0z;
+		float w0y = m[1][0] * e0x + m[1][1] * e0y + m[1][2] * e0z;
+		float w0z = m[2][0] * e0x + m[2][1] * e0y + m[2][2] * e0z;
+		float w1x = m[0][0] * e1x + m[0][1] * e1y + m[0][2] * e1z;
+		float w1y = m[1][0] * e1x + m[1][1] * e1y + m[1][2] * e1z;
+		float w1z = m[2][0] * e1x + m[2][1] * e1y + m[2][2] * e1z;
+		float nx = w0y * w1z - w0z * w1y;
+		float ny = w0z * w1x - w0x * w1z;
+		float nz = w0x * w1y - w0y * w1x;
+		float nLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (nLength != 0) {
+			nx /= nLength;
+			ny /= nLength;
+			nz /= nLength;
+		}
+		out[0] = nx;
+		out[1] = ny;
+		out[2] = nz;
+	}
+
+	// takes a hit on triangle t, in model space if transform isn't null, and writes it to hits in world space, tagged with
+	// the given triangle index. normal is scratch space for 3 floats.
+	public void writeHit(CollisionHits hits, boolean replace, int t, int triangle, float px, float py, float pz, Mat4 transform, float distance, float[] normal) {
+		if (transform != null) {
+			float[][] m = transform.mat;
+			float wx = m[0][0] * px + m[0][1] * py + m[0][2] * pz + m[0][3];
+			float wy = m[1][0] * px + m[1][1] * py + m[1][2] * pz + m[1][3];
+			float wz = m[2][0] * px + m[2][1] * py + m[2][2] * pz + m[2][3];
+			px = wx;
+			py = wy;
+			pz = wz;
+		}
+		this.getWorldNormal(t, transform, normal);
+		if (replace) {
+			hits.set(0, px, py, pz, normal[0], normal[1], normal[2], triangle, distance);
+		}
+		else {
+			hits.add(px, py, pz, normal[0], normal[1], normal[2], triangle, distance);
+		}
+	}
+
+	private static boolean setPoint(float[] out, int offset, float x, float y, float z) {
+		out[offset + 0] = x;
+		out[offset + 1] = y;
+		out[offset + 2] = z;
+		return true;
+	}
+
+	// squared distance between the pair of points in out
+	private static float distSq(float[] out) {
+		float ex = out[3] - out[0], ey = out[4] - out[1], ez = out[5] - out[2];
+		return ex * ex + ey * ey + ez * ez;
+	}
+
+	// moves the pair of points in the scratch half of out into the first half if they're closer than best. Returns the new best.
+	private static float keepCloser(float[] out, float best) {
+		float ex = out[9] - out[6], ey = out[10] - out[7], ez = out[11] - out[8];
+		float d = ex * ex + ey * ey + ez * ez;
+		if (d >= best) {
+			return best;
+		}
+		System.arraycopy(out, 6, out, 0, 6);
+		return d;
+	}
+
+	// closest points between the segments p + d1 * s and q + d2 * t, s and t in [0, 1], from Real-Time Collision Detection.
+	// Writes the point on the first segment, and then the point on the second, into out[6 .. 11].
+	private static void closestSegmentSegment(float px, float py, float pz, float d1x, float d1y, float d1z, float qx, float qy, float qz, float d2x, float d2y, float d2z, float[] out) {
+		float rx = px - qx, ry = py - qy, rz = pz - qz;
+		float a = d1x * d1x + d1y * d1y + d1z * d1z;
+		float e = d2x * d2x + d2y * d2y + d2z * d2z;
+		float f = d2x * rx + d2y * ry + d2z * rz;
+		float s, t;
+		if (a == 0 && e == 0) {
+			s = 0;
+			t = 0;
+		}
+		else if (a == 0) {
+			s = 0;
+			t = MathUtils.clamp(0f, 1f, f / e);
+		}
+		else {
+			float c = d1x * rx + d1y * ry + d1z * rz;
+			if (e == 0) {
+				t = 0;
+				s = MathUtils.clamp(0f, 1f, -c / a);
+			}
+			else {
+				float b = d1x * d2x + d1y * d2y + d1z * d2z;
+				float denom = a * e - b * b;
+				s = denom != 0 ? MathUtils.clamp(0f, 1f, (b * f - c * e) / denom) : 0;
+				t = (b * s + f) / e;
+				if (t < 0) {
+					t = 0;
+					s = MathUtils.clamp(0f, 1f, -c / a);
+				}
+				else if (t > 1) {
+					t = 1;
+					s = MathUtils.clamp(0f, 1f, (b - c) / a);
+				}
+			}
+		}
+		setPoint(out, 6, px + d1x * s, py + d1y * s, pz + d1z * s);
+		setPoint(out, 9, qx + d2x * t, qy + d2y * t, qz + d2z * t);
+	}
+
+	// returns h in [0, 1] so that a + ab * h is the point on the segment closest to p
+	private static float closestOnSegment(float px, float py, float pz, float ax, float ay, float az, float abx, float aby, float abz) {
+		float len2 = abx * abx + aby * aby + abz * abz;
+		if (len2 == 0) {
+			return 0;
+		}
+		float h = ((px - ax) * abx + (py - ay) * aby + (pz - az) * abz) / len2;
+		return MathUtils.clamp(0f, 1f, h);
+	}
+
+}
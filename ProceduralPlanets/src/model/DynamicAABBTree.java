@@ -0,0 +1,516 @@
+package model;
+
+import java.util.Arrays;
+
+import util.IntList;
+
+public class DynamicAABBTree {
+
+	// broadphase over a set of moving boxes, each tagged with a model instance ID.
+	// leaves store fattened boxes, so an instance that only moves a little doesn't have to be re-inserted.
+	// the tree is kept balanced with AVL style rotations, the same way box2d's b2DynamicTree does it.
+
+	// nodes are stored flattened, and freed nodes are kept in a free list threaded through parent.
+	// leaf nodes have child1 == NULL_NODE.
+
+	public static final int NULL_NODE = -1;
+
+	private static final float FAT_MARGIN = 0.1f;
+
+	private float[] bounds; // minX, minY, minZ, maxX, maxY, maxZ
+	private int[] parent;
+	private int[] child1;
+	private int[] child2;
+	private int[] height; // leaves have height 0, free nodes have height -1
+	private long[] IDs; // model instance ID for leaves
+
+	private int root;
+	private int freeList;
+	private int nodeCapacity;
+
+	public DynamicAABBTree() {
+		this.nodeCapacity = 16;
+		this.bounds = new float[this.nodeCapacity * 6];
+		this.parent = new int[this.nodeCapacity];
+		this.child1 = new int[this.nodeCapacity];
+		this.child2 = new int[this.nodeCapacity];
+		this.height = new int[this.nodeCapacity];
+		this.IDs = new long[this.nodeCapacity];
+		this.root = NULL_NODE;
+		this.freeList = NULL_NODE;
+		this.linkFreeNodes(0);
+	}
+
+	// copies the tree. Queries only read the tree, so a copy can be queried from other threads while the original keeps changing.
+	public DynamicAABBTree(DynamicAABBTree tree) {
+		this.nodeCapacity = tree.nodeCapacity;
+		this.bounds = tree.bounds.clone();
+		this.parent = tree.parent.clone();
+		this.child1 = tree.child1.clone();
+		this.child2 = tree.child2.clone();
+		this.height = tree.height.clone();
+		this.IDs = tree.IDs.clone();
+		this.root = tree.root;
+		this.freeList = tree.freeList;
+	}
+
+	public int getNodeCapacity() {
+		return this.nodeCapacity;
+	}
+
+	private void linkFreeNodes(int from) {
+		for (int i = from; i < this.nodeCapacity; i++) {
+			this.parent[i] = i + 1 < this.nodeCapacity ? i + 1 : this.freeList;
+			this.height[i] = -1;
+		}
+		this.freeList = from;
+	}
+
+	private int allocateNode() {
+		if (this.freeList == NULL_NODE) {
+			int oldCapacity = this.nodeCapacity;
+			this.nodeCapacity *= 2;
+			this.bounds = Arrays.copyOf(this.bounds, this.nodeCapacity * 6);
+			this.parent = Arrays.copyOf(this.parent, this.nodeCapacity);
+			this.child1 = Arrays.copyOf(this.child1, this.nodeCapacity);
+			this.child2 = Arrays.copyOf(this.child2, this.nodeCapacity);
+			this.height = Arrays.copyOf(this.height, this.nodeCapacity);
+			this.IDs = Arrays.copyOf(this.IDs, this.nodeCapacity);
+			this.linkFreeNodes(oldCapacity);
+		}
+		int node = this.freeList;
+		this.freeList = this.parent[node];
+		this.parent[node] = NULL_NODE;
+		this.child1[node] = NULL_NODE;
+		this.child2[node] = NULL_NODE;
+		this.height[node] = 0;
+		this.IDs[node] = 0;
+		return node;
+	}
+
+	private void freeNode(int node) {
+		this.parent[node] = this.freeList;
+		this.height[node] = -1;
+		this.freeList = node;
+	}
+
+	private boolean isLeaf(int node) {
+		return this.child1[node] == NULL_NODE;
+	}
+
+	/**
+	 * Inserts a box, and returns the proxy that refers to it in this tree.
+	 *
+	 * @param ID     model instance ID
+	 * @param bounds minX, minY, minZ, maxX, maxY, maxZ
+	 * @return
+	 */
+	public int createProxy(long ID, float[] bounds) {
+		int proxy = this.allocateNode();
+		this.setFatBounds(proxy, bounds);
+		this.IDs[proxy] = ID;
+		this.insertLeaf(proxy);
+		return proxy;
+	}
+
+	public void destroyProxy(int proxy) {
+		this.removeLeaf(proxy);
+		this.freeNode(proxy);
+	}
+
+	/**
+	 * Updates the box for a proxy. Returns true if the proxy had to be re-inserted.
+	 *
+	 * @param proxy
+	 * @param bounds minX, minY, minZ, maxX, maxY, maxZ
+	 * @return
+	 */
+	public boolean moveProxy(int proxy, float[] bounds) {
+		int o = proxy * 6;
+		if (this.bounds[o + 0] <= bounds[0] && this.bounds[o + 1] <= bounds[1] && this.bounds[o + 2] <= bounds[2] && this.bounds[o + 3] >= bounds[3] && this.bounds[o + 4] >= bounds[4] && this.bounds[o + 5] >= bounds[5]) {
+			// still inside the fat box
+			return false;
+		}
+		this.removeLeaf(proxy);
+		this.setFatBounds(proxy, bounds);
+		this.insertLeaf(proxy);
+		return true;
+	}
+
+	public long getID(int proxy) {
+		return this.IDs[proxy];
+	}
+
+	private void setFatBounds(int node, float[] bounds) {
+		int o = node * 6;
+		for (int i = 0; i < 3; i++) {
+			this.bounds[o + i] = bounds[i] - FAT_MARGIN;
+			this.bounds[o + 3 + i] = bounds[3 + i] + FAT_MARGIN;
+		}
+	}
+
+	private void setUnion(int node, int a, int b) {
+		int o = node * 6;
+		int oa = a * 6;
+		int ob = b * 6;
+		for (int i = 0; i < 3; i++) {
+			this.bounds[o + i] = Math.min(this.bounds[oa + i], this.bounds[ob + i]);
+			this.bounds[o + 3 + i] = Math.max(this.bounds[oa + 3 + i], this.bounds[ob + 3 + i]);
+		}
+	}
+
+	private float area(int node) {
+		int o = node * 6;
+		float dx = this.bounds[o + 3] - this.bounds[o + 0];
+		float dy = this.bounds[o + 4] - this.bounds[o + 1];
+		float dz = this.bounds[o + 5] - this.bounds[o + 2];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	private float unionArea(int a, int b) {
+		int oa = a * 6;
+		int ob = b * 6;
+		float dx = Math.max(this.bounds[oa + 3], this.bounds[ob + 3]) - Math.min(this.bounds[oa + 0], this.bounds[ob + 0]);
+		float dy = Math.max(this.bounds[oa + 4], this.bounds[ob + 4]) - Math.min(this.bounds[oa + 1], this.bounds[ob + 1]);
+		float dz = Math.max(this.bounds[oa + 5], this.bounds[ob + 5]) - Math.min(this.bounds[oa + 2], this.bounds[ob + 2]);
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	private void insertLeaf(int leaf) {
+		if (this.root == NULL_NODE) {
+			this.root = leaf;
+			this.parent[leaf] = NULL_NODE;
+			return;
+		}
+
+		// walk down, picking the child that increases the total surface area the least
+		int index = this.root;
+		while (!this.isLeaf(index)) {
+			int c1 = this.child1[index];
+			int c2 = this.child2[index];
+
+			float area = this.area(index);
+			float combinedArea = this.unionArea(index, leaf);
+
+			// cost of creating a new parent for this node and the leaf
+			float cost = 2f * combinedArea;
+
+			// minimum cost of pushing the leaf further down the tree
+			float inheritanceCost = 2f * (combinedArea - area);
+
+			float cost1 = this.unionArea(c1, leaf) + inheritanceCost;
+			if (!this.isLeaf(c1)) {
+				cost1 -= this.area(c1);
+			}
+			float cost2 = this.unionArea(c2, leaf) + inheritanceCost;
+			if (!this.isLeaf(c2)) {
+				cost2 -= this.area(c2);
+			}
+
+			if (cost < cost1 && cost < cost2) {
+				break;
+			}
+			index = cost1 < cost2 ? c1 : c2;
+		}
+		int sibling = index;
+
+		// create a new parent for the sibling and the leaf
+		int oldParent = this.parent[sibling];
+		int newParent = this.allocateNode();
+		this.parent[newParent] = oldParent;
+		this.setUnion(newParent, leaf, sibling);
+		this.height[newParent] = this.height[sibling] + 1;
+
+		if (oldParent != NULL_NODE) {
+			if (this.child1[oldParent] == sibling) {
+				this.child1[oldParent] = newParent;
+			}
+			else {
+				this.child2[oldParent] = newParent;
+			}
+		}
+		else {
+			this.root = newParent;
+		}
+		this.child1[newParent] = sibling;
+		this.child2[newParent] = leaf;
+		this.parent[sibling] = newParent;
+		this.parent[leaf] = newParent;
+
+		this.refit(this.parent[leaf]);
+	}
+
+	private void removeLeaf(int leaf) {
+		if (leaf == this.root) {
+			this.root = NULL_NODE;
+			return;
+		}
+
+		int p = this.parent[leaf];
+		int grandParent = this.parent[p];
+		int sibling = this.child1[p] == leaf ? this.child2[p] : this.child1[p];
+
+		if (grandParent != NULL_NODE) {
+			// destroy the parent, and connect the sibling to the grandparent
+			if (this.child1[grandParent] == p) {
+				this.child1[grandParent] = sibling;
+			}
+			else {
+				this.child2[grandParent] = sibling;
+			}
+			this.parent[sibling] = grandParent;
+			this.freeNode(p);
+			this.refit(grandParent);
+		}
+		else {
+			this.root = sibling;
+			this.parent[sibling] = NULL_NODE;
+			this.freeNode(p);
+		}
+		this.parent[leaf] = NULL_NODE;
+	}
+
+	// walks from the given node up to the root, re-balancing and fixing heights and boxes along the way
+	private void refit(int index) {
+		while (index != NULL_NODE) {
+			index = this.balance(index);
+
+			int c1 = this.child1[index];
+			int c2 = this.child2[index];
+			this.height[index] = 1 + Math.max(this.height[c1], this.height[c2]);
+			this.setUnion(index, c1, c2);
+
+			index = this.parent[index];
+		}
+	}
+
+	// if A is imbalanced, rotates its taller child up. Returns the new root of the subtree.
+	private int balance(int iA) {
+		if (this.isLeaf(iA) || this.height[iA] < 2) {
+			return iA;
+		}
+
+		int iB = this.child1[iA];
+		int iC = this.child2[iA];
+		int balance = this.height[iC] - this.height[iB];
+
+		if (balance > 1) {
+			// rotate C up
+			int iF = this.child1[iC];
+			int iG = this.child2[iC];
+
+			this.child1[iC] = iA;
+			this.parent[iC] = this.parent[iA];
+			this.parent[iA] = iC;
+			this.replaceChild(this.parent[iC], iA, iC);
+
+			if (this.height[iF] > this.height[iG]) {
+				this.child2[iC] = iF;
+				this.child2[iA] = iG;
+				this.parent[iG] = iA;
+				this.setUnion(iA, iB, iG);
+				this.setUnion(iC, iA, iF);
+				this.height[iA] = 1 + Math.max(this.height[iB], this.height[iG]);
+				this.height[iC] = 1 + Math.max(this.height[iA], this.height[iF]);
+			}
+			else {
+				this.child2[iC] = iG;
+				this.child2[iA] = iF;
+				this.parent[iF] = iA;
+				this.setUnion(iA, iB, iF);
+				this.setUnion(iC, iA, iG);
+				this.height[iA] = 1 + Math.max(this.height[iB], this.height[iF]);
+				this.height[iC] = 1 + Math.max(this.height[iA], this.height[iG]);
+			}
+			return iC;
+		}
+
+		if (balance < -1) {
+			// rotate B up
+			int iD = this.child1[iB];
+			int iE = this.child2[iB];
+
+			this.child1[iB] = iA;
+			this.parent[iB] = this.parent[iA];
+			this.parent[iA] = iB;
+			this.replaceChild(this.parent[iB], iA, iB);
+
+			if (this.height[iD] > this.height[iE]) {
+				this.child2[iB] = iD;
+				this.child1[iA] = iE;
+				this.parent[iE] = iA;
+				this.setUnion(iA, iC, iE);
+				this.setUnion(iB, iA, iD);
+				this.height[iA] = 1 + Math.max(this.height[iC], this.height[iE]);
+				this.height[iB] = 1 + Math.max(this.height[iA], this.height[iD]);
+			}
+			else {
+				this.child2[iB] = iE;
+				this.child1[iA] = iD;
+				this.parent[iD] = iA;
+				this.setUnion(iA, iC, iD);
+				this.setUnion(iB, iA, iE);
+				this.height[iA] = 1 + Math.max(this.height[iC], this.height[iD]);
+				this.height[iB] = 1 + Math.max(this.height[iA], this.height[iE]);
+			}
+			return iB;
+		}
+
+		return iA;
+	}
+
+	private void replaceChild(int p, int oldChild, int newChild) {
+		if (p == NULL_NODE) {
+			this.root = newChild;
+		}
+		else if (this.child1[p] == oldChild) {
+			this.child1[p] = newChild;
+		}
+		else {
+			this.child2[p] = newChild;
+		}
+	}
+
+	/**
+	 * Appends to out every proxy whose box overlaps the given box.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param out
+	 */
+	public void queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out) {
+		this.queryBox(minX, minY, minZ, maxX, maxY, maxZ, out, new IntList());
+	}
+
+	/**
+	 * Same as queryBox, but traverses using the given stack, so repeated queries don't have to allocate one.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param out
+	 * @param stack
+	 */
+	public void queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out, IntList stack) {
+		if (this.root == NULL_NODE) {
+			return;
+		}
+		stack.clear();
+		stack.add(this.root);
+		while (stack.size() != 0) {
+			int node = stack.removeLast();
+			int o = node * 6;
+			if (this.bounds[o + 0] > maxX || this.bounds[o + 3] < minX || this.bounds[o + 1] > maxY || this.bounds[o + 4] < minY || this.bounds[o + 2] > maxZ || this.bounds[o + 5] < minZ) {
+				continue;
+			}
+			if (this.isLeaf(node)) {
+				out.add(node);
+			}
+			else {
+				stack.add(this.child1[node]);
+				stack.add(this.child2[node]);
+			}
+		}
+	}
+
+	/**
+	 * Appends to out every proxy whose box is hit by the ray origin + dir * t, for t >= 0.
+	 *
+	 * @param ox
+	 * @param oy
+	 * @param oz
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 * @param out
+	 */
+	public void queryRay(float ox, float oy, float oz, float dx, float dy, float dz, IntList out) {
+		this.queryRay(ox, oy, oz, dx, dy, dz, out, new IntList());
+	}
+
+	/**
+	 * Same as queryRay, but traverses using the given stack, so repeated queries don't have to allocate one.
+	 *
+	 * @param ox
+	 * @param oy
+	 * @param oz
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 * @param out
+	 * @param stack
+	 */
+	public void queryRay(float ox, float oy, float oz, float dx, float dy, float dz, IntList out, IntList stack) {
+		if (this.root == NULL_NODE) {
+			return;
+		}
+		stack.clear();
+		stack.add(this.root);
+		while (stack.size() != 0) {
+			int node = stack.removeLast();
+			if (!this.rayHitsNode(node, ox, oy, oz, dx, dy, dz)) {
+				continue;
+			}
+			if (this.isLeaf(node)) {
+				out.add(node);
+			}
+			else {
+				stack.add(this.child1[node]);
+				stack.add(this.child2[node]);
+			}
+		}
+	}
+
+	// slab test
+	private boolean rayHitsNode(int node, float ox, float oy, float oz, float dx, float dy, float dz) {
+		int o = node * 6;
+		float tNear = 0;
+		float tFar = Float.MAX_VALUE;
+
+		if (dx == 0) {
+			if (ox < this.bounds[o + 0] || ox > this.bounds[o + 3]) {
+				return false;
+			}
+		}
+		else {
+			float t0 = (this.bounds[o + 0] - ox) / dx;
+			float t1 = (this.bounds[o + 3] - ox) / dx;
+			tNear = Math.max(tNear, Math.min(t0, t1));
+			tFar = Math.min(tFar, Math.max(t0, t1));
+		}
+
+		if (dy == 0) {
+			if (oy < this.bounds[o + 1] || oy > this.bounds[o + 4]) {
+				return false;
+			}
+		}
+		else {
+			float t0 = (this.bounds[o + 1] - oy) / dy;
+			float t1 = (this.bounds[o + 4] - oy) / dy;
+			tNear = Math.max(tNear, Math.min(t0, t1));
+			tFar = Math.min(tFar, Math.max(t0, t1));
+		}
+
+		if (dz == 0) {
+			if (oz < this.bounds[o + 2] || oz > this.bounds[o + 5]) {
+				return false;
+			}
+		}
+		else {
+			float t0 = (this.bounds[o + 2] - oz) / dz;
+			float t1 = (this.bounds[o + 5] - oz) / dz;
+			tNear = Math.max(tNear, Math.min(t0, t1));
+			tFar = Math.min(tFar, Math.max(t0, t1));
+		}
+
+		return tNear <= tFar;
+	}
+
+}
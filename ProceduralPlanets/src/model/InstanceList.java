@@ -0,0 +1,206 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import graphics.Material;
+import util.Frustum;
+import util.IntList;
+import util.Mat4;
+import util.Vec3;
+import util.Vec4;
+
+public class InstanceList {
+
+	// the instances of one model in one scene, packed densely in the order they're drawn, so updating the instance
+	// buffers is one walk over a few arrays.
+
+	// removing an instance moves the last one into the hole it leaves, so an instance's index can change whenever another
+	// one is removed. InstanceRegistry keeps track of the current index of every instance.
+
+	// every instance also has a world space bounding sphere, kept up to date whenever its model matrix changes, so
+	// culling an instance against a frustum is one sphere test.
+
+	private int size;
+	private long[] IDs;
+	private float[] modelMats; // 16 floats per instance, in column major order like the instance buffers
+	private Material[] materials; // one per mesh of the model, instance i's start at i * materialsPerInstance
+	private int materialsPerInstance;
+	private float[] spheres; // world space x, y, z, radius
+
+	// model space bounding sphere of the model, a negative radius means it has no bounds and is never culled
+	private float centerX, centerY, centerZ, radius;
+
+	private boolean changed; // something changed since the instances were last uploaded
+
+	public InstanceList(int materialsPerInstance, Vec3 boundsMin, Vec3 boundsMax) {
+		int capacity = 4;
+		if (boundsMin.x > boundsMax.x) {
+			this.radius = -1;
+		}
+		else {
+			this.centerX = (boundsMin.x + boundsMax.x) / 2;
+			this.centerY = (boundsMin.y + boundsMax.y) / 2;
+			this.centerZ = (boundsMin.z + boundsMax.z) / 2;
+			this.radius = new Vec3(boundsMin, boundsMax).length() / 2;
+		}
+		this.size = 0;
+		this.materialsPerInstance = materialsPerInstance;
+		this.IDs = new long[capacity];
+		this.modelMats = new float[capacity * 16];
+		this.materials = new Material[capacity * materialsPerInstance];
+		this.spheres = new float[capacity * 4];
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// adds an instance with the given materials, and returns its index
+	public int add(long ID, Mat4 modelMat, ArrayList<Material> materials) {
+		if (this.size == this.IDs.length) {
+			int capacity = this.IDs.length * 2;
+			this.IDs = Arrays.copyOf(this.IDs, capacity);
+			this.modelMats = Arrays.copyOf(this.modelMats, capacity * 16);
+			this.materials = Arrays.copyOf(this.materials, capacity * this.materialsPerInstance);
+			this.spheres = Arrays.copyOf(this.spheres, capacity * 4);
+		}
+		int i = this.size++;
+		this.IDs[i] = ID;
+		this.writeModelMat(i, modelMat);
+		for (int j = 0; j < this.materialsPerInstance; j++) {
+			this.materials[i * this.materialsPerInstance + j] = materials.get(j);
+		}
+		this.computeSphere(i);
+		this.changed = true;
+		return i;
+	}
+
+	// removes instance i by moving the last instance into its place. Returns the ID of the instance that was moved, or 0 if
+	// i was the last one.
+	public long remove(int i) {
+		int last = --this.size;
+		this.changed = true;
+		long moved = 0;
+		if (i != last) {
+			moved = this.IDs[last];
+			this.IDs[i] = moved;
+			System.arraycopy(this.modelMats, last * 16, this.modelMats, i * 16, 16);
+			System.arraycopy(this.materials, last * this.materialsPerInstance, this.materials, i * this.materialsPerInstance, this.materialsPerInstance);
+			System.arraycopy(this.spheres, last * 4, this.spheres, i * 4, 4);
+		}
+		this.IDs[last] = 0;
+		Arrays.fill(this.materials, last * this.materialsPerInstance, (last + 1) * this.materialsPerInstance, null);
+		return moved;
+	}
+
+	public boolean hasChanged() {
+		return this.changed;
+	}
+
+	// call after uploading
+	public void clearChanged() {
+		this.changed = false;
+	}
+
+	public long getID(int i) {
+		return this.IDs[i];
+	}
+
+	// a copy of the model matrix of instance i
+	public Mat4 getModelMat(int i) {
+		return this.getModelMat(i, new Mat4());
+	}
+
+	// copies the model matrix of instance i into out, and returns out
+	public Mat4 getModelMat(int i, Mat4 out) {
+		int o = i * 16;
+		for (int col = 0; col < 4; col++) {
+			for (int row = 0; row < 4; row++) {
+				out.mat[row][col] = this.modelMats[o + row + col * 4];
+			}
+		}
+		return out;
+	}
+
+	// the packed model matrices, instance i's start at i * 16
+	public float[] getModelMats() {
+		return this.modelMats;
+	}
+
+	public void setModelMat(int i, Mat4 modelMat) {
+		this.writeModelMat(i, modelMat);
+		this.computeSphere(i);
+		this.changed = true;
+	}
+
+	private void writeModelMat(int i, Mat4 modelMat) {
+		int o = i * 16;
+		for (int col = 0; col < 4; col++) {
+			for (int row = 0; row < 4; row++) {
+				this.modelMats[o + row + col * 4] = modelMat.mat[row][col];
+			}
+		}
+	}
+
+	// the model space sphere moved by the model matrix, with its radius scaled by the largest scale of the matrix
+	private void computeSphere(int i) {
+		float[] m = this.modelMats;
+		int mo = i * 16; // element (row, col) is at mo + row + col * 4
+		int o = i * 4;
+		if (this.radius < 0) {
+			this.spheres[o + 3] = -1;
+			return;
+		}
+		float x = this.centerX, y = this.centerY, z = this.centerZ;
+		this.spheres[o + 0] = m[mo + 0] * x + m[mo + 4] * y + m[mo + 8] * z + m[mo + 12];
+		this.spheres[o + 1] = m[mo + 1] * x + m[mo + 5] * y + m[mo + 9] * z + m[mo + 13];
+		this.spheres[o + 2] = m[mo + 2] * x + m[mo + 6] * y + m[mo + 10] * z + m[mo + 14];
+		float scale = 0;
+		for (int col = 0; col < 3; col++) {
+			int c = mo + col * 4;
+			scale = Math.max(scale, m[c + 0] * m[c + 0] + m[c + 1] * m[c + 1] + m[c + 2] * m[c + 2]);
+		}
+		this.spheres[o + 3] = this.radius * (float) Math.sqrt(scale);
+	}
+
+	// world space bounding sphere of instance i, with a negative radius if it has none
+	public Vec4 getSphere(int i) {
+		int o = i * 4;
+		return new Vec4(this.spheres[o + 0], this.spheres[o + 1], this.spheres[o + 2], this.spheres[o + 3]);
+	}
+
+	/**
+	 * Appends the index of every instance whose bounding sphere intersects the frustum to out, in order, and returns how
+	 * many there were.
+	 *
+	 * @param frustum
+	 * @param out
+	 * @return
+	 */
+	public int cull(Frustum frustum, IntList out) {
+		int start = out.size();
+		for (int i = 0; i < this.size; i++) {
+			int o = i * 4;
+			float r = this.spheres[o + 3];
+			if (r < 0 || frustum.intersectsSphere(this.spheres[o + 0], this.spheres[o + 1], this.spheres[o + 2], r)) {
+				out.add(i);
+			}
+		}
+		return out.size() - start;
+	}
+
+	public int getMaterialsPerInstance() {
+		return this.materialsPerInstance;
+	}
+
+	public Material getMaterial(int i, int mesh) {
+		return this.materials[i * this.materialsPerInstance + mesh];
+	}
+
+	public void setMaterial(int i, int mesh, Material material) {
+		this.materials[i * this.materialsPerInstance + mesh] = material;
+		this.changed = true;
+	}
+
+}
@@ -0,0 +1,189 @@
+package model;
+
+import java.util.Arrays;
+
+public class InstanceRegistry {
+
+	// slot map of every model instance. Each instance gets a slot, and the per instance data lives in flat arrays indexed
+	// by slot, so allocating, freeing and looking up an instance are all O(1), and nothing gets boxed.
+
+	// the ID handed out for an instance is generation * GENERATION_STRIDE + color ID. The color ID is the slot written as
+	// three base 1000 digits, one per color channel, so it's exactly what Model.convertIDToRGB() and convertRGBToID()
+	// have always used for picking. The generation counts how many times the slot has been freed, so an ID that outlives
+	// its instance stops being valid instead of silently referring to whatever takes over the slot next.
+
+	// slot 0 is never used, so ID 0 still means no instance.
+
+	public static final long GENERATION_STRIDE = 1000000000l;
+	public static final int MAX_SLOTS = 1 << 24; // one slot per color
+
+	private static final int NULL_SLOT = -1;
+
+	private int[] generations;
+	private int[] scenes;
+	private Model[] models;
+	private int[] proxies; // proxy in the scene's collision tree, or DynamicAABBTree.NULL_NODE
+	private int[] indices; // index in the model's InstanceList for the scene
+	private boolean[] alive;
+
+	private int[] freeSlots; // stack of freed slots
+	private int freeCount;
+	private int slotCount; // slots [1, slotCount) have been handed out at least once
+	private int size;
+
+	public InstanceRegistry() {
+		int capacity = 64;
+		this.generations = new int[capacity];
+		this.scenes = new int[capacity];
+		this.models = new Model[capacity];
+		this.proxies = new int[capacity];
+		this.indices = new int[capacity];
+		this.alive = new boolean[capacity];
+		this.freeSlots = new int[capacity];
+		this.freeCount = 0;
+		this.slotCount = 1;
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// slots in [1, getSlotCount()) may hold an instance
+	public int getSlotCount() {
+		return this.slotCount;
+	}
+
+	/**
+	 * Creates an instance, and returns its ID. Returns 0 if every slot is taken.
+	 *
+	 * @param model
+	 * @param scene
+	 * @return
+	 */
+	public long allocate(Model model, int scene) {
+		int slot;
+		if (this.freeCount != 0) {
+			slot = this.freeSlots[--this.freeCount];
+		}
+		else {
+			if (this.slotCount == MAX_SLOTS) {
+				System.err.println("Out of model instance slots");
+				return 0;
+			}
+			slot = this.slotCount++;
+			if (slot == this.generations.length) {
+				int capacity = Math.min(MAX_SLOTS, this.generations.length * 2);
+				this.generations = Arrays.copyOf(this.generations, capacity);
+				this.scenes = Arrays.copyOf(this.scenes, capacity);
+				this.models = Arrays.copyOf(this.models, capacity);
+				this.proxies = Arrays.copyOf(this.proxies, capacity);
+				this.indices = Arrays.copyOf(this.indices, capacity);
+				this.alive = Arrays.copyOf(this.alive, capacity);
+			}
+		}
+		this.scenes[slot] = scene;
+		this.models[slot] = model;
+		this.proxies[slot] = DynamicAABBTree.NULL_NODE;
+		this.indices[slot] = -1;
+		this.alive[slot] = true;
+		this.size++;
+		return makeID(this.generations[slot], slot);
+	}
+
+	// frees the instance, its ID and every copy of it stop being valid
+	public void free(long ID) {
+		int slot = this.getSlot(ID);
+		if (slot == NULL_SLOT) {
+			return;
+		}
+		this.alive[slot] = false;
+		this.models[slot] = null;
+		this.generations[slot] = (this.generations[slot] + 1) & Integer.MAX_VALUE;
+		if (this.freeCount == this.freeSlots.length) {
+			this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+		}
+		this.freeSlots[this.freeCount++] = slot;
+		this.size--;
+	}
+
+	public boolean contains(long ID) {
+		return this.getSlot(ID) != NULL_SLOT;
+	}
+
+	// returns the slot of the instance, or -1 if the ID doesn't refer to a live instance
+	public int getSlot(long ID) {
+		if (ID <= 0) {
+			return NULL_SLOT;
+		}
+		int slot = colorIDToSlot(ID % GENERATION_STRIDE);
+		if (slot <= 0 || slot >= this.slotCount || !this.alive[slot] || this.generations[slot] != ID / GENERATION_STRIDE) {
+			return NULL_SLOT;
+		}
+		return slot;
+	}
+
+	// the ID of whatever instance is in the slot the color ID refers to, or 0 if there's none
+	public long getIDFromColorID(long colorID) {
+		int slot = colorIDToSlot(colorID);
+		if (slot <= 0 || slot >= this.slotCount || !this.alive[slot]) {
+			return 0;
+		}
+		return makeID(this.generations[slot], slot);
+	}
+
+	// the per slot data. The slot has to hold a live instance
+
+	public long getID(int slot) {
+		return makeID(this.generations[slot], slot);
+	}
+
+	public boolean isAlive(int slot) {
+		return this.alive[slot];
+	}
+
+	public int getScene(int slot) {
+		return this.scenes[slot];
+	}
+
+	public Model getModel(int slot) {
+		return this.models[slot];
+	}
+
+	public int getProxy(int slot) {
+		return this.proxies[slot];
+	}
+
+	public void setProxy(int slot, int proxy) {
+		this.proxies[slot] = proxy;
+	}
+
+	public int getIndex(int slot) {
+		return this.indices[slot];
+	}
+
+	public void setIndex(int slot, int index) {
+		this.indices[slot] = index;
+	}
+
+	private static long makeID(int generation, int slot) {
+		return generation * GENERATION_STRIDE + slotToColorID(slot);
+	}
+
+	// one byte of the slot per base 1000 digit, the same layout as Model.convertIDToRGB()
+	private static long slotToColorID(int slot) {
+		return ((slot >> 16) & 0xFF) * 1000000l + ((slot >> 8) & 0xFF) * 1000l + (slot & 0xFF);
+	}
+
+	// returns -1 if the color ID doesn't come from a slot, like a digit above 255
+	private static int colorIDToSlot(long colorID) {
+		long r = (colorID / 1000000) % 1000;
+		long g = (colorID / 1000) % 1000;
+		long b = colorID % 1000;
+		if (colorID < 0 || colorID >= 1000000000l || r > 255 || g > 255 || b > 255) {
+			return NULL_SLOT;
+		}
+		return (int) ((r << 16) | (g << 8) | b);
+	}
+
+}
@@ -15,6 +15,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.assimp.AIColor4D;
@@ -28,18 +30,22 @@ import org.lwjgl.assimp.AITexture;
 import org.lwjgl.assimp.AIVector2D;
 import org.lwjgl.assimp.AIVector3D;
 
+import graphics.InstanceData;
 import graphics.TextureMaterial;
 import graphics.Material;
 import graphics.Shader;
 import graphics.Texture;
 import graphics.VertexArray;
 import util.FileUtils;
+import util.Frustum;
 import util.GraphicsTools;
+import util.IntList;
 import util.Mat4;
 import util.SystemUtils;
 import util.TargaReader;
 import util.Vec2;
 import util.Vec3;
+import util.Vec4;
 
 public class Model {
 	// always instanced rendering
@@ -56,20 +62,33 @@ public class Model {
 	public static final TextureMaterial DEFAULT_TEXTURE_MATERIAL = TextureMaterial.defaultTextureMaterial();
 
 	private static HashSet<Model> models = new HashSet<>();
-	private static HashSet<Long> modelInstanceIDs = new HashSet<>();
-	private static HashMap<Long, Integer> IDtoScene = new HashMap<>(); // which scene each instance is in
-	private static HashMap<Long, Model> IDtoModel = new HashMap<>();
+	private static InstanceRegistry instances = new InstanceRegistry(); // which model and scene each instance is in
 
-	// for each scene, which model instances have active collision
-	private static HashMap<Integer, HashSet<Long>> activeCollisionMeshes = new HashMap<>();
+	// for each scene, a broadphase tree over the world space bounds of the model instances that have active collision
+	private static HashMap<Integer, DynamicAABBTree> collisionTrees = new HashMap<>();
+	// the proxy of each instance in its scene's tree is kept in instances
 
-	// first, specify which scene
-	// K : model instance ID, Can be translated to a color to draw
-	// V : info for that model instance.
-	private HashMap<Integer, HashMap<Long, Mat4>> modelMats;
-	private HashMap<Integer, HashMap<Long, ArrayList<Material>>> materials;
+	private static IntList visibleInstances = new IntList(); // scratch for culling, rendering only happens on one thread
 
-	private ArrayList<Integer> scenesNeedingUpdates;
+	// which models renderModels() draws
+	public static final int RENDER_ALL = 0;
+	public static final int RENDER_STATIC = 1;
+	public static final int RENDER_DYNAMIC = 2;
+
+	// static models are things that stay put once they're placed, like planets, so anything drawn from only static models
+	// can be cached, like the far shadow cascades in PerspectiveScreen. staticVersion changes whenever a static model
+	// changes, so those caches can tell when they're out of date.
+	private boolean isStatic = false;
+	private static int staticVersion = 0;
+
+	// world space bounding spheres of the dynamic instances that were added, moved, or removed in each scene since its last
+	// clearMovedCasters(), so cached shadow maps can tell whether anything changed near them. A negative radius means
+	// the whole scene counts as changed, which is also what happens once too many pile up.
+	private static HashMap<Integer, ArrayList<Vec4>> movedCasters = new HashMap<>();
+	private static final int MAX_MOVED_CASTERS = 1024;
+
+	// the instances of this model in each scene, a scene only has a list while it has instances
+	private HashMap<Integer, InstanceList> sceneInstances;
 
 	// per model 3D vertex information
 	protected ArrayList<VertexArray> meshes;
@@ -84,6 +103,9 @@ public class Model {
 	// triangles.
 	private ArrayList<CollisionMesh> collisionMeshes;
 
+	// model space bounds over all the collision meshes
+	private Vec3 collisionBoundsMin, collisionBoundsMax;
+
 	public Model() {
 		this.meshes = new ArrayList<>();
 		this.defaultMaterials = new ArrayList<>();
@@ -109,27 +131,28 @@ public class Model {
 
 	private void init() {
 		this.collisionMeshes = new ArrayList<>();
+		this.collisionBoundsMin = new Vec3(Float.MAX_VALUE);
+		this.collisionBoundsMax = new Vec3(-Float.MAX_VALUE);
 		for (VertexArray vao : meshes) {
-			this.collisionMeshes.add(new CollisionMesh(vao));
-		}
-		this.scenesNeedingUpdates = new ArrayList<Integer>();
-		this.modelMats = new HashMap<Integer, HashMap<Long, Mat4>>();
-		this.materials = new HashMap<Integer, HashMap<Long, ArrayList<Material>>>();
+			CollisionMesh c = new CollisionMesh(vao);
+			this.collisionMeshes.add(c);
+			this.collisionBoundsMin.x = Math.min(this.collisionBoundsMin.x, c.getBoundsMin().x);
+			this.collisionBoundsMin.y = Math.min(this.collisionBoundsMin.y, c.getBoundsMin().y);
+			this.collisionBoundsMin.z = Math.min(this.collisionBoundsMin.z, c.getBoundsMin().z);
+			this.collisionBoundsMax.x = Math.max(this.collisionBoundsMax.x, c.getBoundsMax().x);
+			this.collisionBoundsMax.y = Math.max(this.collisionBoundsMax.y, c.getBoundsMax().y);
+			this.collisionBoundsMax.z = Math.max(this.collisionBoundsMax.z, c.getBoundsMax().z);
+		}
+		this.sceneInstances = new HashMap<Integer, InstanceList>();
 		models.add(this);
 	}
 
-	public static long generateNewID() {
-		long ans = 0;
-		while (ans == 0 || modelInstanceIDs.contains(ans)) {
-			ans = (long) (Math.random() * 256) + (long) (Math.random() * 256) * 1000l + (long) (Math.random() * 256) * 1000000l;
-		}
-		return ans;
-	}
-
+	// the color only holds the slot of an instance, see InstanceRegistry. Returns the ID of the instance in that slot, or 0
 	public static long convertRGBToID(Vec3 rgb) {
-		return (long) rgb.x * 1000000l + (long) rgb.y * 1000l + (long) rgb.z;
+		return instances.getIDFromColorID((long) rgb.x * 1000000l + (long) rgb.y * 1000l + (long) rgb.z);
 	}
 
+	// only the slot is encoded, the generation is above the three digits and gets dropped
 	public static Vec3 convertIDToRGB(long ID) {
 		return new Vec3((ID / 1000000) % 1000, (ID / 1000) % 1000, ID % 1000);
 	}
@@ -317,28 +340,30 @@ public class Model {
 	}
 
 	public static int getScene(long ID) {
-		return IDtoScene.get(ID);
+		return instances.getScene(instances.getSlot(ID));
 	}
 
+	// returns null if the instance doesn't exist
 	public static Model getModel(long ID) {
-		return IDtoModel.get(ID);
+		int slot = instances.getSlot(ID);
+		return slot == -1 ? null : instances.getModel(slot);
 	}
 
 	// creates a new instance, and returns the id associated with that instance
 	public static long addInstance(Model model, Mat4 mat4, int scene) {
-		long ID = generateNewID();
-		if (model.modelMats.get(scene) == null) {
-			model.modelMats.put(scene, new HashMap<Long, Mat4>());
+		long ID = instances.allocate(model, scene);
+		if (ID == 0) {
+			return 0;
 		}
-		if (model.materials.get(scene) == null) {
-			model.materials.put(scene, new HashMap<Long, ArrayList<Material>>());
+		InstanceList list = model.sceneInstances.get(scene);
+		if (list == null) {
+			list = new InstanceList(model.meshes.size(), model.collisionBoundsMin, model.collisionBoundsMax);
+			model.sceneInstances.put(scene, list);
 		}
-		IDtoScene.put(ID, scene);
-		IDtoModel.put(ID, model);
-		modelInstanceIDs.add(ID);
-		model.modelMats.get(scene).put(ID, mat4);
-		model.materials.get(scene).put(ID, new ArrayList<Material>(model.defaultMaterials));
-		model.scenesNeedingUpdates.add(scene);
+		int index = list.add(ID, mat4, model.defaultMaterials);
+		instances.setIndex(instances.getSlot(ID), index);
+		model.markGeometryChanged();
+		model.markCasterMoved(scene, list, index);
 
 		System.out.println("ADD MODEL INSTANCE " + ID);
 
@@ -346,54 +371,67 @@ public class Model {
 	}
 
 	public static void removeInstance(long ID) {
-		Model model = IDtoModel.get(ID);
-		if (model == null) { // couldn't find model to remove
+		int slot = instances.getSlot(ID);
+		if (slot == -1) { // couldn't find model to remove
 			// could happen if you try to kill an entity after removing all models from a scene
 			return;
 		}
-		int scene = IDtoScene.get(ID);
+		Model model = instances.getModel(slot);
+		int scene = instances.getScene(slot);
 
-		model.modelMats.get(scene).remove(ID);
-		if (model.modelMats.get(scene).size() == 0) {
-			model.modelMats.remove(scene);
+		// the last instance of the list takes its place
+		InstanceList list = model.sceneInstances.get(scene);
+		int index = instances.getIndex(slot);
+		model.markCasterMoved(scene, list, index);
+		long moved = list.remove(index);
+		if (moved != 0) {
+			instances.setIndex(instances.getSlot(moved), index);
 		}
-
-		model.materials.get(scene).remove(ID);
-		if (model.materials.get(scene).size() == 0) {
-			model.materials.remove(scene);
+		if (list.size() == 0) {
+			model.sceneInstances.remove(scene);
 		}
 
 		deactivateCollisionMesh(ID);
-		IDtoScene.remove(ID);
-		IDtoModel.remove(ID);
-		modelInstanceIDs.remove(ID);
-
-		if (model.modelMats.containsKey(scene)) {
-			model.scenesNeedingUpdates.add(scene);
-		}
+		instances.free(ID);
+		model.markGeometryChanged();
 
 		System.out.println("REMOVE MODEL INSTANCE " + ID);
 	}
 
 	public static void updateInstance(long ID, Mat4 mat4) {
-		Model model = IDtoModel.get(ID);
-		if (IDtoScene.get(ID) == null) {
+		int slot = instances.getSlot(ID);
+		if (slot == -1) {
 			System.out.println(ID);
+			return;
+		}
+		Model model = instances.getModel(slot);
+		int scene = instances.getScene(slot);
+		InstanceList list = model.sceneInstances.get(scene);
+		int index = instances.getIndex(slot);
+		model.markCasterMoved(scene, list, index); // it's not where it was anymore, and now it's somewhere else
+		list.setModelMat(index, mat4);
+		model.markCasterMoved(scene, list, index);
+		model.markGeometryChanged();
+
+		int proxy = instances.getProxy(slot);
+		if (proxy != DynamicAABBTree.NULL_NODE) {
+			collisionTrees.get(scene).moveProxy(proxy, model.computeWorldBounds(mat4));
 		}
-		int scene = IDtoScene.get(ID);
-		model.modelMats.get(scene).put(ID, mat4);
-		model.scenesNeedingUpdates.add(scene);
 	}
 
 	public static void updateInstance(long ID, Material material, int index) {
-		Model model = IDtoModel.get(ID);
-		int scene = IDtoScene.get(ID);
-		if (model.materials.get(scene).get(ID).size() <= index) {
+		int slot = instances.getSlot(ID);
+		if (slot == -1) {
+			return;
+		}
+		Model model = instances.getModel(slot);
+		int scene = instances.getScene(slot);
+		InstanceList list = model.sceneInstances.get(scene);
+		if (list.getMaterialsPerInstance() <= index) {
 			System.err.println("Material index " + index + " out of bounds");
 			return;
 		}
-		model.materials.get(scene).get(ID).set(index, new Material(material));
-		model.scenesNeedingUpdates.add(scene);
+		list.setMaterial(instances.getIndex(slot), index, new Material(material));
 	}
 
 	public static void updateInstance(long ID, Material material) {
@@ -401,143 +439,308 @@ public class Model {
 	}
 
 	public static void activateCollisionMesh(long ID) {
-		if (!modelInstanceIDs.contains(ID)) {
+		int slot = instances.getSlot(ID);
+		if (slot == -1 || instances.getProxy(slot) != DynamicAABBTree.NULL_NODE) {
 			return;
 		}
-		int scene = IDtoScene.get(ID);
-		if (activeCollisionMeshes.get(scene) == null) {
-			activeCollisionMeshes.put(scene, new HashSet<Long>());
+		int scene = instances.getScene(slot);
+		Model model = instances.getModel(slot);
+		float[] bounds = model.computeWorldBounds(getModelMat(slot));
+		if (bounds == null) { // no collision geometry, nothing to hit
+			return;
 		}
-		activeCollisionMeshes.get(scene).add(ID);
+		if (collisionTrees.get(scene) == null) {
+			collisionTrees.put(scene, new DynamicAABBTree());
+		}
+		instances.setProxy(slot, collisionTrees.get(scene).createProxy(ID, bounds));
 	}
 
 	public static void deactivateCollisionMesh(long ID) {
-		if (!IDtoScene.containsKey(ID)) {
-			return;
-		}
-		int scene = IDtoScene.get(ID);
-		if (activeCollisionMeshes.get(scene) == null) {
+		int slot = instances.getSlot(ID);
+		if (slot == -1 || instances.getProxy(slot) == DynamicAABBTree.NULL_NODE) {
 			return;
 		}
-		activeCollisionMeshes.get(scene).remove(ID);
-		if (activeCollisionMeshes.get(scene).size() == 0) {
-			activeCollisionMeshes.remove(scene);
-		}
+		collisionTrees.get(instances.getScene(slot)).destroyProxy(instances.getProxy(slot));
+		instances.setProxy(slot, DynamicAABBTree.NULL_NODE);
+	}
+
+	// returns the world space bounds of this model's collision meshes under the given transform, null if there's no collision geometry.
+	// minX, minY, minZ, maxX, maxY, maxZ
+	private float[] computeWorldBounds(Mat4 transform) {
+		Vec3 min = this.collisionBoundsMin;
+		Vec3 max = this.collisionBoundsMax;
+		if (min.x > max.x) {
+			return null;
+		}
+		float[] bounds = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = 0; i < 8; i++) {
+			Vec3 corner = new Vec3((i & 1) == 0 ? min.x : max.x, (i & 2) == 0 ? min.y : max.y, (i & 4) == 0 ? min.z : max.z);
+			Vec3 c = transform.mul(corner, 1f);
+			bounds[0] = Math.min(bounds[0], c.x);
+			bounds[1] = Math.min(bounds[1], c.y);
+			bounds[2] = Math.min(bounds[2], c.z);
+			bounds[3] = Math.max(bounds[3], c.x);
+			bounds[4] = Math.max(bounds[4], c.y);
+			bounds[5] = Math.max(bounds[5], c.z);
+		}
+		return bounds;
+	}
+
+	// a copy of the model matrix of the instance in the slot, the slot has to hold a live instance
+	private static Mat4 getModelMat(int slot) {
+		return getModelMat(slot, new Mat4());
+	}
+
+	// same as above, but copied into out, so that queries can use the scratch matrix of their CollisionHits
+	private static Mat4 getModelMat(int slot, Mat4 out) {
+		return instances.getModel(slot).sceneInstances.get(instances.getScene(slot)).getModelMat(instances.getIndex(slot), out);
 	}
 
 	public static void updateModels() {
 		for (Model m : models) {
-			if (m.scenesNeedingUpdates.size() != 0) {
-				m.updateModelMats();
-			}
+			m.updateModelMats();
 		}
 	}
 
 	private void updateModelMats() {
-		if (this.scenesNeedingUpdates.size() == 0) {
-			return;
-		}
-
-		for (int scene : scenesNeedingUpdates) {
-			if (this.modelMats.get(scene) == null) {
+		for (Map.Entry<Integer, InstanceList> e : this.sceneInstances.entrySet()) {
+			InstanceList list = e.getValue();
+			if (!list.hasChanged()) {
 				continue;
 			}
+			this.uploadInstances(e.getKey(), list);
+			list.clearChanged();
+		}
+	}
 
-			// which vertex array, model instance ID, material for the model instance ID for
-			// that vertex array.
-			ArrayList<HashMap<Long, Material>> instancedMaterials = new ArrayList<>();
-			int vertexArrayAmt = this.meshes.size();
-			for (int i = 0; i < vertexArrayAmt; i++) {
-				instancedMaterials.add(new HashMap<Long, Material>());
-			}
+	//sends the instances of one scene to the meshes. 
+	//models that draw vertex arrays outside of meshes can override this to keep them up to date as well.
+	protected void uploadInstances(int scene, InstanceList list) {
+		for (int i = 0; i < this.meshes.size(); i++) {
+			uploadInstances(scene, list, this.meshes.get(i), i);
+		}
+	}
 
-			for (long ID : this.modelMats.get(scene).keySet()) {
-				ArrayList<Material> matArr = this.materials.get(scene).get(ID);
-				if (matArr == null) {
-					System.out.println("DIDNT SET MATERIALS " + ID);
-					matArr = this.defaultMaterials;
-				}
-				for (int i = 0; i < vertexArrayAmt; i++) {
-					instancedMaterials.get(i).put(ID, matArr.get(i));
-				}
-			}
+	//writes the instances into the vertex array's instance buffers for the scene, with the materials for the given mesh.
+	//only what actually changed since the last upload gets sent to the gpu, see InstanceData.
+	protected static void uploadInstances(int scene, InstanceList list, VertexArray v, int mesh) {
+		InstanceData data = v.getInstanceData(scene);
+		int n = list.size();
+		data.setSize(n);
+		for (int i = 0; i < n; i++) {
+			writeInstance(list, i, mesh, data, i);
+		}
+		v.uploadInstances(scene);
+	}
 
-			for (int i = 0; i < this.meshes.size(); i++) {
-				VertexArray v = this.meshes.get(i);
-				v.updateInstances(this.modelMats.get(scene), instancedMaterials.get(i), scene);
-			}
+	//same as above, but only the instances in visible, into one of the vertex array's views of the scene.
+	protected static void uploadInstances(int scene, InstanceList list, IntList visible, VertexArray v, int mesh, int view) {
+		InstanceData data = v.getInstanceData(scene, view);
+		int n = visible.size();
+		data.setSize(n);
+		for (int i = 0; i < n; i++) {
+			writeInstance(list, visible.get(i), mesh, data, i);
 		}
+		v.uploadInstances(scene, view);
+	}
+
+	private static void writeInstance(InstanceList list, int src, int mesh, InstanceData data, int dst) {
+		long ID = list.getID(src);
+		data.setModelMat(dst, list.getModelMats(), src * 16);
+		data.setColorID(dst, (ID / 1000000) % 1000, (ID / 1000) % 1000, ID % 1000); // same as convertIDToRGB()
+		data.setMaterial(dst, list.getMaterial(src, mesh));
+	}
+
+	// the instances of this model in the scene, null if there aren't any
+	protected InstanceList getInstances(int scene) {
+		return this.sceneInstances.get(scene);
+	}
+
+	protected Set<Integer> getInstancedScenes() {
+		return this.sceneInstances.keySet();
+	}
+
+	protected boolean hasInstances(int scene) {
+		return this.sceneInstances.get(scene) != null;
+	}
 
-		this.scenesNeedingUpdates.clear();
+	// collision queries against every instance in a scene. The hits are appended to a caller owned buffer, tagged with the
+	// model instance and collision mesh they came from. Each instance is tested through its model, so models with their own
+	// collider, like planets, answer these the same way everywhere.
+
+	public static int rayIntersect(int scene, Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		DynamicAABBTree tree = collisionTrees.get(scene);
+		if (tree == null) {
+			return 0;
+		}
+		int start = hits.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		tree.queryRay(ray_origin.x, ray_origin.y, ray_origin.z, ray_dir.x, ray_dir.y, ray_dir.z, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			long ID = tree.getID(proxies.get(i));
+			Model model = getModel(ID);
+			model.intersectRay(ID, getModelMat(instances.getSlot(ID), hits.transform), ray_origin, ray_dir, hits);
+		}
+		return hits.size() - start;
 	}
 
-	public static ArrayList<Vec3[]> rayIntersect(int scene, Vec3 ray_origin, Vec3 ray_dir) {
-		ArrayList<Vec3[]> result = new ArrayList<>();
-		if (activeCollisionMeshes.get(scene) == null) {
-			return result;
+	// leaves only the closest hit along the ray in hits, meant for bullets. hits should either be empty, or hold one hit from
+	// a previous closest query. Returns true if hits was changed.
+	public static boolean rayIntersectClosest(int scene, Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		DynamicAABBTree tree = collisionTrees.get(scene);
+		if (tree == null) {
+			return false;
+		}
+		boolean changed = false;
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		tree.queryRay(ray_origin.x, ray_origin.y, ray_origin.z, ray_dir.x, ray_dir.y, ray_dir.z, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			long ID = tree.getID(proxies.get(i));
+			Model model = getModel(ID);
+			if (model.intersectRayClosest(ID, getModelMat(instances.getSlot(ID), hits.transform), ray_origin, ray_dir, hits)) {
+				changed = true;
+			}
 		}
-		for (long ID : activeCollisionMeshes.get(scene)) {
-			if (!Model.modelInstanceIDs.contains(ID)) {
-				System.out.println("something is wrong " + ID);
+		return changed;
+	}
+
+	public static int sphereIntersect(int scene, Vec3 sphere_origin, float sphere_radius, CollisionHits hits) {
+		DynamicAABBTree tree = collisionTrees.get(scene);
+		if (tree == null) {
+			return 0;
+		}
+		int start = hits.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		tree.queryBox(sphere_origin.x - sphere_radius, sphere_origin.y - sphere_radius, sphere_origin.z - sphere_radius, sphere_origin.x + sphere_radius, sphere_origin.y + sphere_radius, sphere_origin.z + sphere_radius, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			long ID = tree.getID(proxies.get(i));
+			Model model = getModel(ID);
+			model.intersectSphere(ID, getModelMat(instances.getSlot(ID), hits.transform), sphere_origin, sphere_radius, hits);
+		}
+		return hits.size() - start;
+	}
+
+	public static int capsuleIntersect(int scene, Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, CollisionHits hits) {
+		DynamicAABBTree tree = collisionTrees.get(scene);
+		if (tree == null) {
+			return 0;
+		}
+		int start = hits.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		float minX = Math.min(capsule_bottom.x, capsule_top.x) - capsule_radius;
+		float minY = Math.min(capsule_bottom.y, capsule_top.y) - capsule_radius;
+		float minZ = Math.min(capsule_bottom.z, capsule_top.z) - capsule_radius;
+		float maxX = Math.max(capsule_bottom.x, capsule_top.x) + capsule_radius;
+		float maxY = Math.max(capsule_bottom.y, capsule_top.y) + capsule_radius;
+		float maxZ = Math.max(capsule_bottom.z, capsule_top.z) + capsule_radius;
+		tree.queryBox(minX, minY, minZ, maxX, maxY, maxZ, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			long ID = tree.getID(proxies.get(i));
+			Model model = getModel(ID);
+			model.intersectCapsule(ID, getModelMat(instances.getSlot(ID), hits.transform), capsule_bottom, capsule_top, capsule_radius, hits);
+		}
+		return hits.size() - start;
+	}
+
+	// appends every collision triangle in the scene that overlaps the box to out, in world space, and returns how many were
+	// added. For things that test the same area many times in a row, like player movement, this way the broadphase and the
+	// bvhs are only walked once.
+	public static int collectTriangles(int scene, float minX, float minY, float minZ, float maxX, float maxY, float maxZ, CollisionTriangles out, CollisionHits hits) {
+		DynamicAABBTree tree = collisionTrees.get(scene);
+		if (tree == null) {
+			return 0;
+		}
+		int start = out.size();
+		IntList proxies = hits.proxies;
+		proxies.clear();
+		tree.queryBox(minX, minY, minZ, maxX, maxY, maxZ, proxies, hits.treeStack);
+		for (int i = 0; i < proxies.size(); i++) {
+			long ID = tree.getID(proxies.get(i));
+			Model model = getModel(ID);
+			model.collectTriangles(ID, getModelMat(instances.getSlot(ID), hits.transform), minX, minY, minZ, maxX, maxY, maxZ, out, hits);
+		}
+		return out.size() - start;
+	}
+
+	// copies the active collision instances of a scene, so that they can be queried from other threads, see CollisionBatch.
+	// the snapshot doesn't see anything that happens to the scene after it's taken.
+	public static CollisionSnapshot getCollisionSnapshot(int scene) {
+		DynamicAABBTree tree = collisionTrees.get(scene);
+		if (tree == null) {
+			return new CollisionSnapshot(null, null, null);
+		}
+		DynamicAABBTree treeCopy = new DynamicAABBTree(tree);
+		Model[] proxyModels = new Model[treeCopy.getNodeCapacity()];
+		Mat4[] proxyTransforms = new Mat4[treeCopy.getNodeCapacity()];
+		for (int slot = 1; slot < instances.getSlotCount(); slot++) {
+			if (!instances.isAlive(slot) || instances.getScene(slot) != scene || instances.getProxy(slot) == DynamicAABBTree.NULL_NODE) {
 				continue;
 			}
-			Model model = IDtoModel.get(ID);
-			Mat4 transform = model.modelMats.get(scene).get(ID);
-			for (CollisionMesh c : model.collisionMeshes) {
-				result.addAll(c.rayIntersect(ray_origin, ray_dir, transform));
-			}
+			int proxy = instances.getProxy(slot);
+			proxyModels[proxy] = instances.getModel(slot);
+			proxyTransforms[proxy] = getModelMat(slot);
 		}
-		return result;
+		return new CollisionSnapshot(treeCopy, proxyModels, proxyTransforms);
 	}
 
-	public static ArrayList<Vec3[]> sphereIntersect(int scene, Vec3 sphere_origin, float sphere_radius) {
-		ArrayList<Vec3[]> result = new ArrayList<>();
-		if (activeCollisionMeshes.get(scene) == null) {
-			return result;
+	// tests one instance of this model for the queries above, and tags the hits with where they came from.
+	// by default every collision mesh is tested, models that have a cheaper way to collide override these.
+
+	protected void intersectRay(long ID, Mat4 transform, Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		for (int j = 0; j < this.collisionMeshes.size(); j++) {
+			int meshStart = hits.size();
+			this.collisionMeshes.get(j).rayIntersect(ray_origin, ray_dir, transform, hits);
+			hits.setSource(meshStart, j, ID);
 		}
-		for (long ID : activeCollisionMeshes.get(scene)) {
-			if (!Model.modelInstanceIDs.contains(ID)) {
-				System.out.println("something is wrong " + ID);
-				continue;
-			}
-			Model model = IDtoModel.get(ID);
-			Mat4 transform = model.modelMats.get(scene).get(ID);
-			for (CollisionMesh c : model.collisionMeshes) {
-				result.addAll(c.sphereIntersect(sphere_origin, sphere_radius, transform));
+	}
+
+	protected boolean intersectRayClosest(long ID, Mat4 transform, Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		boolean changed = false;
+		for (int j = 0; j < this.collisionMeshes.size(); j++) {
+			if (this.collisionMeshes.get(j).rayIntersectClosest(ray_origin, ray_dir, transform, hits)) {
+				hits.setSource(0, j, ID);
+				changed = true;
 			}
 		}
-		return result;
+		return changed;
 	}
 
-	public static ArrayList<Vec3[]> capsuleIntersect(int scene, Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius) {
-		ArrayList<Vec3[]> result = new ArrayList<>();
-		if (activeCollisionMeshes.get(scene) == null) {
-			return result;
+	protected void intersectSphere(long ID, Mat4 transform, Vec3 sphere_origin, float sphere_radius, CollisionHits hits) {
+		for (int j = 0; j < this.collisionMeshes.size(); j++) {
+			int meshStart = hits.size();
+			this.collisionMeshes.get(j).sphereIntersect(sphere_origin, sphere_radius, transform, hits);
+			hits.setSource(meshStart, j, ID);
 		}
-		for (long ID : activeCollisionMeshes.get(scene)) {
-			if (!Model.modelInstanceIDs.contains(ID)) {
-				System.out.println("something is wrong " + ID);
-				continue;
-			}
-			Model model = IDtoModel.get(ID);
-			Mat4 transform = model.modelMats.get(scene).get(ID);
-			for (CollisionMesh c : model.collisionMeshes) {
-				result.addAll(c.capsuleIntersect(capsule_bottom, capsule_top, capsule_radius, transform));
-			}
+	}
+
+	protected void intersectCapsule(long ID, Mat4 transform, Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, CollisionHits hits) {
+		for (int j = 0; j < this.collisionMeshes.size(); j++) {
+			int meshStart = hits.size();
+			this.collisionMeshes.get(j).capsuleIntersect(capsule_bottom, capsule_top, capsule_radius, transform, hits);
+			hits.setSource(meshStart, j, ID);
+		}
+	}
+
+	protected void collectTriangles(long ID, Mat4 transform, float minX, float minY, float minZ, float maxX, float maxY, float maxZ, CollisionTriangles out, CollisionHits hits) {
+		for (int j = 0; j < this.collisionMeshes.size(); j++) {
+			this.collisionMeshes.get(j).collectTriangles(minX, minY, minZ, maxX, maxY, maxZ, transform, out, hits);
 		}
-		return result;
 	}
 
 	// removes all model instances from the given scene.
 	public static void removeInstancesFromScene(int scene) {
 		for (Model m : models) {
-			if (m.modelMats.get(scene) == null) {
+			InstanceList list = m.sceneInstances.get(scene);
+			if (list == null) {
 				continue;
 			}
-			ArrayList<Long> instanceIDs = new ArrayList<>();
-			instanceIDs.addAll(m.modelMats.get(scene).keySet());
-			for (long id : instanceIDs) {
-				Model.removeInstance(id);
+			// removing from the back, so nothing has to be moved
+			for (int i = list.size() - 1; i >= 0; i--) {
+				Model.removeInstance(list.getID(i));
 			}
 		}
 	}
@@ -548,36 +751,173 @@ public class Model {
 		}
 	}
 
-	protected void render(int scene) {
-		if (modelMats.get(scene) == null) { // check whether or not this model actually has any instances in the
-			// specified scene
+	/**
+	 * Only draws the instances whose bounds intersect the frustum. Each pass that culls should use its own view, a
+	 * number above VertexArray.ALL_INSTANCES, so the instances one pass sees don't have to be re-uploaded every time
+	 * another pass sees different ones.
+	 *
+	 * @param scene
+	 * @param frustum
+	 * @param view
+	 */
+	public static void renderModels(int scene, Frustum frustum, int view) {
+		renderModels(scene, frustum, view, RENDER_ALL);
+	}
+
+	// which is one of RENDER_ALL, RENDER_STATIC, or RENDER_DYNAMIC
+	public static void renderModels(int scene, Frustum frustum, int view, int which) {
+		for (Model m : models) {
+			if ((which == RENDER_STATIC && !m.isStatic) || (which == RENDER_DYNAMIC && m.isStatic)) {
+				continue;
+			}
+			m.render(scene, frustum, view);
+		}
+	}
+
+	public void setStatic(boolean b) {
+		if (this.isStatic != b) {
+			staticVersion++;
+		}
+		this.isStatic = b;
+	}
+
+	public boolean isStatic() {
+		return this.isStatic;
+	}
+
+	public static int getStaticVersion() {
+		return staticVersion;
+	}
+
+	// models that change what they draw on their own, without their instances changing, have to call this when they do
+	protected void markGeometryChanged() {
+		if (this.isStatic) {
+			staticVersion++;
+		}
+	}
+
+	private void markCasterMoved(int scene, InstanceList list, int i) {
+		if (this.isStatic) {
 			return;
 		}
-		for (int i = 0; i < meshes.size(); i++) {
-			if (i < this.textureMaterials.size() && this.textureMaterials.get(i) != null) {
-				this.textureMaterials.get(i).bind();
+		ArrayList<Vec4> moved = movedCasters.get(scene);
+		if (moved == null) {
+			moved = new ArrayList<>();
+			movedCasters.put(scene, moved);
+		}
+		if (moved.size() == 1 && moved.get(0).w < 0) { // everything already counts as moved
+			return;
+		}
+		Vec4 sphere = list.getSphere(i);
+		if (sphere.w < 0 || moved.size() >= MAX_MOVED_CASTERS) {
+			markAllCastersMoved(scene);
+			return;
+		}
+		moved.add(sphere);
+	}
+
+	private static void markAllCastersMoved(int scene) {
+		ArrayList<Vec4> moved = new ArrayList<>();
+		moved.add(new Vec4(0, 0, 0, -1));
+		movedCasters.put(scene, moved);
+	}
+
+	/**
+	 * Whether any dynamic instance in the scene was added, moved, or removed within the given sphere since the last
+	 * clearMovedCasters().
+	 *
+	 * @param scene
+	 * @param center
+	 * @param radius
+	 * @return
+	 */
+	public static boolean casterMovedNear(int scene, Vec3 center, float radius) {
+		ArrayList<Vec4> moved = movedCasters.get(scene);
+		if (moved == null) {
+			return false;
+		}
+		for (Vec4 s : moved) {
+			if (s.w < 0) {
+				return true;
 			}
-			else {
-				DEFAULT_TEXTURE_MATERIAL.bind();
+			float dx = s.x - center.x;
+			float dy = s.y - center.y;
+			float dz = s.z - center.z;
+			float r = s.w + radius;
+			if (dx * dx + dy * dy + dz * dz <= r * r) {
+				return true;
 			}
+		}
+		return false;
+	}
+
+	public static void clearMovedCasters(int scene) {
+		movedCasters.remove(scene);
+	}
 
+	protected void render(int scene) {
+		if (!this.hasInstances(scene)) { // check whether or not this model actually has any instances in the
+			// specified scene
+			return;
+		}
+		for (int i = 0; i < meshes.size(); i++) {
+			this.bindTextureMaterial(i);
 			this.meshes.get(i).render(scene);
 		}
 	}
 
+	protected void render(int scene, Frustum frustum, int view) {
+		InstanceList list = this.sceneInstances.get(scene);
+		if (list == null) {
+			return;
+		}
+		visibleInstances.clear();
+		int n = list.cull(frustum, visibleInstances);
+		if (n == 0) {
+			return;
+		}
+		if (n == list.size()) {
+			// nothing got culled, the buffers with every instance are already up to date
+			this.render(scene);
+			return;
+		}
+		this.renderVisible(scene, list, visibleInstances, view);
+	}
+
+	//draws only the visible instances. models that draw vertex arrays outside of meshes should override this.
+	protected void renderVisible(int scene, InstanceList list, IntList visible, int view) {
+		for (int i = 0; i < meshes.size(); i++) {
+			VertexArray v = this.meshes.get(i);
+			uploadInstances(scene, list, visible, v, i, view);
+			this.bindTextureMaterial(i);
+			v.render(scene, view);
+		}
+	}
+
+	protected void bindTextureMaterial(int mesh) {
+		if (mesh < this.textureMaterials.size() && this.textureMaterials.get(mesh) != null) {
+			this.textureMaterials.get(mesh).bind();
+		}
+		else {
+			DEFAULT_TEXTURE_MATERIAL.bind();
+		}
+	}
+
 	public void kill() {
-		ArrayList<Long> instanceIDs = new ArrayList<>();
-		for (HashMap<Long, Mat4> i : this.modelMats.values()) {
-			for (Long id : i.keySet()) {
-				instanceIDs.add(id);
+		if (!this.isStatic) {
+			for (int scene : this.sceneInstances.keySet()) {
+				markAllCastersMoved(scene);
 			}
 		}
-
-		for (long id : instanceIDs) {
-			modelInstanceIDs.remove(id);
-			IDtoScene.remove(id);
-			IDtoModel.remove(id);
+		for (InstanceList list : this.sceneInstances.values()) {
+			for (int i = 0; i < list.size(); i++) {
+				long id = list.getID(i);
+				deactivateCollisionMesh(id);
+				instances.free(id);
+			}
 		}
+		this.sceneInstances.clear();
+		this.markGeometryChanged();
 
 		for (TextureMaterial t : this.textureMaterials) {
 			t.kill();
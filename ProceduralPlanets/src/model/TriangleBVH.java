@@ -0,0 +1,445 @@
+package model;
+
+import java.util.Arrays;
+
+import util.IntList;
+
+public class TriangleBVH {
+
+	// bounding volume hierarchy over the triangles of a mesh. Built once, in model space, using a binned SAH split.
+
+	// nodes are stored flattened. For internal nodes, nodeStart is the index of the left child, and the right child
+	// is always nodeStart + 1. For leaf nodes, nodeStart is the first index into triangles, and nodeCount is the
+	// number of triangles in the leaf.
+
+	private static final int MAX_LEAF_SIZE = 4;
+	private static final int NUM_BINS = 16;
+	private static final int MAX_DEPTH = 60; // traversal stack is sized off of this
+	private static final float RAY_EPSILON_SCALE = 1.00001f;
+
+	private float[] nodeBounds; // minX, minY, minZ, maxX, maxY, maxZ
+	private int[] nodeStart;
+	private int[] nodeCount;
+	private int numNodes;
+
+	// triangle ids, reordered so that every leaf covers a contiguous range
+	private int[] triangles;
+
+	public TriangleBVH(float[] vertices, int[] indices) {
+		int n = indices.length / 3;
+
+		this.triangles = new int[n];
+		for (int i = 0; i < n; i++) {
+			this.triangles[i] = i;
+		}
+
+		int capacity = Math.max(1, n);
+		this.nodeBounds = new float[capacity * 6];
+		this.nodeStart = new int[capacity];
+		this.nodeCount = new int[capacity];
+		this.numNodes = 0;
+
+		if (n == 0) {
+			return;
+		}
+
+		// per triangle bounds and centroids. Only needed while building.
+		float[] triBounds = new float[n * 6];
+		float[] centroids = new float[n * 3];
+		for (int t = 0; t < n; t++) {
+			resetBounds(triBounds, t);
+			for (int k = 0; k < 3; k++) {
+				int v = indices[t * 3 + k] * 3;
+				growBounds(triBounds, t, vertices[v + 0], vertices[v + 1], vertices[v + 2]);
+			}
+			for (int axis = 0; axis < 3; axis++) {
+				centroids[t * 3 + axis] = (triBounds[t * 6 + axis] + triBounds[t * 6 + 3 + axis]) * 0.5f;
+			}
+		}
+
+		this.build(triBounds, centroids);
+	}
+
+	private void build(float[] triBounds, float[] centroids) {
+		int root = this.allocateNode();
+		this.nodeStart[root] = 0;
+		this.nodeCount[root] = this.triangles.length;
+		this.computeNodeBounds(root, triBounds);
+
+		// bins are kept for all three axes, so the children's bounds can be read straight out of the winning axis
+		int[][] binCounts = new int[3][NUM_BINS];
+		float[][] binBounds = new float[3][NUM_BINS * 6];
+		float[] rightAreas = new float[NUM_BINS];
+		int[] rightCounts = new int[NUM_BINS];
+		float[] acc = new float[6];
+		float[] cMin = new float[3];
+		float[] cMax = new float[3];
+
+		// node, depth pairs
+		int[] stack = new int[MAX_DEPTH * 2 + 2];
+		int sp = 0;
+		stack[sp++] = root;
+		stack[sp++] = 0;
+
+		while (sp != 0) {
+			int depth = stack[--sp];
+			int node = stack[--sp];
+			int start = this.nodeStart[node];
+			int count = this.nodeCount[node];
+
+			if (count <= MAX_LEAF_SIZE || depth >= MAX_DEPTH) {
+				continue;
+			}
+
+			// bounds of the centroids, this is what we bin over
+			Arrays.fill(cMin, Float.MAX_VALUE);
+			Arrays.fill(cMax, -Float.MAX_VALUE);
+			for (int i = start; i < start + count; i++) {
+				int t = this.triangles[i];
+				for (int axis = 0; axis < 3; axis++) {
+					cMin[axis] = Math.min(cMin[axis], centroids[t * 3 + axis]);
+					cMax[axis] = Math.max(cMax[axis], centroids[t * 3 + axis]);
+				}
+			}
+
+			int bestAxis = -1;
+			int bestSplit = -1;
+			float bestCost = Float.MAX_VALUE;
+
+			for (int axis = 0; axis < 3; axis++) {
+				float extent = cMax[axis] - cMin[axis];
+				if (extent <= 0) {
+					continue;
+				}
+				float binScale = NUM_BINS / extent;
+
+				int[] counts = binCounts[axis];
+				float[] bounds = binBounds[axis];
+				Arrays.fill(counts, 0);
+				for (int b = 0; b < NUM_BINS; b++) {
+					resetBounds(bounds, b);
+				}
+
+				for (int i = start; i < start + count; i++) {
+					int t = this.triangles[i];
+					int b = Math.min(NUM_BINS - 1, (int) ((centroids[t * 3 + axis] - cMin[axis]) * binScale));
+					counts[b]++;
+					unionBounds(bounds, b, triBounds, t);
+				}
+
+				// sweep from the right, so we know the area and count to the right of every split plane
+				resetBounds(acc, 0);
+				int accCount = 0;
+				for (int b = NUM_BINS - 1; b > 0; b--) {
+					if (counts[b] != 0) {
+						unionBounds(acc, 0, bounds, b);
+					}
+					accCount += counts[b];
+					rightCounts[b] = accCount;
+					rightAreas[b] = accCount == 0 ? 0 : surfaceArea(acc, 0);
+				}
+
+				// sweep from the left, evaluating the cost of splitting between bin b - 1 and bin b
+				resetBounds(acc, 0);
+				accCount = 0;
+				for (int b = 1; b < NUM_BINS; b++) {
+					if (counts[b - 1] != 0) {
+						unionBounds(acc, 0, bounds, b - 1);
+					}
+					accCount += counts[b - 1];
+					if (accCount == 0 || rightCounts[b] == 0) {
+						continue;
+					}
+					float cost = accCount * surfaceArea(acc, 0) + rightCounts[b] * rightAreas[b];
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestAxis = axis;
+						bestSplit = b;
+					}
+				}
+			}
+
+			int mid;
+			if (bestAxis == -1) {
+				// all centroids are on top of each other, any partition is as good as any other
+				mid = start + count / 2;
+			}
+			else {
+				float binScale = NUM_BINS / (cMax[bestAxis] - cMin[bestAxis]);
+				int i = start;
+				int j = start + count - 1;
+				while (i <= j) {
+					int t = this.triangles[i];
+					int b = Math.min(NUM_BINS - 1, (int) ((centroids[t * 3 + bestAxis] - cMin[bestAxis]) * binScale));
+					if (b < bestSplit) {
+						i++;
+					}
+					else {
+						this.triangles[i] = this.triangles[j];
+						this.triangles[j] = t;
+						j--;
+					}
+				}
+				mid = i;
+			}
+
+			int left = this.allocateNode();
+			int right = this.allocateNode();
+			this.nodeStart[left] = start;
+			this.nodeCount[left] = mid - start;
+			this.nodeStart[right] = mid;
+			this.nodeCount[right] = start + count - mid;
+			if (bestAxis == -1) {
+				this.computeNodeBounds(left, triBounds);
+				this.computeNodeBounds(right, triBounds);
+			}
+			else {
+				resetBounds(this.nodeBounds, left);
+				resetBounds(this.nodeBounds, right);
+				for (int b = 0; b < NUM_BINS; b++) {
+					if (binCounts[bestAxis][b] != 0) {
+						unionBounds(this.nodeBounds, b < bestSplit ? left : right, binBounds[bestAxis], b);
+					}
+				}
+			}
+
+			// turn this node into an internal node
+			this.nodeStart[node] = left;
+			this.nodeCount[node] = 0;
+
+			stack[sp++] = left;
+			stack[sp++] = depth + 1;
+			stack[sp++] = right;
+			stack[sp++] = depth + 1;
+		}
+
+		// trim the node arrays down to what we actually used
+		this.nodeBounds = Arrays.copyOf(this.nodeBounds, this.numNodes * 6);
+		this.nodeStart = Arrays.copyOf(this.nodeStart, this.numNodes);
+		this.nodeCount = Arrays.copyOf(this.nodeCount, this.numNodes);
+	}
+
+	private int allocateNode() {
+		if (this.numNodes == this.nodeStart.length) {
+			int capacity = this.nodeStart.length * 2;
+			this.nodeBounds = Arrays.copyOf(this.nodeBounds, capacity * 6);
+			this.nodeStart = Arrays.copyOf(this.nodeStart, capacity);
+			this.nodeCount = Arrays.copyOf(this.nodeCount, capacity);
+		}
+		return this.numNodes++;
+	}
+
+	private void computeNodeBounds(int node, float[] triBounds) {
+		resetBounds(this.nodeBounds, node);
+		int start = this.nodeStart[node];
+		int count = this.nodeCount[node];
+		for (int i = start; i < start + count; i++) {
+			unionBounds(this.nodeBounds, node, triBounds, this.triangles[i]);
+		}
+	}
+
+	private static void resetBounds(float[] bounds, int which) {
+		int o = which * 6;
+		bounds[o + 0] = Float.MAX_VALUE;
+		bounds[o + 1] = Float.MAX_VALUE;
+		bounds[o + 2] = Float.MAX_VALUE;
+		bounds[o + 3] = -Float.MAX_VALUE;
+		bounds[o + 4] = -Float.MAX_VALUE;
+		bounds[o + 5] = -Float.MAX_VALUE;
+	}
+
+	private static void growBounds(float[] bounds, int which, float x, float y, float z) {
+		int o = which * 6;
+		bounds[o + 0] = Math.min(bounds[o + 0], x);
+		bounds[o + 1] = Math.min(bounds[o + 1], y);
+		bounds[o + 2] = Math.min(bounds[o + 2], z);
+		bounds[o + 3] = Math.max(bounds[o + 3], x);
+		bounds[o + 4] = Math.max(bounds[o + 4], y);
+		bounds[o + 5] = Math.max(bounds[o + 5], z);
+	}
+
+	private static void unionBounds(float[] bounds, int which, float[] other, int otherWhich) {
+		int o = which * 6;
+		int p = otherWhich * 6;
+		bounds[o + 0] = Math.min(bounds[o + 0], other[p + 0]);
+		bounds[o + 1] = Math.min(bounds[o + 1], other[p + 1]);
+		bounds[o + 2] = Math.min(bounds[o + 2], other[p + 2]);
+		bounds[o + 3] = Math.max(bounds[o + 3], other[p + 3]);
+		bounds[o + 4] = Math.max(bounds[o + 4], other[p + 4]);
+		bounds[o + 5] = Math.max(bounds[o + 5], other[p + 5]);
+	}
+
+	private static float surfaceArea(float[] bounds, int which) {
+		int o = which * 6;
+		float dx = bounds[o + 3] - bounds[o + 0];
+		float dy = bounds[o + 4] - bounds[o + 1];
+		float dz = bounds[o + 5] - bounds[o + 2];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Appends to out every triangle whose bounds overlap the given axis aligned box.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param out
+	 */
+	public void queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out) {
+		this.queryBox(minX, minY, minZ, maxX, maxY, maxZ, out, new int[getTraversalStackSize()]);
+	}
+
+	/**
+	 * Same as queryBox, but traverses using the given stack, which must be at least getTraversalStackSize() long.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param out
+	 * @param stack
+	 */
+	public void queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList out, int[] stack) {
+		if (this.numNodes == 0) {
+			return;
+		}
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp != 0) {
+			int node = stack[--sp];
+			int o = node * 6;
+			if (this.nodeBounds[o + 0] > maxX || this.nodeBounds[o + 3] < minX || this.nodeBounds[o + 1] > maxY || this.nodeBounds[o + 4] < minY || this.nodeBounds[o + 2] > maxZ || this.nodeBounds[o + 5] < minZ) {
+				continue;
+			}
+			int count = this.nodeCount[node];
+			if (count != 0) {
+				int start = this.nodeStart[node];
+				for (int i = start; i < start + count; i++) {
+					out.add(this.triangles[i]);
+				}
+			}
+			else {
+				stack[sp++] = this.nodeStart[node];
+				stack[sp++] = this.nodeStart[node] + 1;
+			}
+		}
+	}
+
+	/**
+	 * Appends to out every triangle whose bounds are hit by the ray origin + dir * t, for t in [0, tMax].
+	 *
+	 * @param ox
+	 * @param oy
+	 * @param oz
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 * @param tMax
+	 * @param out
+	 */
+	public void queryRay(float ox, float oy, float oz, float dx, float dy, float dz, float tMax, IntList out) {
+		this.queryRay(ox, oy, oz, dx, dy, dz, tMax, out, new int[getTraversalStackSize()]);
+	}
+
+	/**
+	 * Same as queryRay, but traverses using the given stack, which must be at least getTraversalStackSize() long.
+	 *
+	 * @param ox
+	 * @param oy
+	 * @param oz
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 * @param tMax
+	 * @param out
+	 * @param stack
+	 */
+	public void queryRay(float ox, float oy, float oz, float dx, float dy, float dz, float tMax, IntList out, int[] stack) {
+		if (this.numNodes == 0) {
+			return;
+		}
+		float invDx = 1f / dx;
+		float invDy = 1f / dy;
+		float invDz = 1f / dz;
+
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp != 0) {
+			int node = stack[--sp];
+			if (!this.rayHitsNode(node, ox, oy, oz, dx, dy, dz, invDx, invDy, invDz, tMax)) {
+				continue;
+			}
+			int count = this.nodeCount[node];
+			if (count != 0) {
+				int start = this.nodeStart[node];
+				for (int i = start; i < start + count; i++) {
+					out.add(this.triangles[i]);
+				}
+			}
+			else {
+				stack[sp++] = this.nodeStart[node];
+				stack[sp++] = this.nodeStart[node] + 1;
+			}
+		}
+	}
+
+	// slab test
+	private boolean rayHitsNode(int node, float ox, float oy, float oz, float dx, float dy, float dz, float invDx, float invDy, float invDz, float tMax) {
+		int o = node * 6;
+		float tNear = 0;
+		float tFar = tMax;
+
+		if (dx == 0) {
+			if (ox < this.nodeBounds[o + 0] || ox > this.nodeBounds[o + 3]) {
+				return false;
+			}
+		}
+		else {
+			float t0 = (this.nodeBounds[o + 0] - ox) * invDx;
+			float t1 = (this.nodeBounds[o + 3] - ox) * invDx;
+			tNear = Math.max(tNear, Math.min(t0, t1));
+			tFar = Math.min(tFar, Math.max(t0, t1));
+		}
+
+		if (dy == 0) {
+			if (oy < this.nodeBounds[o + 1] || oy > this.nodeBounds[o + 4]) {
+				return false;
+			}
+		}
+		else {
+			float t0 = (this.nodeBounds[o + 1] - oy) * invDy;
+			float t1 = (this.nodeBounds[o + 4] - oy) * invDy;
+			tNear = Math.max(tNear, Math.min(t0, t1));
+			tFar = Math.min(tFar, Math.max(t0, t1));
+		}
+
+		if (dz == 0) {
+			if (oz < this.nodeBounds[o + 2] || oz > this.nodeBounds[o + 5]) {
+				return false;
+			}
+		}
+		else {
+			float t0 = (this.nodeBounds[o + 2] - oz) * invDz;
+			float t1 = (this.nodeBounds[o + 5] - oz) * invDz;
+			tNear = Math.max(tNear, Math.min(t0, t1));
+			tFar = Math.min(tFar, Math.max(t0, t1));
+		}
+
+		// scale tFar up a hair so rounding can't make a ray miss a flat node it grazes
+		return tNear <= tFar * RAY_EPSILON_SCALE;
+	}
+
+	public static int getTraversalStackSize() {
+		return MAX_DEPTH + 2;
+	}
+
+	public int getNumTriangles() {
+		return this.triangles.length;
+	}
+
+}
@@ -3,263 +3,616 @@ package planet;
 import static org.lwjgl.opengl.GL11.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 import graphics.Shader;
 import graphics.TextureMaterial;
 import graphics.VertexArray;
+import model.CollisionHits;
+import model.CollisionTriangles;
+import model.InstanceList;
 import model.Model;
+import util.IntList;
 import util.Mat4;
 import util.MathUtils;
-import util.NoiseGenerator;
 import util.Vec3;
 
 public class Planet extends Model {
 	//needs to procedurally generate it's own mesh. 
 	//vertex coloring? needs it's own shader as well if not. 
 
-	private static int verticesPerEdge = 400;
+	//the planet is drawn as 6 cube face quadtrees of patches. Patches near the camera split into 4 more detailed ones,
+	//and far away ones merge back. Patches are generated on the fork join pool, and only a few are turned into vertex arrays each frame.
+	//a patch keeps being drawn until all 4 of its children are ready, so there are never any holes while the children are generating.
+
+	//resolution of the static mesh. It's only drawn until the root patches are ready, so it can be coarse.
+	private static int verticesPerEdge = 64;
+
+	//a patch splits once the camera is closer than SPLIT_DISTANCE times its radius, and merges back once the camera is
+	//further than MERGE_DISTANCE times its radius, so patches on the border don't keep splitting and merging.
+	private static final int MAX_LEVEL = 6;
+	private static final float SPLIT_DISTANCE = 2f;
+	private static final float MERGE_DISTANCE = 2.5f;
+	private static final int MAX_UPLOADS_PER_FRAME = 4;
+
+	//the collider's grid is the same as the patches' at this level
+	private static final int COLLISION_LEVEL = 3;
+
+	private PlanetTerrain terrain;
+	private PlanetCollider collider;
+	private PlanetPatch[] roots;
+	private ArrayList<PlanetPatch> pendingPatches; //built or building, but not uploaded yet
+	private ArrayList<PlanetPatch> drawnPatches;
+	private boolean drawingPatches; //false while the static mesh is drawn instead
+
+	//where the instance the lod is computed for is
+	private Vec3 lodCenter;
+	private float lodRadius;
 
 	public Planet() {
-		super();
+		this(ThreadLocalRandom.current().nextLong());
 	}
 
-	@Override
-	public void create() {
-		VertexArray v = this.generate();
+	public Planet(long seed) {
+		this(new PlanetTerrain(seed));
+	}
+
+	//noiseType is one of the NoiseGenerator backends
+	public Planet(long seed, int noiseType) {
+		this(new PlanetTerrain(seed, noiseType));
+	}
+
+	//the static mesh has to exist before the model is initialized, so it's generated before calling super
+	private Planet(PlanetTerrain terrain) {
+		super(generate(terrain), DEFAULT_TEXTURE_MATERIAL);
+		this.terrain = terrain;
+		this.collider = new PlanetCollider(terrain, PlanetPatch.SEGMENTS << COLLISION_LEVEL);
 
-		this.meshes.add(v);
-		this.textureMaterials.add(DEFAULT_TEXTURE_MATERIAL);
-		this.defaultMaterials.add(DEFAULT_MATERIAL);
+		this.pendingPatches = new ArrayList<>();
+		this.drawnPatches = new ArrayList<>();
+
+		//planets don't move, so their shadows can be cached
+		this.setStatic(true);
+
+		this.roots = new PlanetPatch[6];
+		for (int face = 0; face < 6; face++) {
+			this.roots[face] = new PlanetPatch(face, 0, 0, 0, 1);
+			this.submitPatch(this.roots[face]);
+		}
+	}
+
+	public PlanetTerrain getTerrain() {
+		return this.terrain;
 	}
 
+	public PlanetCollider getCollider() {
+		return this.collider;
+	}
+
+	//the lod follows the most recently added instance
 	public long addInstance(Vec3 pos, float radius, int scene) {
+		this.lodCenter = new Vec3(pos);
+		this.lodRadius = radius;
 		return Model.addInstance(this, Mat4.scale(radius).mul(Mat4.translate(pos)), scene);
 	}
 
-	public VertexArray generate() {
-		assert verticesPerEdge >= 2 : "Can't generate cube with less than 2 vertices per edge";
+	private void submitPatch(PlanetPatch p) {
+		this.pendingPatches.add(p);
+		ForkJoinPool.commonPool().execute(new PatchTask(p, this.terrain));
+	}
 
-		//generate cube vertices
-		ArrayList<Vec3> vertices = new ArrayList<>();
-		HashMap<String, Integer> verticesMap = new HashMap<>();
-
-		int[][] top = new int[verticesPerEdge][verticesPerEdge];
-		int[][] bottom = new int[verticesPerEdge][verticesPerEdge];
-		int[][] left = new int[verticesPerEdge][verticesPerEdge];
-		int[][] right = new int[verticesPerEdge][verticesPerEdge];
-		int[][] near = new int[verticesPerEdge][verticesPerEdge];
-		int[][] far = new int[verticesPerEdge][verticesPerEdge];
-
-		for (int i = 0; i < verticesPerEdge; i++) {
-			for (int j = 0; j < verticesPerEdge; j++) {
-				int x, y, z;
-				String vID;
-
-				//top 
-				x = j;
-				y = verticesPerEdge - 1;
-				z = verticesPerEdge - 1 - i;
-				vID = x + " " + y + " " + z;
-				if (verticesMap.containsKey(vID)) {
-					top[i][j] = verticesMap.get(vID);
-				}
-				else {
-					Vec3 next = new Vec3(x, y, z);
-					top[i][j] = vertices.size();
-					verticesMap.put(vID, vertices.size());
-					vertices.add(next);
-				}
+	//uploads finished patches, splits and merges patches around the camera, and restitches the seams.
+	//has to be called on the main thread.
+	public void update(Vec3 cameraPos) {
+		int uploads = 0;
+		Iterator<PlanetPatch> it = this.pendingPatches.iterator();
+		while (it.hasNext()) {
+			PlanetPatch p = it.next();
+			if (p.isKilled()) {
+				it.remove();
+			}
+			else if (p.isBuilt() && uploads < MAX_UPLOADS_PER_FRAME) {
+				p.upload();
+				this.uploadPatchInstances(p);
+				uploads++;
+				it.remove();
+			}
+		}
 
-				//bottom
-				x = verticesPerEdge - 1 - j;
-				y = 0;
-				z = verticesPerEdge - 1 - i;
-				vID = x + " " + y + " " + z;
-				if (verticesMap.containsKey(vID)) {
-					bottom[i][j] = verticesMap.get(vID);
-				}
-				else {
-					Vec3 next = new Vec3(x, y, z);
-					bottom[i][j] = vertices.size();
-					verticesMap.put(vID, vertices.size());
-					vertices.add(next);
-				}
+		this.drawnPatches.clear();
+		for (PlanetPatch root : this.roots) {
+			if (root.getMesh() == null) {
+				//draw the static mesh until every face is ready
+				this.setDrawingPatches(false);
+				return;
+			}
+		}
 
-				//left
-				x = 0;
-				y = j;
-				z = verticesPerEdge - 1 - i;
-				vID = x + " " + y + " " + z;
-				if (verticesMap.containsKey(vID)) {
-					left[i][j] = verticesMap.get(vID);
-				}
-				else {
-					Vec3 next = new Vec3(x, y, z);
-					left[i][j] = vertices.size();
-					verticesMap.put(vID, vertices.size());
-					vertices.add(next);
-				}
+		if (this.lodCenter != null) {
+			//camera in unit sphere space
+			float x = (cameraPos.x - this.lodCenter.x) / this.lodRadius;
+			float y = (cameraPos.y - this.lodCenter.y) / this.lodRadius;
+			float z = (cameraPos.z - this.lodCenter.z) / this.lodRadius;
+			for (PlanetPatch root : this.roots) {
+				this.updatePatch(root, x, y, z);
+			}
+		}
 
-				//right
-				x = verticesPerEdge - 1;
-				y = verticesPerEdge - 1 - j;
-				z = verticesPerEdge - 1 - i;
-				vID = x + " " + y + " " + z;
-				if (verticesMap.containsKey(vID)) {
-					right[i][j] = verticesMap.get(vID);
-				}
-				else {
-					Vec3 next = new Vec3(x, y, z);
-					right[i][j] = vertices.size();
-					verticesMap.put(vID, vertices.size());
-					vertices.add(next);
-				}
+		for (PlanetPatch root : this.roots) {
+			this.collectDrawnPatches(root);
+		}
+		this.setDrawingPatches(true);
+
+		int[] steps = new int[4];
+		double[] uv = new double[2];
+		double[] cube = new double[3];
+		for (PlanetPatch p : this.drawnPatches) {
+			for (int e = 0; e < 4; e++) {
+				steps[e] = this.getStitchStep(p, e, uv, cube);
+			}
+			p.stitch(steps);
+		}
+	}
 
-				//near
-				x = j;
-				y = verticesPerEdge - 1 - i;
-				z = 0;
-				vID = x + " " + y + " " + z;
-				if (verticesMap.containsKey(vID)) {
-					near[i][j] = verticesMap.get(vID);
-				}
-				else {
-					Vec3 next = new Vec3(x, y, z);
-					near[i][j] = vertices.size();
-					verticesMap.put(vID, vertices.size());
-					vertices.add(next);
-				}
+	//lod changes only refine the same surface, so cached shadows aren't thrown away for them, they pick up the new patches
+	//whenever they're refit anyway. Switching between the static mesh and the patches is what counts as the geometry changing.
+	private void setDrawingPatches(boolean b) {
+		if (this.drawingPatches != b) {
+			this.drawingPatches = b;
+			this.markGeometryChanged();
+		}
+	}
 
-				//far
-				x = verticesPerEdge - 1 - j;
-				y = verticesPerEdge - 1 - i;
-				z = verticesPerEdge - 1;
-				vID = x + " " + y + " " + z;
-				if (verticesMap.containsKey(vID)) {
-					far[i][j] = verticesMap.get(vID);
-				}
-				else {
-					Vec3 next = new Vec3(x, y, z);
-					far[i][j] = vertices.size();
-					verticesMap.put(vID, vertices.size());
-					vertices.add(next);
+	private void updatePatch(PlanetPatch p, float x, float y, float z) {
+		float dist = p.getDistance(x, y, z);
+		if (p.getChildren() == null) {
+			if (p.getLevel() < MAX_LEVEL && dist < SPLIT_DISTANCE * p.getBoundRadius()) {
+				p.split();
+				for (PlanetPatch c : p.getChildren()) {
+					this.submitPatch(c);
 				}
-
 			}
+			return;
+		}
+		if (dist > MERGE_DISTANCE * p.getBoundRadius()) {
+			p.merge();
+			return;
 		}
+		for (PlanetPatch c : p.getChildren()) {
+			this.updatePatch(c, x, y, z);
+		}
+	}
 
-		//translate cube so that center is the origin
-		Vec3 translate = new Vec3(-(verticesPerEdge - 1) / 2f);
-		for (Vec3 v : vertices) {
-			v.addi(translate);
+	private void collectDrawnPatches(PlanetPatch p) {
+		if (!p.childrenReady()) {
+			this.drawnPatches.add(p);
+			return;
 		}
+		for (PlanetPatch c : p.getChildren()) {
+			this.collectDrawnPatches(c);
+		}
+	}
 
-		Vec3 xWarpOffset = new Vec3((float) Math.random(), (float) Math.random(), (float) Math.random());
-		Vec3 yWarpOffset = new Vec3((float) Math.random(), (float) Math.random(), (float) Math.random());
-		Vec3 zWarpOffset = new Vec3((float) Math.random(), (float) Math.random(), (float) Math.random());
+	//finds how coarse the drawn patch across the given edge is, and returns how many segments each triangle on the edge should span
+	private int getStitchStep(PlanetPatch p, int edge, double[] uv, double[] cube) {
+		//sample half a segment outside the middle of the edge
+		double eps = p.getSize() / PlanetPatch.SEGMENTS * 0.5;
+		double mid = p.getSize() * 0.5;
+		double u, v;
+		switch (edge) {
+		case PlanetPatch.EDGE_TOP:
+			u = p.getU0() + mid;
+			v = p.getV0() - eps;
+			break;
+		case PlanetPatch.EDGE_RIGHT:
+			u = p.getU0() + p.getSize() + eps;
+			v = p.getV0() + mid;
+			break;
+		case PlanetPatch.EDGE_BOTTOM:
+			u = p.getU0() + mid;
+			v = p.getV0() + p.getSize() + eps;
+			break;
+		default:
+			u = p.getU0() - eps;
+			v = p.getV0() + mid;
+			break;
+		}
 
-		float warpFreq = 1f;
-		float warpWeight = 1f;
+		int face = p.getFace();
+		if (u < 0 || u > 1 || v < 0 || v > 1) {
+			//the neighbour is on another face
+			PlanetPatch.toCube(face, u, v, cube);
+			face = PlanetPatch.fromCube(cube[0], cube[1], cube[2], uv);
+			u = uv[0];
+			v = uv[1];
+		}
 
-		//map cube to sphere
-		for (Vec3 v : vertices) {
-			v.normalize();
+		PlanetPatch neighbour = this.roots[face];
+		while (neighbour.childrenReady()) {
+			neighbour = neighbour.getChild(u, v);
+		}
 
-			float totalHeight = 0;
+		int step = 1;
+		for (int diff = p.getLevel() - neighbour.getLevel(); diff > 0 && step < PlanetPatch.SEGMENTS; diff--) {
+			step *= 2;
+		}
+		return step;
+	}
 
-			Vec3 sampleVec = new Vec3(v);
-			Vec3 warpVec = new Vec3(0);
-			warpVec.x = (float) NoiseGenerator.noise(sampleVec.add(xWarpOffset), warpFreq, 1, 0.5, 2, 1);
-			warpVec.y = (float) NoiseGenerator.noise(sampleVec.add(yWarpOffset), warpFreq, 1, 0.5, 2, 1);
-			warpVec.z = (float) NoiseGenerator.noise(sampleVec.add(zWarpOffset), warpFreq, 1, 0.5, 2, 1);
+	//keeps the patches' instance data in sync with the static mesh
+	@Override
+	protected void uploadInstances(int scene, InstanceList list) {
+		super.uploadInstances(scene, list);
+		for (PlanetPatch root : this.roots) {
+			this.uploadPatchInstances(root, scene, list);
+		}
+	}
 
-			float elevation = (float) NoiseGenerator.noise(sampleVec.add(warpVec.mul(warpWeight)), 2, 1, 0.5, 2, 5);
-			elevation *= 2f;
-			if (elevation > 0) {
-				//elevation = (float) Math.sqrt(elevation);
-				elevation *= 0.5f;
+	private void uploadPatchInstances(PlanetPatch p, int scene, InstanceList list) {
+		if (p.getMesh() != null) {
+			uploadInstances(scene, list, p.getMesh(), 0);
+		}
+		if (p.getChildren() != null) {
+			for (PlanetPatch c : p.getChildren()) {
+				this.uploadPatchInstances(c, scene, list);
 			}
+		}
+	}
 
-			if (elevation < 0) {
-				elevation *= 0.15f;
-			}
-			else {
-				elevation *= 0.1f;
-			}
-			elevation *= 0.8;
+	private void uploadPatchInstances(PlanetPatch p) {
+		for (int scene : this.getInstancedScenes()) {
+			uploadInstances(scene, this.getInstances(scene), p.getMesh(), 0);
+		}
+	}
+
+	@Override
+	protected void render(int scene) {
+		if (this.drawnPatches.size() == 0) {
+			super.render(scene);
+			return;
+		}
+		if (!this.hasInstances(scene)) {
+			return;
+		}
+
+		if (this.textureMaterials.get(0) != null) {
+			this.textureMaterials.get(0).bind();
+		}
+		else {
+			DEFAULT_TEXTURE_MATERIAL.bind();
+		}
+		for (PlanetPatch p : this.drawnPatches) {
+			p.getMesh().render(scene);
+		}
+	}
+
+	//the patches are drawn for every instance, so if any of them are visible, they're all drawn
+	@Override
+	protected void renderVisible(int scene, InstanceList list, IntList visible, int view) {
+		this.render(scene);
+	}
+
+	//collision queries go to the collider instead of the static mesh. The static mesh still gives the broadphase bounds.
+
+	@Override
+	protected void intersectRay(long ID, Mat4 transform, Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		int start = hits.size();
+		this.collider.rayIntersect(ray_origin, ray_dir, transform, hits);
+		hits.setSource(start, 0, ID);
+	}
+
+	@Override
+	protected boolean intersectRayClosest(long ID, Mat4 transform, Vec3 ray_origin, Vec3 ray_dir, CollisionHits hits) {
+		if (this.collider.rayIntersectClosest(ray_origin, ray_dir, transform, hits)) {
+			hits.setSource(0, 0, ID);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	protected void intersectSphere(long ID, Mat4 transform, Vec3 sphere_origin, float sphere_radius, CollisionHits hits) {
+		int start = hits.size();
+		this.collider.sphereIntersect(sphere_origin, sphere_radius, transform, hits);
+		hits.setSource(start, 0, ID);
+	}
+
+	@Override
+	protected void intersectCapsule(long ID, Mat4 transform, Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, CollisionHits hits) {
+		int start = hits.size();
+		this.collider.capsuleIntersect(capsule_bottom, capsule_top, capsule_radius, transform, hits);
+		hits.setSource(start, 0, ID);
+	}
+
+	@Override
+	protected void collectTriangles(long ID, Mat4 transform, float minX, float minY, float minZ, float maxX, float maxY, float maxZ, CollisionTriangles out, CollisionHits hits) {
+		this.collider.collectTriangles(minX, minY, minZ, maxX, maxY, maxZ, transform, out);
+	}
+
+	@Override
+	public void kill() {
+		super.kill();
+		for (PlanetPatch root : this.roots) {
+			root.kill();
+		}
+		this.pendingPatches.clear();
+		this.drawnPatches.clear();
+	}
+
+	public static VertexArray generate(PlanetTerrain terrain) {
+		assert verticesPerEdge >= 2 : "Can't generate cube with less than 2 vertices per edge";
+
+		int n = verticesPerEdge;
+
+		String cacheKey = terrain.getCacheKey() + "_static" + n;
+		PlanetMeshCache.Entry entry = PlanetMeshCache.load(cacheKey);
+		if (entry != null && entry.uvs != null && entry.indices.length != 0) {
+			return new VertexArray(entry.positions, entry.uvs, entry.indices, GL_TRIANGLES);
+		}
+
+		int numVertices = getNumCubeVertices(n);
+		float[] verticesArr = new float[numVertices * 3];
+		float[] uvsArr = new float[numVertices * 2];
+		int[] indicesArr = new int[6 * (n - 1) * (n - 1) * 6];
+
+		//every vertex, then every face row, is independent, so both passes run on the fork join pool.
+		//the index pass needs the final vertex positions to pick diagonals, so it has to wait for the vertex pass.
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		pool.invoke(new VertexTask(n, terrain, verticesArr, uvsArr, 0, numVertices));
+		pool.invoke(new IndexTask(n, verticesArr, indicesArr, 0, 6 * (n - 1)));
+
+		PlanetMeshCache.save(cacheKey, new PlanetMeshCache.Entry(verticesArr, null, uvsArr, indicesArr));
+
+		VertexArray vertexArray = new VertexArray(verticesArr, uvsArr, indicesArr, GL_TRIANGLES);
+
+		return vertexArray;
+	}
+
+	//the cube is made of the lattice points (x, y, z) in [0, n - 1]^3 that lie on its surface. Instead of deduplicating
+	//the points shared between faces with a map, every surface point gets its index from a closed form.
+	//the points are split into 6 blocks, and each block only holds the points that an earlier block doesn't :
+	//y = n - 1 : n * n points
+	//y = 0 : n * n points
+	//x = 0 : n * (n - 2) points, without the top and bottom rows
+	//x = n - 1 : n * (n - 2) points
+	//z = 0 : (n - 2) * (n - 2) points, without any edges
+	//z = n - 1 : (n - 2) * (n - 2) points
+
+	private static int getNumCubeVertices(int n) {
+		return 2 * n * n + 2 * n * (n - 2) + 2 * (n - 2) * (n - 2);
+	}
+
+	private static int getCubeVertexIndex(int x, int y, int z, int n) {
+		int m = n - 2;
+		if (y == n - 1) {
+			return x * n + z;
+		}
+		if (y == 0) {
+			return n * n + x * n + z;
+		}
+		if (x == 0) {
+			return 2 * n * n + (y - 1) * n + z;
+		}
+		if (x == n - 1) {
+			return 2 * n * n + n * m + (y - 1) * n + z;
+		}
+		if (z == 0) {
+			return 2 * n * n + 2 * n * m + (x - 1) * m + (y - 1);
+		}
+		return 2 * n * n + 2 * n * m + m * m + (x - 1) * m + (y - 1);
+	}
+
+	//inverse of getCubeVertexIndex, writes x, y, z into out
+	private static void getCubeVertexPos(int index, int n, int[] out) {
+		int m = n - 2;
+		if (index < n * n) {
+			out[0] = index / n;
+			out[1] = n - 1;
+			out[2] = index % n;
+			return;
+		}
+		index -= n * n;
+		if (index < n * n) {
+			out[0] = index / n;
+			out[1] = 0;
+			out[2] = index % n;
+			return;
+		}
+		index -= n * n;
+		if (index < n * m) {
+			out[0] = 0;
+			out[1] = 1 + index / n;
+			out[2] = index % n;
+			return;
+		}
+		index -= n * m;
+		if (index < n * m) {
+			out[0] = n - 1;
+			out[1] = 1 + index / n;
+			out[2] = index % n;
+			return;
+		}
+		index -= n * m;
+		if (index < m * m) {
+			out[0] = 1 + index / m;
+			out[1] = 1 + index % m;
+			out[2] = 0;
+			return;
+		}
+		index -= m * m;
+		out[0] = 1 + index / m;
+		out[1] = 1 + index % m;
+		out[2] = n - 1;
+	}
+
+	//index of vertex (i, j) on the given face. 
+	//faces are top, bottom, left, right, near, far, and are walked the same way as before, so the triangle winding doesn't change.
+	private static int getFaceVertexIndex(int face, int i, int j, int n) {
+		switch (face) {
+		case 0:
+			return getCubeVertexIndex(j, n - 1, n - 1 - i, n);
+		case 1:
+			return getCubeVertexIndex(n - 1 - j, 0, n - 1 - i, n);
+		case 2:
+			return getCubeVertexIndex(0, j, n - 1 - i, n);
+		case 3:
+			return getCubeVertexIndex(n - 1, n - 1 - j, n - 1 - i, n);
+		case 4:
+			return getCubeVertexIndex(j, n - 1 - i, 0, n);
+		default:
+			return getCubeVertexIndex(n - 1 - j, n - 1 - i, n - 1, n);
+		}
+	}
+
+	//maps the cube vertices in [start, end) onto the sphere, and applies the terrain height
+	private static void generateVertices(int start, int end, int n, PlanetTerrain terrain, float[] vertices) {
+		int count = end - start;
+		float[] xs = new float[count];
+		float[] ys = new float[count];
+		float[] zs = new float[count];
+		int[] pos = new int[3];
+
+		//translate cube so that center is the origin
+		float half = (n - 1) / 2f;
+		for (int i = 0; i < count; i++) {
+			getCubeVertexPos(start + i, n, pos);
+			xs[i] = pos[0] - half;
+			ys[i] = pos[1] - half;
+			zs[i] = pos[2] - half;
+		}
 
-			float cliffs = (float) NoiseGenerator.noise(v.x, v.y, v.z, 2, 0.7f, 0.5, 2, 2);
-			cliffs = -Math.abs(cliffs) + 1;
-			cliffs = (float) Math.pow(cliffs, 4);
+		terrain.generateSurfacePoints(xs, ys, zs, count, vertices, start * 3);
+	}
 
-			cliffs *= 2;
-			if (elevation > 0) {
-				totalHeight += cliffs * elevation;
+	//writes the 6 indices of every quad in the given face row
+	private static void generateRow(int row, int n, float[] vertices, int[] indices) {
+		int face = row / (n - 1);
+		int i = row % (n - 1);
+		int k = row * (n - 1) * 6;
+		for (int j = 0; j < n - 1; j++) {
+			int tl = getFaceVertexIndex(face, i, j, n);
+			int tr = getFaceVertexIndex(face, i, j + 1, n);
+			int bl = getFaceVertexIndex(face, i + 1, j, n);
+			int br = getFaceVertexIndex(face, i + 1, j + 1, n);
+
+			//check which diagonal has less length
+			if (distSq(vertices, tl, br) < distSq(vertices, tr, bl)) {
+				//tl to br diag shorter
+				indices[k++] = bl;
+				indices[k++] = tl;
+				indices[k++] = br;
+
+				indices[k++] = tr;
+				indices[k++] = br;
+				indices[k++] = tl;
 			}
 			else {
-				totalHeight += elevation;
+				//tr to bl diag shorter
+				indices[k++] = bl;
+				indices[k++] = tr;
+				indices[k++] = br;
+
+				indices[k++] = tr;
+				indices[k++] = bl;
+				indices[k++] = tl;
 			}
+		}
+	}
 
-			v.setLength(1f + totalHeight);
-		}
-
-		//convert to vertex array
-		int[][][] sides = { top, bottom, left, right, near, far };
-		ArrayList<Integer> indices = new ArrayList<>();
-		for (int[][] side : sides) {
-			for (int i = 0; i < verticesPerEdge - 1; i++) {
-				for (int j = 0; j < verticesPerEdge - 1; j++) {
-					int tl = side[i][j];
-					int tr = side[i][j + 1];
-					int bl = side[i + 1][j];
-					int br = side[i + 1][j + 1];
-
-					//check which diagonal has less length
-					if (vertices.get(tl).sub(vertices.get(br)).length() < vertices.get(tr).sub(vertices.get(bl)).length()) {
-						//tl to br diag shorter
-						indices.add(bl);
-						indices.add(tl);
-						indices.add(br);
-
-						indices.add(tr);
-						indices.add(br);
-						indices.add(tl);
-					}
-					else {
-						//tr to bl diag shorter
-						indices.add(bl);
-						indices.add(tr);
-						indices.add(br);
-
-						indices.add(tr);
-						indices.add(bl);
-						indices.add(tl);
-					}
-				}
-			}
+	private static float distSq(float[] vertices, int a, int b) {
+		float dx = vertices[a * 3 + 0] - vertices[b * 3 + 0];
+		float dy = vertices[a * 3 + 1] - vertices[b * 3 + 1];
+		float dz = vertices[a * 3 + 2] - vertices[b * 3 + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	//generates one patch
+	private static class PatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private PlanetPatch patch;
+		private PlanetTerrain terrain;
+
+		public PatchTask(PlanetPatch patch, PlanetTerrain terrain) {
+			this.patch = patch;
+			this.terrain = terrain;
+		}
+
+		@Override
+		protected void compute() {
+			this.patch.build(this.terrain);
 		}
+	}
+
+	//generates the vertices in [start, end), splitting the range in half until it's small enough
+	private static class VertexTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-		float[] verticesArr = new float[vertices.size() * 3];
-		float[] uvsArr = new float[vertices.size() * 2];
-		int[] indicesArr = new int[indices.size()];
+		private static final int GRAIN = 4096;
 
-		for (int i = 0; i < vertices.size(); i++) {
-			verticesArr[i * 3 + 0] = vertices.get(i).x;
-			verticesArr[i * 3 + 1] = vertices.get(i).y;
-			verticesArr[i * 3 + 2] = vertices.get(i).z;
+		private int n;
+		private PlanetTerrain terrain;
+		private float[] vertices, uvs;
+		private int start, end;
 
-			uvsArr[i * 2 + 0] = (float) Math.random();
-			uvsArr[i * 2 + 1] = (float) Math.random();
+		public VertexTask(int n, PlanetTerrain terrain, float[] vertices, float[] uvs, int start, int end) {
+			this.n = n;
+			this.terrain = terrain;
+			this.vertices = vertices;
+			this.uvs = uvs;
+			this.start = start;
+			this.end = end;
 		}
 
-		for (int i = 0; i < indicesArr.length; i++) {
-			indicesArr[i] = indices.get(i);
+		@Override
+		protected void compute() {
+			if (this.end - this.start > GRAIN) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new VertexTask(this.n, this.terrain, this.vertices, this.uvs, this.start, mid), new VertexTask(this.n, this.terrain, this.vertices, this.uvs, mid, this.end));
+				return;
+			}
+			generateVertices(this.start, this.end, this.n, this.terrain, this.vertices);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = this.start; i < this.end; i++) {
+				this.uvs[i * 2 + 0] = random.nextFloat();
+				this.uvs[i * 2 + 1] = random.nextFloat();
+			}
 		}
+	}
 
-		VertexArray vertexArray = new VertexArray(verticesArr, uvsArr, indicesArr, GL_TRIANGLES);
+	//generates the indices for the face rows in [start, end)
+	private static class IndexTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-		return vertexArray;
+		private static final int GRAIN = 16;
+
+		private int n;
+		private float[] vertices;
+		private int[] indices;
+		private int start, end;
+
+		public IndexTask(int n, float[] vertices, int[] indices, int start, int end) {
+			this.n = n;
+			this.vertices = vertices;
+			this.indices = indices;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start > GRAIN) {
+				int mid = (this.start + this.end) >>> 1;
+				invokeAll(new IndexTask(this.n, this.vertices, this.indices, this.start, mid), new IndexTask(this.n, this.vertices, this.indices, mid, this.end));
+				return;
+			}
+			for (int row = this.start; row < this.end; row++) {
+				generateRow(row, this.n, this.vertices, this.indices);
+			}
+		}
 	}
 
 }
@@ -0,0 +1,692 @@
+package planet;
+
+import java.util.Arrays;
+
+import model.CollisionHits;
+import model.CollisionTriangles;
+import util.Mat4;
+import util.Vec3;
+
+public class PlanetCollider {
+
+	//collides against the terrain of a planet directly, instead of against a triangle mesh of the whole planet.
+	//the surface is treated as a heightfield over a grid on every cube face, with the same grid points as the patches of
+	//one quadtree level. A query is mapped to the few cells under it, only the surface points of those cells are
+	//generated, and only their triangles are tested, so a query costs about the same no matter how big the planet is.
+
+	//everything is done in model space, where the surface is around the unit sphere. Instance transforms may only rotate,
+	//uniformly scale and translate, which is all Planet.addInstance() does.
+
+	//hits are tagged with triangle ((face * segments + i) * segments + j) * 2 + k, for the k'th triangle of cell (i, j).
+
+	//a query that would need more than MAX_QUERY_POINTS surface points is tested against a coarser grid instead, that only
+	//has every other point of the one before it along each edge, going as coarse as it takes. Those triangles cut across the
+	//terrain between their points, so big probes, like the whole move of a fast player, still hit the planet, only less
+	//exactly. The cells of a coarser grid are tagged with their corner on the full grid.
+
+	//nothing changes after construction, so any number of threads can query at once. Every thread gets its own scratch
+	//space, so queries don't allocate, and its own cache of the surface points it generated, in tiles of TILE_CELLS cells
+	//on a side. Queries next to each other, like a player's every tick, or the steps of a ray, mostly find their points
+	//already generated.
+
+	private static final int CAP_SAMPLES = 32; //points around the edge of a query's footprint, projected onto the faces to bound it
+	private static final int MAX_QUERY_POINTS = 16384; //queries that need more points than this use a coarser grid
+	private static final double FACE_ANGLE = Math.acos(1 / Math.sqrt(3)); //from the center of a face to its corners
+	private static final int RAY_STEP_CELLS = 4; //how far a ray moves between searches
+	private static final int TILE_CELLS = 8;
+	private static final int TILE_POINTS = (TILE_CELLS + 1) * (TILE_CELLS + 1);
+	private static final int TILE_SLOTS = 256; //tiles cached per thread, a tile goes into slot key % TILE_SLOTS
+
+	//the axis, and the sign along it, that each face is on. Same layout as PlanetPatch.toCube()
+	private static final int[] FACE_AXES = { 1, 1, 0, 0, 2, 2 };
+	private static final int[] FACE_SIGNS = { 1, -1, -1, 1, -1, 1 };
+
+	private final PlanetTerrain terrain;
+	private final int segments; //cells along every face edge
+	private final float cellSize; //upper bound on the length of a cell edge, on the unit sphere
+	private final int tiles; //tiles along every face edge, on the full grid
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	//what a thread needs for its queries
+	private static class Scratch {
+		float[] first = new float[3];
+		float[] second = new float[3];
+		float[] p = new float[3];
+		float[] normal = new float[3];
+		float[] outer = new float[2];
+		float[] inner = new float[2];
+		float[] intervals = new float[4];
+		float[] v = new float[9];
+		float[] w = new float[9];
+		double[] dir = new double[3];
+		double[] uv = new double[2];
+		double[] cube = new double[3];
+		double[] bounds = new double[24];
+		int[] ranges = new int[24];
+		int shift; //the grid the ranges are on has segments >> shift cells along every face edge
+
+		float[] points = new float[0]; //the points of the cells in ranges
+		CollisionTriangles tris = new CollisionTriangles(0);
+		int[] ids = new int[0];
+		CollisionTriangles world = new CollisionTriangles(1);
+
+		long[] tileKeys = new long[TILE_SLOTS];
+		float[][] tilePoints = new float[TILE_SLOTS][];
+		float[] tileXs = new float[TILE_POINTS];
+		float[] tileYs = new float[TILE_POINTS];
+		float[] tileZs = new float[TILE_POINTS];
+
+		Scratch() {
+			Arrays.fill(this.tileKeys, -1);
+		}
+	}
+
+	public PlanetCollider(PlanetTerrain terrain, int segments) {
+		this.terrain = terrain;
+		this.segments = segments;
+		this.cellSize = 2f / segments;
+		this.tiles = (segments + TILE_CELLS - 1) / TILE_CELLS;
+	}
+
+	public int getSegments() {
+		return this.segments;
+	}
+
+	/**
+	 * Appends every triangle the sphere intersects to hits, and returns how many were added.
+	 *
+	 * @param sphere_origin
+	 * @param sphere_radius
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public int sphereIntersect(Vec3 sphere_origin, float sphere_radius, Mat4 transform, CollisionHits hits) {
+		Scratch s = this.scratch.get();
+		float scaleSq = getScaleSq(transform);
+		float scale = (float) Math.sqrt(scaleSq);
+		float[] c = s.first;
+		toLocal(transform, scaleSq, sphere_origin.x, sphere_origin.y, sphere_origin.z, true, c);
+		float r = sphere_radius / scale;
+
+		int pointCount = this.collectCells(c[0], c[1], c[2], r, s);
+		if (pointCount == 0) {
+			return 0;
+		}
+		this.loadPoints(pointCount, s);
+		this.loadTriangles(s);
+		CollisionTriangles tris = s.tris;
+		int[] ids = s.ids;
+
+		float[] p = s.p;
+		float[] normal = s.normal;
+		int added = 0;
+		for (int t = 0; t < tris.size(); t++) {
+			if (Math.abs(tris.planeDistance(t, c[0], c[1], c[2])) >= r || !tris.closestPoint(t, c[0], c[1], c[2], p)) {
+				continue;
+			}
+			float ex = p[0] - c[0], ey = p[1] - c[1], ez = p[2] - c[2];
+			float dist = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+			if (dist >= r) {
+				continue;
+			}
+			tris.writeHit(hits, false, t, ids[t], p[0], p[1], p[2], transform, dist * scale, normal);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Appends every triangle the capsule intersects to hits, and returns how many were added.
+	 *
+	 * @param capsule_bottom
+	 * @param capsule_top
+	 * @param capsule_radius
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public int capsuleIntersect(Vec3 capsule_bottom, Vec3 capsule_top, float capsule_radius, Mat4 transform, CollisionHits hits) {
+		Scratch s = this.scratch.get();
+		float scaleSq = getScaleSq(transform);
+		float scale = (float) Math.sqrt(scaleSq);
+		float[] b = s.first;
+		float[] e = s.second;
+		toLocal(transform, scaleSq, capsule_bottom.x, capsule_bottom.y, capsule_bottom.z, true, b);
+		toLocal(transform, scaleSq, capsule_top.x, capsule_top.y, capsule_top.z, true, e);
+		float r = capsule_radius / scale;
+
+		// same segment as CollisionMesh.capsuleIntersect()
+		float ux = e[0] - b[0], uy = e[1] - b[1], uz = e[2] - b[2];
+		float uLength = (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+		if (uLength != 0) {
+			ux /= uLength;
+			uy /= uLength;
+			uz /= uLength;
+		}
+		float ax = b[0] + ux * r, ay = b[1] + uy * r, az = b[2] + uz * r;
+		float abx = (e[0] - ux * r) - ax, aby = (e[1] - uy * r) - ay, abz = (e[2] - uz * r) - az;
+
+		//the cells are found with the bounding sphere of the capsule
+		float boundRadius = Math.max(uLength * 0.5f, r);
+		int pointCount = this.collectCells((b[0] + e[0]) * 0.5f, (b[1] + e[1]) * 0.5f, (b[2] + e[2]) * 0.5f, boundRadius, s);
+		if (pointCount == 0) {
+			return 0;
+		}
+		this.loadPoints(pointCount, s);
+		this.loadTriangles(s);
+		CollisionTriangles tris = s.tris;
+		int[] ids = s.ids;
+
+		float[] p = s.p;
+		float[] normal = s.normal;
+		int added = 0;
+		for (int t = 0; t < tris.size(); t++) {
+			float dist = tris.capsuleIntersect(t, b[0], b[1], b[2], ux, uy, uz, ax, ay, az, abx, aby, abz, r, p);
+			if (dist < 0) {
+				continue;
+			}
+			tris.writeHit(hits, false, t, ids[t], p[0], p[1], p[2], transform, dist * scale, normal);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Appends every triangle that overlaps the world space box to out, transformed into world space, and returns how many
+	 * were added. Same as CollisionMesh.collectTriangles().
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param transform
+	 * @param out
+	 * @return
+	 */
+	public int collectTriangles(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Mat4 transform, CollisionTriangles out) {
+		Scratch s = this.scratch.get();
+		float scaleSq = getScaleSq(transform);
+		float scale = (float) Math.sqrt(scaleSq);
+		float[] c = s.first;
+		toLocal(transform, scaleSq, (minX + maxX) * 0.5f, (minY + maxY) * 0.5f, (minZ + maxZ) * 0.5f, true, c);
+		float ex = maxX - minX, ey = maxY - minY, ez = maxZ - minZ;
+		float r = (float) Math.sqrt(ex * ex + ey * ey + ez * ez) * 0.5f / scale;
+
+		//the cells are found with the bounding sphere of the box
+		int pointCount = this.collectCells(c[0], c[1], c[2], r, s);
+		if (pointCount == 0) {
+			return 0;
+		}
+		this.loadPoints(pointCount, s);
+		this.loadTriangles(s);
+		CollisionTriangles tris = s.tris;
+
+		float[][] m = transform.mat;
+		float[] v = s.v;
+		float[] w = s.w;
+		CollisionTriangles world = s.world;
+		int added = 0;
+		for (int t = 0; t < tris.size(); t++) {
+			tris.getVertices(t, v);
+			for (int k = 0; k < 9; k += 3) {
+				w[k + 0] = m[0][0] * v[k] + m[0][1] * v[k + 1] + m[0][2] * v[k + 2] + m[0][3];
+				w[k + 1] = m[1][0] * v[k] + m[1][1] * v[k + 1] + m[1][2] * v[k + 2] + m[1][3];
+				w[k + 2] = m[2][0] * v[k] + m[2][1] * v[k + 1] + m[2][2] * v[k + 2] + m[2][3];
+			}
+			world.set(0, w[0], w[1], w[2], w[3], w[4], w[5], w[6], w[7], w[8]);
+			if (world.isDegenerate(0) || !world.overlapsBox(0, minX, minY, minZ, maxX, maxY, maxZ)) {
+				continue;
+			}
+			out.add(w[0], w[1], w[2], w[3], w[4], w[5], w[6], w[7], w[8]);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Appends every hit along the ray to hits, and returns how many were added.
+	 *
+	 * @param ray_origin
+	 * @param ray_dir
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public int rayIntersect(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform, CollisionHits hits) {
+		return this.rayIntersect(ray_origin, ray_dir, transform, hits, false);
+	}
+
+	/**
+	 * Keeps only the closest hit along the ray in hits, same as CollisionMesh.rayIntersectClosest(). hits should either be
+	 * empty or hold one hit from a previous closest query. Returns true if hits was changed.
+	 *
+	 * @param ray_origin
+	 * @param ray_dir
+	 * @param transform
+	 * @param hits
+	 * @return
+	 */
+	public boolean rayIntersectClosest(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform, CollisionHits hits) {
+		return this.rayIntersect(ray_origin, ray_dir, transform, hits, true) != 0;
+	}
+
+	//marches the ray through the shell the surface is in. Every step searches the cells around the next piece of the ray,
+	//and for closest queries, the first piece with a hit ends the march.
+	private int rayIntersect(Vec3 ray_origin, Vec3 ray_dir, Mat4 transform, CollisionHits hits, boolean closest) {
+		float dirLength = ray_dir.length();
+		if (dirLength == 0) {
+			return 0;
+		}
+
+		//t is measured in lengths of ray_dir in both spaces
+		Scratch s = this.scratch.get();
+		float scaleSq = getScaleSq(transform);
+		float[] o = s.first;
+		float[] d = s.second;
+		toLocal(transform, scaleSq, ray_origin.x, ray_origin.y, ray_origin.z, true, o);
+		toLocal(transform, scaleSq, ray_dir.x, ray_dir.y, ray_dir.z, false, d);
+		float localDirLength = (float) Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+
+		boolean replace = closest && hits.size() != 0;
+		float tMax = replace ? hits.getDistance(0) / dirLength : Float.MAX_VALUE;
+
+		//the surface is between the inner and the outer sphere, so only those pieces of the ray need marching
+		float[] outer = s.outer;
+		float[] inner = s.inner;
+		if (!intersectSphere(o, d, 1 + PlanetTerrain.MAX_HEIGHT, outer)) {
+			return 0;
+		}
+		float[] intervals = s.intervals;
+		int intervalCount;
+		if (intersectSphere(o, d, 1 + PlanetTerrain.MIN_HEIGHT, inner)) {
+			intervals[0] = outer[0];
+			intervals[1] = inner[0];
+			intervals[2] = inner[1];
+			intervals[3] = outer[1];
+			intervalCount = 4;
+		}
+		else {
+			intervals[0] = outer[0];
+			intervals[1] = outer[1];
+			intervalCount = 2;
+		}
+
+		float step = RAY_STEP_CELLS * this.cellSize / localDirLength;
+		float[] normal = s.normal;
+		int added = 0;
+		for (int k = 0; k < intervalCount; k += 2) {
+			float start = Math.max(intervals[k], 0);
+			float end = Math.min(intervals[k + 1], tMax);
+			for (float t0 = start; t0 < end; t0 += step) {
+				float t1 = Math.min(t0 + step, end);
+				boolean last = t1 == end;
+
+				//every triangle the ray crosses in [t0, t1] is in a cell touched by the sphere around that piece
+				float tm = (t0 + t1) * 0.5f;
+				float r = (t1 - t0) * 0.5f * localDirLength + this.cellSize * 0.01f;
+				int pointCount = this.collectCells(o[0] + d[0] * tm, o[1] + d[1] * tm, o[2] + d[2] * tm, r, s);
+				if (pointCount == 0) {
+					continue;
+				}
+				this.loadPoints(pointCount, s);
+				this.loadTriangles(s);
+				CollisionTriangles tris = s.tris;
+				int[] ids = s.ids;
+
+				float bestT = Float.MAX_VALUE;
+				int best = -1;
+				for (int t = 0; t < tris.size(); t++) {
+					float rayT = tris.rayIntersect(t, o[0], o[1], o[2], d[0], d[1], d[2]);
+					//a hit belongs to the piece it's in, so pieces don't report the same one twice
+					if (rayT < t0 || rayT > t1 || (rayT == t1 && !last)) {
+						continue;
+					}
+					if (closest) {
+						if (rayT < bestT) {
+							bestT = rayT;
+							best = t;
+						}
+						continue;
+					}
+					tris.writeHit(hits, false, t, ids[t], o[0] + d[0] * rayT, o[1] + d[1] * rayT, o[2] + d[2] * rayT, transform, rayT * dirLength, normal);
+					added++;
+				}
+
+				if (best != -1) {
+					tris.writeHit(hits, replace, best, ids[best], o[0] + d[0] * bestT, o[1] + d[1] * bestT, o[2] + d[2] * bestT, transform, bestT * dirLength, normal);
+					return 1;
+				}
+			}
+		}
+		return added;
+	}
+
+	//finds where the ray o + d * t is inside the sphere of the given radius around the origin, and writes the t range into
+	//out. Returns false if the ray misses it.
+	private static boolean intersectSphere(float[] o, float[] d, float radius, float[] out) {
+		float a = d[0] * d[0] + d[1] * d[1] + d[2] * d[2];
+		float b = o[0] * d[0] + o[1] * d[1] + o[2] * d[2];
+		float c = o[0] * o[0] + o[1] * o[1] + o[2] * o[2] - radius * radius;
+		float disc = b * b - a * c;
+		if (disc < 0) {
+			return false;
+		}
+		float root = (float) Math.sqrt(disc);
+		out[0] = (-b - root) / a;
+		out[1] = (-b + root) / a;
+		return out[1] >= 0;
+	}
+
+	//finds the cells of every face that the sphere could touch, and writes them into s.ranges as i0, i1, j0, j1 per face,
+	//with i1 < i0 if there are none, on the grid given by s.shift. Returns how many grid points those cells have, or 0 if the
+	//sphere can't touch the surface.
+	private int collectCells(float cx, float cy, float cz, float r, Scratch scratch) {
+		int[] ranges = scratch.ranges;
+		double[] bounds = scratch.bounds;
+		for (int face = 0; face < 6; face++) {
+			setRange(ranges, face, 1, 0, 1, 0);
+			setBounds(bounds, face, 1, 0, 1, 0);
+		}
+		scratch.shift = 0;
+
+		float dist = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+		if (dist - r > 1 + PlanetTerrain.MAX_HEIGHT || dist + r < 1 + PlanetTerrain.MIN_HEIGHT) {
+			return 0;
+		}
+
+		if (dist <= r) {
+			//the sphere is around the center, so it covers every direction
+			for (int face = 0; face < 6; face++) {
+				setBounds(bounds, face, 0, 1, 0, 1);
+			}
+			return this.setLevel(scratch);
+		}
+
+		//the surface can only be in the part of the sphere inside the outer sphere, and the directions that part covers are
+		//a cap around the direction to its center. If the sphere pokes out of the outer sphere before the edge of its
+		//silhouette, the edge of the cap is where the two spheres cross instead.
+		double outer = 1 + PlanetTerrain.MAX_HEIGHT;
+		double tangentSq = (double) dist * dist - (double) r * r;
+		double cosAngle;
+		if (tangentSq <= outer * outer) {
+			cosAngle = Math.sqrt(tangentSq) / dist;
+		}
+		else {
+			cosAngle = Math.min(1, (tangentSq + outer * outer) / (2 * dist * outer));
+		}
+		double sinAngle = Math.sqrt(1 - cosAngle * cosAngle);
+		double reach = Math.acos(cosAngle) + FACE_ANGLE;
+		double dx = cx / dist, dy = cy / dist, dz = cz / dist;
+
+		//two axes perpendicular to the direction, to walk around the edge of the cap
+		double ax = Math.abs(dx) < 0.9 ? 1 : 0;
+		double ay = 1 - ax;
+		double t1x = -dz * ay;
+		double t1y = dz * ax;
+		double t1z = dx * ay - dy * ax;
+		double t1Length = Math.sqrt(t1x * t1x + t1y * t1y + t1z * t1z);
+		t1x /= t1Length;
+		t1y /= t1Length;
+		t1z /= t1Length;
+		double t2x = dy * t1z - dz * t1y;
+		double t2y = dz * t1x - dx * t1z;
+		double t2z = dx * t1y - dy * t1x;
+
+		double[] dir = scratch.dir;
+		dir[0] = dx;
+		dir[1] = dy;
+		dir[2] = dz;
+		double[] uv = scratch.uv;
+		for (int face = 0; face < 6; face++) {
+			double facing = dir[FACE_AXES[face]] * FACE_SIGNS[face];
+			if (cosAngle > 0 && facing > sinAngle) {
+				//the cap is entirely in front of the face, so the edge of the cap projects to a convex curve around the rest
+				//of it
+				double minU = Double.MAX_VALUE, minV = Double.MAX_VALUE;
+				double maxU = -Double.MAX_VALUE, maxV = -Double.MAX_VALUE;
+				for (int k = 0; k < CAP_SAMPLES; k++) {
+					double phi = Math.PI * 2 * k / CAP_SAMPLES;
+					double c = Math.cos(phi) * sinAngle;
+					double s = Math.sin(phi) * sinAngle;
+					PlanetPatch.toFace(face, dx * cosAngle + t1x * c + t2x * s, dy * cosAngle + t1y * c + t2y * s, dz * cosAngle + t1z * c + t2z * s, uv);
+					minU = Math.min(minU, uv[0]);
+					maxU = Math.max(maxU, uv[0]);
+					minV = Math.min(minV, uv[1]);
+					maxV = Math.max(maxV, uv[1]);
+				}
+				setBounds(bounds, face, minU, maxU, minV, maxV);
+			}
+			else if (reach >= Math.PI || facing >= Math.cos(reach)) {
+				//the cap goes over the horizon of the face, but can still reach its corners, so the whole face is tested
+				setBounds(bounds, face, 0, 1, 0, 1);
+			}
+		}
+		return this.setLevel(scratch);
+	}
+
+	//turns s.bounds into cell ranges on the finest grid that keeps them under MAX_QUERY_POINTS points, and returns how many
+	//points that is. A grid can only be made coarser while its cells still split evenly into the full grid's.
+	private int setLevel(Scratch scratch) {
+		int shift = 0;
+		int count = this.setRanges(scratch.bounds, shift, scratch.ranges);
+		while (count > MAX_QUERY_POINTS && this.segments % (2 << shift) == 0) {
+			shift++;
+			count = this.setRanges(scratch.bounds, shift, scratch.ranges);
+		}
+		scratch.shift = shift;
+		return count;
+	}
+
+	private int setRanges(double[] bounds, int shift, int[] ranges) {
+		int cells = this.segments >> shift;
+		int count = 0;
+		for (int face = 0; face < 6; face++) {
+			double minU = bounds[face * 4 + 0], maxU = bounds[face * 4 + 1];
+			double minV = bounds[face * 4 + 2], maxV = bounds[face * 4 + 3];
+			if (maxU < minU || maxU < 0 || minU > 1 || maxV < 0 || minV > 1) {
+				setRange(ranges, face, 1, 0, 1, 0);
+				continue;
+			}
+
+			//one cell of margin covers the curve bulging out between the samples
+			int i0 = clampCell((int) Math.floor(minV * cells) - 1, cells);
+			int i1 = clampCell((int) Math.floor(maxV * cells) + 1, cells);
+			int j0 = clampCell((int) Math.floor(minU * cells) - 1, cells);
+			int j1 = clampCell((int) Math.floor(maxU * cells) + 1, cells);
+			setRange(ranges, face, i0, i1, j0, j1);
+			count += (i1 - i0 + 2) * (j1 - j0 + 2);
+		}
+		return count;
+	}
+
+	private static int clampCell(int c, int cells) {
+		return Math.max(0, Math.min(cells - 1, c));
+	}
+
+	private static void setBounds(double[] bounds, int face, double minU, double maxU, double minV, double maxV) {
+		bounds[face * 4 + 0] = minU;
+		bounds[face * 4 + 1] = maxU;
+		bounds[face * 4 + 2] = minV;
+		bounds[face * 4 + 3] = maxV;
+	}
+
+	private static void setRange(int[] ranges, int face, int i0, int i1, int j0, int j1) {
+		ranges[face * 4 + 0] = i0;
+		ranges[face * 4 + 1] = i1;
+		ranges[face * 4 + 2] = j0;
+		ranges[face * 4 + 3] = j1;
+	}
+
+	private static int countCells(int[] ranges) {
+		int count = 0;
+		for (int face = 0; face < 6; face++) {
+			int rows = ranges[face * 4 + 1] - ranges[face * 4 + 0] + 1;
+			int cols = ranges[face * 4 + 3] - ranges[face * 4 + 2] + 1;
+			if (rows > 0 && cols > 0) {
+				count += rows * cols;
+			}
+		}
+		return count;
+	}
+
+	//copies the surface points at the corners of the cells in s.ranges into s.points, face by face and row by row, from the
+	//tiles they're in. A point on the edge between two tiles is taken from the one after it, except at the end of a face.
+	private void loadPoints(int count, Scratch s) {
+		if (s.points.length < count * 3) {
+			s.points = new float[count * 3];
+		}
+		float[] points = s.points;
+		int[] ranges = s.ranges;
+		int cells = this.segments >> s.shift;
+		int tiles = (cells + TILE_CELLS - 1) / TILE_CELLS;
+		int base = 0;
+		for (int face = 0; face < 6; face++) {
+			int i0 = ranges[face * 4 + 0], i1 = ranges[face * 4 + 1] + 1;
+			int j0 = ranges[face * 4 + 2], j1 = ranges[face * 4 + 3] + 1;
+			if (i1 <= i0 || j1 <= j0) {
+				continue;
+			}
+			int width = j1 - j0 + 1;
+			for (int ti = tileOf(i0, tiles); ti <= tileOf(i1, tiles); ti++) {
+				int rowStart = Math.max(i0, ti * TILE_CELLS);
+				int rowEnd = Math.min(i1, ti == tiles - 1 ? cells : ti * TILE_CELLS + TILE_CELLS - 1);
+				for (int tj = tileOf(j0, tiles); tj <= tileOf(j1, tiles); tj++) {
+					int colStart = Math.max(j0, tj * TILE_CELLS);
+					int colEnd = Math.min(j1, tj == tiles - 1 ? cells : tj * TILE_CELLS + TILE_CELLS - 1);
+					float[] tile = this.getTile(face, ti, tj, s);
+					for (int i = rowStart; i <= rowEnd; i++) {
+						int src = ((i - ti * TILE_CELLS) * (TILE_CELLS + 1) + (colStart - tj * TILE_CELLS)) * 3;
+						int dst = (base + (i - i0) * width + (colStart - j0)) * 3;
+						System.arraycopy(tile, src, points, dst, (colEnd - colStart + 1) * 3);
+					}
+				}
+			}
+			base += (i1 - i0 + 1) * width;
+		}
+	}
+
+	private static int tileOf(int gridIndex, int tiles) {
+		return Math.min(gridIndex / TILE_CELLS, tiles - 1);
+	}
+
+	//the surface points of a tile of the grid given by s.shift, row by row, generating them if this thread doesn't have them
+	//cached. The grid points are the same dyadic face coordinates the patches use, so they end up at the exact same positions.
+	private float[] getTile(int face, int ti, int tj, Scratch s) {
+		long key = (((long) s.shift * 6 + face) * this.tiles + ti) * this.tiles + tj;
+		int slot = (int) (key % TILE_SLOTS);
+		if (s.tileKeys[slot] == key) {
+			return s.tilePoints[slot];
+		}
+		if (s.tilePoints[slot] == null) {
+			s.tilePoints[slot] = new float[TILE_POINTS * 3];
+		}
+
+		//rows and columns past the end of the face, if the grid isn't a multiple of TILE_CELLS, repeat the last one
+		int cells = this.segments >> s.shift;
+		int n = 0;
+		for (int r = 0; r <= TILE_CELLS; r++) {
+			int i = Math.min(ti * TILE_CELLS + r, cells);
+			for (int c = 0; c <= TILE_CELLS; c++) {
+				int j = Math.min(tj * TILE_CELLS + c, cells);
+				PlanetPatch.toCube(face, (double) j / cells, (double) i / cells, s.cube);
+				s.tileXs[n] = (float) s.cube[0];
+				s.tileYs[n] = (float) s.cube[1];
+				s.tileZs[n] = (float) s.cube[2];
+				n++;
+			}
+		}
+		this.terrain.generateSurfacePoints(s.tileXs, s.tileYs, s.tileZs, TILE_POINTS, s.tilePoints[slot], 0);
+		s.tileKeys[slot] = key;
+		return s.tilePoints[slot];
+	}
+
+	//splits every cell in s.ranges along its shorter diagonal, like the patches do, and writes the triangles into s.tris,
+	//wound so that their normals point out of the planet, and their indices into s.ids. Returns the number of triangles.
+	private int loadTriangles(Scratch s) {
+		int[] ranges = s.ranges;
+		float[] points = s.points;
+		CollisionTriangles tris = s.tris;
+		tris.clear();
+		int triangleCount = countCells(ranges) * 2;
+		if (s.ids.length < triangleCount) {
+			s.ids = new int[triangleCount];
+		}
+		int[] ids = s.ids;
+		int shift = s.shift;
+		int base = 0;
+		int count = 0;
+		for (int face = 0; face < 6; face++) {
+			int i0 = ranges[face * 4 + 0], i1 = ranges[face * 4 + 1];
+			int j0 = ranges[face * 4 + 2], j1 = ranges[face * 4 + 3];
+			if (i1 < i0 || j1 < j0) {
+				continue;
+			}
+			int width = j1 - j0 + 2;
+			for (int i = i0; i <= i1; i++) {
+				for (int j = j0; j <= j1; j++) {
+					int tl = base + (i - i0) * width + (j - j0);
+					int tr = tl + 1;
+					int bl = tl + width;
+					int br = bl + 1;
+					int id = ((face * this.segments + (i << shift)) * this.segments + (j << shift)) * 2;
+					if (distSq(points, tl, br) < distSq(points, tr, bl)) {
+						count = putTriangle(points, tl, bl, br, id, tris, ids, count);
+						count = putTriangle(points, tl, br, tr, id + 1, tris, ids, count);
+					}
+					else {
+						count = putTriangle(points, tl, bl, tr, id, tris, ids, count);
+						count = putTriangle(points, tr, bl, br, id + 1, tris, ids, count);
+					}
+				}
+			}
+			base += (i1 - i0 + 2) * width;
+		}
+		return count;
+	}
+
+	private static int putTriangle(float[] points, int a, int b, int c, int id, CollisionTriangles tris, int[] ids, int count) {
+		tris.add(points[a * 3], points[a * 3 + 1], points[a * 3 + 2], points[b * 3], points[b * 3 + 1], points[b * 3 + 2], points[c * 3], points[c * 3 + 1], points[c * 3 + 2]);
+		if (tris.planeDistance(count, 0, 0, 0) > 0) {
+			//the center of the planet is in front of it, flip it
+			tris.set(count, points[a * 3], points[a * 3 + 1], points[a * 3 + 2], points[c * 3], points[c * 3 + 1], points[c * 3 + 2], points[b * 3], points[b * 3 + 1], points[b * 3 + 2]);
+		}
+		ids[count] = id;
+		return count + 1;
+	}
+
+	private static float distSq(float[] points, int a, int b) {
+		float dx = points[a * 3 + 0] - points[b * 3 + 0];
+		float dy = points[a * 3 + 1] - points[b * 3 + 1];
+		float dz = points[a * 3 + 2] - points[b * 3 + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	//squared scale of a transform that only rotates, uniformly scales and translates
+	private static float getScaleSq(Mat4 transform) {
+		float[][] m = transform.mat;
+		return m[0][0] * m[0][0] + m[1][0] * m[1][0] + m[2][0] * m[2][0];
+	}
+
+	//the inverse of such a transform is its transpose divided by the squared scale, after undoing the translation
+	private static void toLocal(Mat4 transform, float scaleSq, float x, float y, float z, boolean point, float[] out) {
+		float[][] m = transform.mat;
+		if (point) {
+			x -= m[0][3];
+			y -= m[1][3];
+			z -= m[2][3];
+		}
+		out[0] = (m[0][0] * x + m[1][0] * y + m[2][0] * z) / scaleSq;
+		out[1] = (m[0][1] * x + m[1][1] * y + m[2][1] * z) / scaleSq;
+		out[2] = (m[0][2] * x + m[1][2] * y + m[2][2] * z) / scaleSq;
+	}
+
+}
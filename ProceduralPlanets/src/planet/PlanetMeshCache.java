@@ -0,0 +1,232 @@
+package planet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import util.SystemUtils;
+
+public class PlanetMeshCache {
+
+	//generated planet meshes, saved to disk so that loading the same planet again doesn't have to generate them.
+	//everything that changes the generated mesh has to be in the key, see PlanetTerrain.getCacheKey().
+
+	//every seed gets its own files, so the directory is kept under MAX_CACHE_BYTES by deleting the files that were least
+	//recently used whenever a new one is saved. Loading a file counts as using it.
+
+	//file layout, little endian :
+	//int magic, int version, int flags, int vertex count, int index count
+	//float[vertex count * 3] positions
+	//float[vertex count * 3] normals, if HAS_NORMALS
+	//float[vertex count * 2] uvs, if HAS_UVS
+	//int[index count] indices
+
+	public static final int HAS_NORMALS = 1;
+	public static final int HAS_UVS = 2;
+
+	private static final int MAGIC = 0x48534D50; //"PMSH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 5 * 4;
+
+	private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024; //around 30 planets
+	private static final Object evictLock = new Object();
+
+	private static String directory = SystemUtils.getWorkingDirectory() + "/cache/planets/";
+	private static boolean enabled = true;
+
+	public static class Entry {
+		public float[] positions;
+		public float[] normals; //null if not stored
+		public float[] uvs; //null if not stored
+		public int[] indices; //empty if not stored
+
+		public Entry(float[] positions, float[] normals, float[] uvs, int[] indices) {
+			this.positions = positions;
+			this.normals = normals;
+			this.uvs = uvs;
+			this.indices = indices != null ? indices : new int[0];
+		}
+	}
+
+	public static void setEnabled(boolean enabled) {
+		PlanetMeshCache.enabled = enabled;
+	}
+
+	public static void setDirectory(String directory) {
+		PlanetMeshCache.directory = directory.endsWith("/") ? directory : directory + "/";
+	}
+
+	private static File getFile(String key) {
+		return new File(directory + key + ".mesh");
+	}
+
+	//returns null if there is no cached mesh for the key, or if it can't be read
+	public static Entry load(String key) {
+		if (!enabled) {
+			return null;
+		}
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				System.err.println("Planet mesh cache " + file + " is truncated");
+				return null;
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			int magic = buffer.getInt();
+			int version = buffer.getInt();
+			int flags = buffer.getInt();
+			int vertexCount = buffer.getInt();
+			int indexCount = buffer.getInt();
+			if (magic != MAGIC || version != VERSION || vertexCount < 0 || indexCount < 0) {
+				System.err.println("Planet mesh cache " + file + " has an unknown format");
+				return null;
+			}
+			if (size != getFileSize(flags, vertexCount, indexCount)) {
+				System.err.println("Planet mesh cache " + file + " is truncated");
+				return null;
+			}
+
+			float[] positions = new float[vertexCount * 3];
+			buffer.asFloatBuffer().get(positions);
+			buffer.position(buffer.position() + positions.length * 4);
+
+			float[] normals = null;
+			if ((flags & HAS_NORMALS) != 0) {
+				normals = new float[vertexCount * 3];
+				buffer.asFloatBuffer().get(normals);
+				buffer.position(buffer.position() + normals.length * 4);
+			}
+
+			float[] uvs = null;
+			if ((flags & HAS_UVS) != 0) {
+				uvs = new float[vertexCount * 2];
+				buffer.asFloatBuffer().get(uvs);
+				buffer.position(buffer.position() + uvs.length * 4);
+			}
+
+			int[] indices = new int[indexCount];
+			buffer.asIntBuffer().get(indices);
+
+			return new Entry(positions, normals, uvs, indices);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to read planet mesh cache " + file);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	//writes the entry to a temporary file first, and then moves it into place, so a reader never sees a half written file.
+	//safe to call from any thread.
+	public static void save(String key, Entry entry) {
+		if (!enabled) {
+			return;
+		}
+		File file = getFile(key);
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			System.err.println("Failed to create planet mesh cache directory " + dir);
+			return;
+		}
+
+		int vertexCount = entry.positions.length / 3;
+		int flags = (entry.normals != null ? HAS_NORMALS : 0) | (entry.uvs != null ? HAS_UVS : 0);
+		long size = getFileSize(flags, vertexCount, entry.indices.length);
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(flags);
+		buffer.putInt(vertexCount);
+		buffer.putInt(entry.indices.length);
+		buffer.asFloatBuffer().put(entry.positions);
+		buffer.position(buffer.position() + entry.positions.length * 4);
+		if (entry.normals != null) {
+			buffer.asFloatBuffer().put(entry.normals);
+			buffer.position(buffer.position() + entry.normals.length * 4);
+		}
+		if (entry.uvs != null) {
+			buffer.asFloatBuffer().put(entry.uvs);
+			buffer.position(buffer.position() + entry.uvs.length * 4);
+		}
+		buffer.asIntBuffer().put(entry.indices);
+		buffer.rewind();
+
+		File temp = null;
+		try {
+			temp = File.createTempFile(key, ".tmp", dir);
+			try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel channel = raf.getChannel()) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			evict(dir);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to write planet mesh cache " + file);
+			e.printStackTrace();
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	//deletes the least recently used cache files until the rest fit in MAX_CACHE_BYTES
+	private static void evict(File dir) {
+		synchronized (evictLock) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				return;
+			}
+			long total = 0;
+			int n = 0;
+			long[] modified = new long[files.length];
+			for (int i = 0; i < files.length; i++) {
+				if (!files[i].isFile() || !files[i].getName().endsWith(".mesh")) {
+					continue;
+				}
+				files[n] = files[i];
+				modified[n] = files[i].lastModified();
+				total += files[i].length();
+				n++;
+			}
+			while (total > MAX_CACHE_BYTES && n > 1) {
+				int oldest = 0;
+				for (int i = 1; i < n; i++) {
+					if (modified[i] < modified[oldest]) {
+						oldest = i;
+					}
+				}
+				long size = files[oldest].length();
+				if (!files[oldest].delete()) {
+					System.err.println("Failed to delete planet mesh cache " + files[oldest]);
+				}
+				total -= size;
+				n--;
+				files[oldest] = files[n];
+				modified[oldest] = modified[n];
+			}
+		}
+	}
+
+	private static long getFileSize(int flags, int vertexCount, int indexCount) {
+		long floatsPerVertex = 3 + ((flags & HAS_NORMALS) != 0 ? 3 : 0) + ((flags & HAS_UVS) != 0 ? 2 : 0);
+		return HEADER_SIZE + (floatsPerVertex * vertexCount + indexCount) * 4;
+	}
+
+}
@@ -0,0 +1,505 @@
+package planet;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import graphics.VertexArray;
+import util.IntList;
+
+public class PlanetPatch {
+
+	//one node of a cube face quadtree. A patch covers the square [u0, u0 + size] x [v0, v0 + size] of its face,
+	//and is always a RESOLUTION x RESOLUTION grid, so every level down is twice as detailed.
+
+	//grid point (i, j) sits at u = u0 + size * j / SEGMENTS, v = v0 + size * i / SEGMENTS. These are always dyadic, so the
+	//points on the edge of a patch have the exact same cube coordinates as the matching points of its neighbours,
+	//even across faces, and the neighbours generate the exact same surface points for them.
+
+	//faces are top, bottom, left, right, near, far, and are laid out the same way as in Planet.generate().
+
+	public static final int RESOLUTION = 33;
+	public static final int SEGMENTS = RESOLUTION - 1;
+
+	//patches up to this level are saved to the planet mesh cache
+	public static final int MAX_CACHED_LEVEL = 1;
+
+	//edges, walked in the order of the stitch steps
+	public static final int EDGE_TOP = 0; //i = 0
+	public static final int EDGE_RIGHT = 1; //j = SEGMENTS
+	public static final int EDGE_BOTTOM = 2; //i = SEGMENTS
+	public static final int EDGE_LEFT = 3; //j = 0
+
+	private int face, level;
+	private double u0, v0, size;
+
+	private PlanetPatch[] children;
+
+	//bounding sphere of the patch on the unit sphere, ignoring terrain height
+	private float centerX, centerY, centerZ, boundRadius;
+
+	//written by build(), which can run on any thread.
+	//built is volatile, so once another thread sees it set, it also sees the arrays.
+	private float[] vertices, normals, uvs;
+	private boolean[] diagonals; //for each quad, whether the tl to br diagonal is the shorter one
+	private volatile boolean built;
+	private volatile boolean killed;
+
+	//only touched on the main thread
+	private VertexArray mesh;
+	private int stitchKey;
+
+	public PlanetPatch(int face, int level, double u0, double v0, double size) {
+		this.face = face;
+		this.level = level;
+		this.u0 = u0;
+		this.v0 = v0;
+		this.size = size;
+		this.stitchKey = -1;
+
+		//bounding sphere around the 4 corners and the middle, projected onto the unit sphere
+		float[] corners = new float[15];
+		projectToSphere(face, u0, v0, corners, 0);
+		projectToSphere(face, u0 + size, v0, corners, 3);
+		projectToSphere(face, u0, v0 + size, corners, 6);
+		projectToSphere(face, u0 + size, v0 + size, corners, 9);
+		projectToSphere(face, u0 + size * 0.5, v0 + size * 0.5, corners, 12);
+		this.centerX = corners[12];
+		this.centerY = corners[13];
+		this.centerZ = corners[14];
+		this.boundRadius = 0;
+		for (int k = 0; k < 4; k++) {
+			float dx = corners[k * 3 + 0] - this.centerX;
+			float dy = corners[k * 3 + 1] - this.centerY;
+			float dz = corners[k * 3 + 2] - this.centerZ;
+			this.boundRadius = Math.max(this.boundRadius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+		}
+	}
+
+	//writes the point on the [-1, 1] cube for face coordinates (u, v).
+	//u and v may be outside of [0, 1], in which case the point is off the face, on the plane of the face.
+	public static void toCube(int face, double u, double v, double[] out) {
+		//-a would give -0 in the middle of the face, so the flipped coordinate is computed on its own
+		double a = 2 * u - 1;
+		double flippedA = 1 - 2 * u;
+		double b = 1 - 2 * v;
+		switch (face) {
+		case 0:
+			out[0] = a;
+			out[1] = 1;
+			out[2] = b;
+			break;
+		case 1:
+			out[0] = flippedA;
+			out[1] = -1;
+			out[2] = b;
+			break;
+		case 2:
+			out[0] = -1;
+			out[1] = a;
+			out[2] = b;
+			break;
+		case 3:
+			out[0] = 1;
+			out[1] = flippedA;
+			out[2] = b;
+			break;
+		case 4:
+			out[0] = a;
+			out[1] = b;
+			out[2] = -1;
+			break;
+		default:
+			out[0] = flippedA;
+			out[1] = b;
+			out[2] = 1;
+			break;
+		}
+	}
+
+	//inverse of toCube. Finds the face the direction (x, y, z) points at, writes (u, v) on that face into out, and returns the face.
+	public static int fromCube(double x, double y, double z, double[] out) {
+		double ax = Math.abs(x);
+		double ay = Math.abs(y);
+		double az = Math.abs(z);
+		int face;
+		if (ay >= ax && ay >= az) {
+			face = y > 0 ? 0 : 1;
+		}
+		else if (ax >= az) {
+			face = x < 0 ? 2 : 3;
+		}
+		else {
+			face = z < 0 ? 4 : 5;
+		}
+		toFace(face, x, y, z, out);
+		return face;
+	}
+
+	//projects the direction (x, y, z) onto the plane of the given face, and writes (u, v) on that face into out.
+	//u and v are outside of [0, 1] if the direction doesn't point at the face. Returns false if it points away from the plane.
+	public static boolean toFace(int face, double x, double y, double z, double[] out) {
+		double d, a, b;
+		switch (face) {
+		case 0:
+			d = y;
+			a = x / d;
+			b = z / d;
+			break;
+		case 1:
+			d = -y;
+			a = -x / d;
+			b = z / d;
+			break;
+		case 2:
+			d = -x;
+			a = y / d;
+			b = z / d;
+			break;
+		case 3:
+			d = x;
+			a = -y / d;
+			b = z / d;
+			break;
+		case 4:
+			d = -z;
+			a = x / d;
+			b = y / d;
+			break;
+		default:
+			d = z;
+			a = -x / d;
+			b = y / d;
+			break;
+		}
+		if (d <= 0) {
+			return false;
+		}
+		out[0] = (a + 1) * 0.5;
+		out[1] = (1 - b) * 0.5;
+		return true;
+	}
+
+	private static void projectToSphere(int face, double u, double v, float[] out, int offset) {
+		double[] p = new double[3];
+		toCube(face, u, v, p);
+		double length = Math.sqrt(p[0] * p[0] + p[1] * p[1] + p[2] * p[2]);
+		out[offset + 0] = (float) (p[0] / length);
+		out[offset + 1] = (float) (p[1] / length);
+		out[offset + 2] = (float) (p[2] / length);
+	}
+
+	//generates the grid, or loads it from the cache. Doesn't touch any gl state, so it's safe to call off the main thread.
+	public void build(PlanetTerrain terrain) {
+		if (this.killed) {
+			return;
+		}
+
+		int n = RESOLUTION * RESOLUTION;
+		float[] vertices = null;
+		float[] normals = null;
+
+		//only the first few levels are cached, they're the ones every load needs
+		String cacheKey = this.level <= MAX_CACHED_LEVEL ? this.getCacheKey(terrain) : null;
+		if (cacheKey != null) {
+			PlanetMeshCache.Entry entry = PlanetMeshCache.load(cacheKey);
+			if (entry != null && entry.positions.length == n * 3 && entry.normals != null) {
+				vertices = entry.positions;
+				normals = entry.normals;
+			}
+		}
+		if (vertices == null) {
+			vertices = new float[n * 3];
+			normals = new float[n * 3];
+			this.generateGrid(terrain, vertices, normals);
+			if (cacheKey != null) {
+				PlanetMeshCache.save(cacheKey, new PlanetMeshCache.Entry(vertices, normals, null, null));
+			}
+		}
+
+		float[] uvs = new float[n * 2];
+		for (int i = 0; i < RESOLUTION; i++) {
+			for (int j = 0; j < RESOLUTION; j++) {
+				int k = i * RESOLUTION + j;
+				uvs[k * 2 + 0] = (float) j / SEGMENTS;
+				uvs[k * 2 + 1] = (float) i / SEGMENTS;
+			}
+		}
+
+		boolean[] diagonals = new boolean[SEGMENTS * SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			for (int j = 0; j < SEGMENTS; j++) {
+				int tl = i * RESOLUTION + j;
+				int tr = tl + 1;
+				int bl = tl + RESOLUTION;
+				int br = bl + 1;
+				diagonals[i * SEGMENTS + j] = distSq(vertices, tl, br) < distSq(vertices, tr, bl);
+			}
+		}
+
+		this.vertices = vertices;
+		this.normals = normals;
+		this.uvs = uvs;
+		this.diagonals = diagonals;
+		this.built = true;
+	}
+
+	private void generateGrid(PlanetTerrain terrain, float[] vertices, float[] normals) {
+		//the grid gets a 1 vertex border, so that normals on the edges can be computed without the neighbours
+		int r = RESOLUTION + 2;
+		float[] xs = new float[r * r];
+		float[] ys = new float[r * r];
+		float[] zs = new float[r * r];
+		double[] cube = new double[3];
+		for (int i = 0; i < r; i++) {
+			for (int j = 0; j < r; j++) {
+				double u = this.u0 + this.size * (j - 1) / SEGMENTS;
+				double v = this.v0 + this.size * (i - 1) / SEGMENTS;
+				toCube(this.face, u, v, cube);
+				xs[i * r + j] = (float) cube[0];
+				ys[i * r + j] = (float) cube[1];
+				zs[i * r + j] = (float) cube[2];
+			}
+		}
+		float[] grid = new float[r * r * 3];
+		terrain.generateSurfacePoints(xs, ys, zs, r * r, grid, 0);
+
+		for (int i = 0; i < RESOLUTION; i++) {
+			for (int j = 0; j < RESOLUTION; j++) {
+				int k = i * RESOLUTION + j;
+				int g = ((i + 1) * r + (j + 1)) * 3;
+				vertices[k * 3 + 0] = grid[g + 0];
+				vertices[k * 3 + 1] = grid[g + 1];
+				vertices[k * 3 + 2] = grid[g + 2];
+
+				//central differences along the grid
+				int left = g - 3, right = g + 3, up = g - r * 3, down = g + r * 3;
+				float ax = grid[right + 0] - grid[left + 0];
+				float ay = grid[right + 1] - grid[left + 1];
+				float az = grid[right + 2] - grid[left + 2];
+				float bx = grid[down + 0] - grid[up + 0];
+				float by = grid[down + 1] - grid[up + 1];
+				float bz = grid[down + 2] - grid[up + 2];
+				float nx = ay * bz - az * by;
+				float ny = az * bx - ax * bz;
+				float nz = ax * by - ay * bx;
+				float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (nx * grid[g + 0] + ny * grid[g + 1] + nz * grid[g + 2] < 0) {
+					length = -length;
+				}
+				normals[k * 3 + 0] = nx / length;
+				normals[k * 3 + 1] = ny / length;
+				normals[k * 3 + 2] = nz / length;
+			}
+		}
+	}
+
+	//identifies this patch of the given terrain. The corners are stored as integers in units of this level's patch size.
+	private String getCacheKey(PlanetTerrain terrain) {
+		long scale = 1L << this.level;
+		return terrain.getCacheKey() + "_patch" + RESOLUTION + "_" + this.face + "_" + this.level + "_" + (long) (this.u0 * scale) + "_" + (long) (this.v0 * scale);
+	}
+
+	private static float distSq(float[] vertices, int a, int b) {
+		float dx = vertices[a * 3 + 0] - vertices[b * 3 + 0];
+		float dy = vertices[a * 3 + 1] - vertices[b * 3 + 1];
+		float dz = vertices[a * 3 + 2] - vertices[b * 3 + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	//creates the vertex array out of the built grid. Has to be called on the main thread.
+	public void upload() {
+		int[] steps = new int[] { 1, 1, 1, 1 };
+		this.mesh = new VertexArray(this.vertices, this.normals, this.uvs, buildIndices(steps), GL_TRIANGLES);
+		this.stitchKey = getStitchKey(steps);
+	}
+
+	//rebuilds the indices if the edge steps changed since the last time
+	public void stitch(int[] steps) {
+		int key = getStitchKey(steps);
+		if (key == this.stitchKey) {
+			return;
+		}
+		this.mesh.setIndices(this.buildIndices(steps));
+		this.stitchKey = key;
+	}
+
+	private static int getStitchKey(int[] steps) {
+		int key = 0;
+		for (int e = 0; e < 4; e++) {
+			key = (key << 8) | steps[e];
+		}
+		return key;
+	}
+
+	//steps[e] is how many grid segments one triangle spans along edge e. Every edge of a coarser neighbour
+	//spans 2 ^ (level difference) of ours, so only keeping every step'th vertex on our edge makes both sides line up.
+	//the inner quads are triangulated like the static mesh, and the outer ring is zipped between the kept edge
+	//vertices and the first inner row.
+	public int[] buildIndices(int[] steps) {
+		IntList indices = new IntList(SEGMENTS * SEGMENTS * 6);
+
+		for (int i = 1; i < SEGMENTS - 1; i++) {
+			for (int j = 1; j < SEGMENTS - 1; j++) {
+				int tl = i * RESOLUTION + j;
+				int tr = tl + 1;
+				int bl = tl + RESOLUTION;
+				int br = bl + 1;
+				if (this.diagonals[i * SEGMENTS + j]) {
+					addTriangle(indices, bl, tl, br);
+					addTriangle(indices, tr, br, tl);
+				}
+				else {
+					addTriangle(indices, bl, tr, br);
+					addTriangle(indices, tr, bl, tl);
+				}
+			}
+		}
+
+		for (int e = 0; e < 4; e++) {
+			int step = Math.max(1, Math.min(SEGMENTS, steps[e]));
+			int outer = 0; //position along the edge, in [0, SEGMENTS]
+			int inner = 1; //position along the first inner row, in [1, SEGMENTS - 1]
+			while (outer < SEGMENTS || inner < SEGMENTS - 1) {
+				//advance whichever side's next vertex comes first, so the triangles never cross
+				boolean advanceOuter = inner == SEGMENTS - 1 || (outer < SEGMENTS && outer + step <= inner + 1);
+				if (advanceOuter) {
+					addTriangle(indices, getEdgeVertex(e, outer, 0), getEdgeVertex(e, outer + step, 0), getEdgeVertex(e, inner, 1));
+					outer += step;
+				}
+				else {
+					addTriangle(indices, getEdgeVertex(e, outer, 0), getEdgeVertex(e, inner, 1), getEdgeVertex(e, inner + 1, 1));
+					inner++;
+				}
+			}
+		}
+
+		return indices.toArray();
+	}
+
+	//vertex at position t along edge e, depth rows in from the edge
+	private static int getEdgeVertex(int e, int t, int depth) {
+		switch (e) {
+		case EDGE_TOP:
+			return depth * RESOLUTION + t;
+		case EDGE_RIGHT:
+			return t * RESOLUTION + SEGMENTS - depth;
+		case EDGE_BOTTOM:
+			return (SEGMENTS - depth) * RESOLUTION + t;
+		default:
+			return t * RESOLUTION + depth;
+		}
+	}
+
+	//adds the triangle with the same winding as the static mesh, which is counter clockwise in (j, i) grid space
+	private static void addTriangle(IntList indices, int a, int b, int c) {
+		int ai = a / RESOLUTION, aj = a % RESOLUTION;
+		int bi = b / RESOLUTION, bj = b % RESOLUTION;
+		int ci = c / RESOLUTION, cj = c % RESOLUTION;
+		int cross = (bj - aj) * (ci - ai) - (bi - ai) * (cj - aj);
+		indices.add(a);
+		if (cross > 0) {
+			indices.add(b);
+			indices.add(c);
+		}
+		else {
+			indices.add(c);
+			indices.add(b);
+		}
+	}
+
+	public void split() {
+		double half = this.size * 0.5;
+		this.children = new PlanetPatch[4];
+		for (int k = 0; k < 4; k++) {
+			this.children[k] = new PlanetPatch(this.face, this.level + 1, this.u0 + (k & 1) * half, this.v0 + (k >> 1) * half, half);
+		}
+	}
+
+	//drops the children, and frees everything under this patch
+	public void merge() {
+		if (this.children == null) {
+			return;
+		}
+		for (PlanetPatch c : this.children) {
+			c.kill();
+		}
+		this.children = null;
+	}
+
+	public void kill() {
+		this.killed = true;
+		this.merge();
+		if (this.mesh != null) {
+			this.mesh.kill();
+			this.mesh = null;
+		}
+	}
+
+	//the child that contains (u, v)
+	public PlanetPatch getChild(double u, double v) {
+		double half = this.size * 0.5;
+		int k = (u >= this.u0 + half ? 1 : 0) + (v >= this.v0 + half ? 2 : 0);
+		return this.children[k];
+	}
+
+	//whether all of the children have meshes, and can be drawn in place of this patch
+	public boolean childrenReady() {
+		if (this.children == null) {
+			return false;
+		}
+		for (PlanetPatch c : this.children) {
+			if (c.mesh == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//distance from p to the bounding sphere, in unit sphere space
+	public float getDistance(float x, float y, float z) {
+		float dx = x - this.centerX;
+		float dy = y - this.centerY;
+		float dz = z - this.centerZ;
+		return Math.max(0, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) - this.boundRadius);
+	}
+
+	public int getFace() {
+		return this.face;
+	}
+
+	public int getLevel() {
+		return this.level;
+	}
+
+	public double getU0() {
+		return this.u0;
+	}
+
+	public double getV0() {
+		return this.v0;
+	}
+
+	public double getSize() {
+		return this.size;
+	}
+
+	public float getBoundRadius() {
+		return this.boundRadius;
+	}
+
+	public PlanetPatch[] getChildren() {
+		return this.children;
+	}
+
+	public VertexArray getMesh() {
+		return this.mesh;
+	}
+
+	public boolean isBuilt() {
+		return this.built;
+	}
+
+	public boolean isKilled() {
+		return this.killed;
+	}
+
+}
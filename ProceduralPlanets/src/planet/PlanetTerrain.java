@@ -0,0 +1,133 @@
+package planet;
+
+import java.util.Random;
+
+import util.NoiseGenerator;
+
+public class PlanetTerrain {
+
+	//the shape of a planet. Everything comes from the seed, so the same seed always gives the same planet,
+	//and since nothing changes after construction, any number of threads can generate from it at once.
+
+	//has to change whenever the terrain function below changes, so old cached meshes aren't used
+	public static final int GENERATOR_VERSION = 1;
+
+	//how far above and below the unit sphere the surface can get, worked out from the height formula in
+	//generateSurfacePoints(), so they have to be worked out again whenever GENERATOR_VERSION changes.
+	//every octave of noise is within about [-1, 1], so the 5 octaves of elevation noise are within +-1.9375. Land is
+	//elevation * 2 * 0.5 * 0.1 * 0.8 times cliffs of at most 2, and sea is elevation * 2 * 0.15 * 0.8
+	private static final float MAX_ELEVATION_NOISE = 1 + 0.5f + 0.25f + 0.125f + 0.0625f;
+	public static final float MAX_HEIGHT = MAX_ELEVATION_NOISE * 0.08f * 2; //0.31
+	public static final float MIN_HEIGHT = -MAX_ELEVATION_NOISE * 0.24f; //-0.465
+
+	private final long seed;
+	private final NoiseGenerator noise;
+	private final float[] warpOffsets; //x, y, and z warp offsets
+
+	public PlanetTerrain(long seed) {
+		this(seed, NoiseGenerator.PERLIN);
+	}
+
+	//noiseType is one of the NoiseGenerator backends
+	public PlanetTerrain(long seed, int noiseType) {
+		this.seed = seed;
+
+		Random random = new Random(seed);
+		this.noise = new NoiseGenerator(random.nextLong(), noiseType);
+		this.warpOffsets = new float[9];
+		for (int i = 0; i < this.warpOffsets.length; i++) {
+			this.warpOffsets[i] = random.nextFloat();
+		}
+	}
+
+	public long getSeed() {
+		return this.seed;
+	}
+
+	public int getNoiseType() {
+		return this.noise.getType();
+	}
+
+	//everything that decides what this terrain generates, for naming cached meshes
+	public String getCacheKey() {
+		return "planet_" + Long.toHexString(this.seed) + "_n" + this.getNoiseType() + "_v" + GENERATOR_VERSION;
+	}
+
+	//maps points on a cube centered at the origin onto the unit sphere, applies the terrain height, and writes them into out
+	//as x, y, z triples starting at the given offset. xs, ys, and zs are normalized in place.
+	public void generateSurfacePoints(float[] xs, float[] ys, float[] zs, int count, float[] out, int offset) {
+		//map cube to sphere
+		for (int i = 0; i < count; i++) {
+			float length = (float) Math.sqrt(xs[i] * xs[i] + ys[i] * ys[i] + zs[i] * zs[i]);
+			xs[i] /= length;
+			ys[i] /= length;
+			zs[i] /= length;
+		}
+
+		float warpFreq = 1f;
+		float warpWeight = 1f;
+
+		//every noise layer is sampled for all of the points at once
+		float[] sampleX = new float[count];
+		float[] sampleY = new float[count];
+		float[] sampleZ = new float[count];
+		float[][] warps = new float[3][count];
+		for (int k = 0; k < 3; k++) {
+			for (int i = 0; i < count; i++) {
+				sampleX[i] = xs[i] + this.warpOffsets[k * 3 + 0];
+				sampleY[i] = ys[i] + this.warpOffsets[k * 3 + 1];
+				sampleZ[i] = zs[i] + this.warpOffsets[k * 3 + 2];
+			}
+			this.noise.sample(sampleX, sampleY, sampleZ, warps[k], count, warpFreq, 1, 0.5f, 2, 1);
+		}
+
+		for (int i = 0; i < count; i++) {
+			sampleX[i] = xs[i] + warps[0][i] * warpWeight;
+			sampleY[i] = ys[i] + warps[1][i] * warpWeight;
+			sampleZ[i] = zs[i] + warps[2][i] * warpWeight;
+		}
+		float[] elevations = new float[count];
+		this.noise.sample(sampleX, sampleY, sampleZ, elevations, count, 2, 1, 0.5f, 2, 5);
+
+		float[] cliffNoise = new float[count];
+		this.noise.sample(xs, ys, zs, cliffNoise, count, 2, 0.7f, 0.5f, 2, 2);
+
+		for (int i = 0; i < count; i++) {
+			float totalHeight = 0;
+
+			float elevation = elevations[i];
+			elevation *= 2f;
+			if (elevation > 0) {
+				//elevation = (float) Math.sqrt(elevation);
+				elevation *= 0.5f;
+			}
+
+			if (elevation < 0) {
+				elevation *= 0.15f;
+			}
+			else {
+				elevation *= 0.1f;
+			}
+			elevation *= 0.8;
+
+			float cliffs = cliffNoise[i];
+			cliffs = -Math.abs(cliffs) + 1;
+			cliffs = cliffs * cliffs * cliffs * cliffs;
+
+			cliffs *= 2;
+			if (elevation > 0) {
+				totalHeight += cliffs * elevation;
+			}
+			else {
+				totalHeight += elevation;
+			}
+
+			//xs, ys, zs are already normalized
+			float scale = 1f + totalHeight;
+			out[offset + i * 3 + 0] = xs[i] * scale;
+			out[offset + i * 3 + 1] = ys[i] * scale;
+			out[offset + i * 3 + 2] = zs[i] * scale;
+		}
+	}
+
+}
@@ -7,6 +7,7 @@ import java.nio.DoubleBuffer;
 import org.lwjgl.BufferUtils;
 
 import main.Main;
+import util.Frustum;
 import util.Mat4;
 import util.Vec2;
 import util.Vec3;
@@ -66,6 +67,11 @@ public class Camera {
 		return Mat4.lookAt(this.pos, this.pos.add(this.getFacing()), up);
 	}
 
+	// what the camera can currently see, for culling
+	public Frustum getFrustum() {
+		return new Frustum(this.getViewMatrix().mul(this.projectionMatrix));
+	}
+
 	// convert from camera space to real space
 	public Mat4 getInvViewMatrix() {
 		Mat4 ans = Mat4.lookAt(new Vec3(0, 0, 0), this.getFacing(), up).transpose();
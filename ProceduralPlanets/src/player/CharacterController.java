@@ -0,0 +1,242 @@
+package player;
+
+import model.CollisionHits;
+import model.CollisionTriangles;
+import model.Model;
+import util.Vec3;
+
+public class CharacterController {
+
+	// moves an upright capsule through a scene, without ever passing through anything, no matter how fast it goes.
+
+	// every move gathers the triangles around the whole path from the scene once, and then only sweeps the capsule against
+	// those. When the capsule runs into something, it moves up to the contact, the rest of the motion is projected onto the
+	// contact plane, and it keeps going from there, so it slides along walls and floors. If it runs into something too steep
+	// to stand on while it's on the ground, it first tries to step up onto it.
+
+	private static final int MAX_SLIDES = 4;
+	private static final int MAX_DEPENETRATION_ITERATIONS = 4;
+
+	private static final float SKIN = 0.001f; // how close the capsule gets to a surface before it stops
+	private static final float GROUND_PROBE = 0.02f; // how far below the capsule the ground can be for it to still be standing
+	private static final float MIN_GROUND_NORMAL_Y = 0.5f; // anything steeper than this is a wall
+
+	private float radius, height, stepHeight;
+
+	// triangles around the current move, in world space
+	private CollisionTriangles triangles = new CollisionTriangles(0);
+	private CollisionHits collisionHits = new CollisionHits();
+	private float[] contact = new float[12];
+
+	// normal of the contact the last sweep stopped at, pointing from the surface towards the capsule
+	private float sweepNormalX, sweepNormalY, sweepNormalZ;
+
+	private boolean onGround = false;
+	private Vec3 groundNormal = new Vec3(0);
+
+	public CharacterController(float radius, float height, float stepHeight) {
+		this.radius = radius;
+		this.height = height;
+		this.stepHeight = stepHeight;
+	}
+
+	public boolean isOnGround() {
+		return this.onGround;
+	}
+
+	public Vec3 getGroundNormal() {
+		return this.groundNormal;
+	}
+
+	/**
+	 * Moves the capsule with its bottom at pos along vel, and updates both. vel loses whatever part of it pushes into the
+	 * things the capsule hits.
+	 *
+	 * @param scene
+	 * @param pos
+	 * @param vel
+	 */
+	public void move(int scene, Vec3 pos, Vec3 vel) {
+		// the capsule can't end up further than |vel| from where it started, no matter how it slides
+		float pad = vel.length() + this.stepHeight + GROUND_PROBE + SKIN;
+		this.triangles.clear();
+		Model.collectTriangles(scene, pos.x - this.radius - pad, pos.y - pad, pos.z - this.radius - pad, pos.x + this.radius + pad, pos.y + this.height + pad, pos.z + this.radius + pad, this.triangles, this.collisionHits);
+
+		this.depenetrate(pos, vel);
+
+		float mx = vel.x, my = vel.y, mz = vel.z;
+		boolean stepped = false;
+		for (int i = 0; i < MAX_SLIDES && (mx != 0 || my != 0 || mz != 0); i++) {
+			float toi = this.sweep(pos, mx, my, mz);
+			if (toi < 0) {
+				pos.x += mx;
+				pos.y += my;
+				pos.z += mz;
+				break;
+			}
+			pos.x += mx * toi;
+			pos.y += my * toi;
+			pos.z += mz * toi;
+			mx *= 1 - toi;
+			my *= 1 - toi;
+			mz *= 1 - toi;
+			float nx = this.sweepNormalX, ny = this.sweepNormalY, nz = this.sweepNormalZ;
+
+			if (ny < MIN_GROUND_NORMAL_Y && this.onGround && !stepped) {
+				stepped = true;
+				float moved = this.step(pos, mx, mz);
+				if (moved >= 0) {
+					mx *= 1 - moved;
+					my = 0;
+					mz *= 1 - moved;
+					continue;
+				}
+			}
+
+			// slide along the contact
+			float into = mx * nx + my * ny + mz * nz;
+			if (into < 0) {
+				mx -= nx * into;
+				my -= ny * into;
+				mz -= nz * into;
+			}
+			float velInto = vel.x * nx + vel.y * ny + vel.z * nz;
+			if (velInto < 0) {
+				vel.x -= nx * velInto;
+				vel.y -= ny * velInto;
+				vel.z -= nz * velInto;
+			}
+		}
+
+		this.groundCheck(pos);
+	}
+
+	// sweeps the capsule with its bottom at pos along m, and returns the fraction of m it can move, or -1 if nothing is in
+	// the way. If something is, its normal is left in sweepNormal.
+	private float sweep(Vec3 pos, float mx, float my, float mz) {
+		float r = this.radius;
+		float ax = pos.x, ay = pos.y + r, az = pos.z;
+		float aby = this.height - r * 2;
+
+		// box around the whole sweep
+		float minX = ax + Math.min(mx, 0) - r - SKIN, minY = ay + Math.min(my, 0) - r - SKIN, minZ = az + Math.min(mz, 0) - r - SKIN;
+		float maxX = ax + Math.max(mx, 0) + r + SKIN, maxY = ay + aby + Math.max(my, 0) + r + SKIN, maxZ = az + Math.max(mz, 0) + r + SKIN;
+
+		float best = -1;
+		for (int t = 0; t < this.triangles.size(); t++) {
+			if (!this.triangles.overlapsBox(t, minX, minY, minZ, maxX, maxY, maxZ)) {
+				continue;
+			}
+			float toi = this.triangles.capsuleSweep(t, ax, ay, az, 0, aby, 0, r, mx, my, mz, SKIN, this.contact);
+			if (toi < 0 || (best >= 0 && toi >= best)) {
+				continue;
+			}
+			best = toi;
+			this.setSweepNormal(t);
+		}
+		return best;
+	}
+
+	// normal of the contact in this.contact, with triangle t as the fallback for when the capsule's segment touches it
+	private void setSweepNormal(int t) {
+		float nx = this.contact[3] - this.contact[0];
+		float ny = this.contact[4] - this.contact[1];
+		float nz = this.contact[5] - this.contact[2];
+		float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0) {
+			this.sweepNormalX = this.triangles.getNormalX(t);
+			this.sweepNormalY = this.triangles.getNormalY(t);
+			this.sweepNormalZ = this.triangles.getNormalZ(t);
+			return;
+		}
+		this.sweepNormalX = nx / length;
+		this.sweepNormalY = ny / length;
+		this.sweepNormalZ = nz / length;
+	}
+
+	// tries to get over what the capsule ran into by lifting it up, moving it across, and putting it back down onto something
+	// it can stand on. Returns the fraction of the horizontal motion m it got through, or -1 if it can't step there.
+	private float step(Vec3 pos, float mx, float mz) {
+		float upToi = this.sweep(pos, 0, this.stepHeight, 0);
+		float up = upToi < 0 ? this.stepHeight : this.stepHeight * upToi;
+		if (up <= SKIN) {
+			return -1;
+		}
+		Vec3 p = new Vec3(pos.x, pos.y + up, pos.z);
+
+		float acrossToi = this.sweep(p, mx, 0, mz);
+		float across = acrossToi < 0 ? 1 : acrossToi;
+		if (across == 0) {
+			return -1;
+		}
+		p.x += mx * across;
+		p.z += mz * across;
+
+		float down = up + GROUND_PROBE;
+		float downToi = this.sweep(p, 0, -down, 0);
+		if (downToi < 0 || this.sweepNormalY < MIN_GROUND_NORMAL_Y) {
+			// nothing to stand on, or too steep
+			return -1;
+		}
+		p.y -= down * downToi;
+		pos.set(p);
+		return across;
+	}
+
+	// pushes the capsule out of anything it starts the move inside of, like after spawning or teleporting
+	private void depenetrate(Vec3 pos, Vec3 vel) {
+		float r = this.radius;
+		float aby = this.height - r * 2;
+		for (int i = 0; i < MAX_DEPENETRATION_ITERATIONS; i++) {
+			boolean moved = false;
+			for (int t = 0; t < this.triangles.size(); t++) {
+				float ax = pos.x, ay = pos.y + r, az = pos.z;
+				if (!this.triangles.overlapsBox(t, ax - r, ay - r, az - r, ax + r, ay + aby + r, az + r)) {
+					continue;
+				}
+				float dist = this.triangles.segmentDistance(t, ax, ay, az, 0, aby, 0, this.contact);
+				if (dist < 0 || dist >= r) {
+					continue;
+				}
+				this.setSweepNormal(t);
+				float push = r - dist + SKIN;
+				pos.x += this.sweepNormalX * push;
+				pos.y += this.sweepNormalY * push;
+				pos.z += this.sweepNormalZ * push;
+				float velInto = vel.x * this.sweepNormalX + vel.y * this.sweepNormalY + vel.z * this.sweepNormalZ;
+				if (velInto < 0) {
+					vel.x -= this.sweepNormalX * velInto;
+					vel.y -= this.sweepNormalY * velInto;
+					vel.z -= this.sweepNormalZ * velInto;
+				}
+				moved = true;
+			}
+			if (!moved) {
+				break;
+			}
+		}
+	}
+
+	// the capsule is on the ground if its bottom sphere is just above something flat enough to stand on
+	private void groundCheck(Vec3 pos) {
+		this.onGround = false;
+		this.groundNormal = new Vec3(0);
+		float r = this.radius;
+		float cx = pos.x, cy = pos.y + r, cz = pos.z;
+		float reach = r + GROUND_PROBE;
+		for (int t = 0; t < this.triangles.size(); t++) {
+			if (!this.triangles.overlapsBox(t, cx - reach, cy - reach, cz - reach, cx + reach, cy + reach, cz + reach) || !this.triangles.closestPoint(t, cx, cy, cz, this.contact)) {
+				continue;
+			}
+			float nx = cx - this.contact[0], ny = cy - this.contact[1], nz = cz - this.contact[2];
+			float dist = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (dist == 0 || dist > reach || ny / dist <= MIN_GROUND_NORMAL_Y) {
+				continue;
+			}
+			this.groundNormal.addi(new Vec3(nx / dist, ny / dist, nz / dist));
+			this.onGround = true;
+		}
+		this.groundNormal.normalize();
+	}
+
+}
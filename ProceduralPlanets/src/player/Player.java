@@ -2,15 +2,12 @@ package player;
 
 import static org.lwjgl.glfw.GLFW.*;
 
-import java.util.ArrayList;
-
 import entity.Capsule;
 import entity.Entity;
 import input.KeyboardInput;
 import input.MouseInput;
 import main.Main;
 import model.AssetManager;
-import model.Model;
 import scene.Light;
 import scene.PointLight;
 import scene.Scene;
@@ -31,6 +28,7 @@ public class Player extends Entity {
 	public static float groundFriction = 0.8f;
 	public static float epsilon = 0.00001f;
 	public static float gravity = 0.005f;
+	public static float stepHeight = 0.25f;
 
 	private static float runningSpeed = 0.05f;
 	private static float walkingSpeed = 0.02f; //TBD
@@ -50,6 +48,8 @@ public class Player extends Entity {
 
 	private boolean acceptPlayerInputs = true;
 
+	private CharacterController controller;
+
 	Vec2 mouse;
 
 	public float camXRot;
@@ -61,6 +61,7 @@ public class Player extends Entity {
 		this.scene = scene;
 		this.pos = new Vec3(pos);
 		this.vel = new Vec3(0);
+		this.controller = new CharacterController(this.radius, this.height, stepHeight);
 		mouse = MouseInput.getMousePos();
 	}
 
@@ -176,7 +177,7 @@ public class Player extends Entity {
 	}
 
 	private void move() {
-		// -- UPDATE POSITON --
+		// -- FRICTION --
 		if (onGround) {
 			this.vel.x *= groundFriction;
 			this.vel.z *= groundFriction;
@@ -185,15 +186,11 @@ public class Player extends Entity {
 		else {
 			this.vel.mul(airFriction);
 		}
-		this.pos.addi(vel);
-
-		this.groundCheck();
 
 		// -- GRAVITY --
 		if (!onGround) {
 			this.vel.addi(new Vec3(0, -gravity, 0));
 		}
-		resolveCollisions();
 
 		// -- PLAYER INPUTS --
 		if (this.acceptPlayerInputs) {
@@ -230,59 +227,15 @@ public class Player extends Entity {
 				}
 			}
 			this.vel.addi(inputAccel);
-			resolveCollisions();
-		}
-
-	}
-
-	// check if on the ground, and if so, then compute the ground normal
-	private void groundCheck() {
-		this.hasLanded = true;
-		if (-this.vel.y < landingSpeed) {
-			this.hasLanded = false;
-		}
-		onGround = false;
-		groundNormal = new Vec3(0);
-		Vec3 capsule_bottomSphere = pos.add(new Vec3(0, radius, 0));
-		ArrayList<Vec3[]> intersections = Model.sphereIntersect(scene, capsule_bottomSphere, this.radius + epsilon);
-		for (Vec3[] a : intersections) {
-			Vec3 v = a[0];
-			Vec3 toCenter = new Vec3(v, capsule_bottomSphere);
-			toCenter.normalize();
-			if (toCenter.dot(new Vec3(0, 1, 0)) > 0.5) {
-				groundNormal.addi(toCenter.normalize());
-				onGround = true;
-			}
 		}
-		if (!onGround) {
-			this.hasLanded = false;
-		}
-		groundNormal.normalize();
-	}
-
-	private void resolveCollisions() {
-		Vec3 capsule_bottom = pos.add(new Vec3(0, 0, 0));
-		Vec3 capsule_top = pos.add(new Vec3(0, height, 0));
-
-		Vec3 capsule_bottomSphere = pos.add(new Vec3(0, radius, 0));
-		Vec3 capsule_topSphere = pos.add(new Vec3(0, height - radius, 0));
 
-		// resolve intersections by applying a force to each one
-		ArrayList<Vec3[]> intersections = Model.capsuleIntersect(scene, capsule_bottom, capsule_top, radius - 0.01f);
-		for (Vec3[] a : intersections) {
-			Vec3 v = a[0];
-			Vec3 capsule_c = MathUtils.point_lineSegmentProjectClamped(v, capsule_bottomSphere, capsule_topSphere); // closest point on capsule midline
-			Vec3 toCenter = new Vec3(v, capsule_c);
-
-			Vec3 normToCenter = new Vec3(toCenter).normalize();
-			toCenter.setLength(radius - toCenter.length());
-			Vec3 impulse = this.vel.projectOnto(normToCenter).mul(-1f);
-
-			if (this.vel.dot(toCenter) < 0) {
-				this.vel.addi(impulse);
-				this.pos.addi(toCenter.mul(1f + epsilon));
-			}
-		}
+		// -- UPDATE POSITON --
+		// the capsule is swept along vel, so it stops at whatever is in the way instead of ending up inside of it
+		float fallSpeed = -this.vel.y;
+		this.controller.move(scene, this.pos, this.vel);
+		this.onGround = this.controller.isOnGround();
+		this.groundNormal = this.controller.getGroundNormal();
+		this.hasLanded = this.onGround && fallSpeed >= landingSpeed;
 	}
 
 	public boolean isOnGround() {
@@ -39,6 +39,27 @@ public abstract class Light {
 		}
 	}
 
+	// how far away the light still lights things up noticeably, where color * attenuation drops below 1 / 256.
+	// directional lights, and lights that don't attenuate, reach everywhere.
+	public float getRadius() {
+		if (this.type == DIR_LIGHT) {
+			return Float.POSITIVE_INFINITY;
+		}
+		// solve quadratic * d^2 + linear * d + constant = brightness * 256
+		float brightness = Math.max(this.color.x, Math.max(this.color.y, this.color.z));
+		float c = this.constant - brightness * 256f;
+		if (c >= 0) { // too dim to notice even right next to it
+			return 0;
+		}
+		if (this.quadratic > 0) {
+			return (-this.linear + (float) Math.sqrt(this.linear * this.linear - 4 * this.quadratic * c)) / (2 * this.quadratic);
+		}
+		if (this.linear > 0) {
+			return -c / this.linear;
+		}
+		return Float.POSITIVE_INFINITY;
+	}
+
 	public abstract void bind(Shader s, int index);
 
 }
@@ -7,6 +7,8 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL30.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import graphics.Cubemap;
 import graphics.Framebuffer;
@@ -17,6 +19,7 @@ import model.Model;
 import player.Camera;
 import scene.Light;
 import scene.Scene;
+import util.Frustum;
 import util.Mat4;
 import util.Vec3;
 
@@ -40,6 +43,29 @@ public class PerspectiveScreen extends Screen {
 	private static final int SHADOW_MAP_NR_CASCADES = 6;
 	private static float[] shadowCascades = new float[] { NEAR, 1, 3, 7, 15, 30, FAR };
 
+	// the first few cascades are small and cover what's right in front of the camera, so they're redrawn every frame.
+	// the rest keep a cached shadow map of the static models, and only draw the dynamic ones on top of it each frame,
+	// see ShadowCascade
+	private static final int REALTIME_CASCADES = 2;
+	private HashMap<Light, ShadowCascade[]> cachedCascades = new HashMap<>();
+
+	// every point light keeps its own shadow cubemap, and only re-renders it when the light or something near it moves.
+	// at most MAX_CUBEMAP_UPDATES are re-rendered per frame, the most important lights first.
+	private static final float CUBEMAP_NEAR = 0.1f;
+	private static final float CUBEMAP_FAR = 50f;
+	private static final int MAX_CUBEMAP_UPDATES = 2;
+	private HashMap<Light, ShadowCubemap> shadowCubemaps = new HashMap<>();
+
+	// at most this many point and spot lights are drawn per frame, the ones that contribute the most to the screen
+	private static final int LIGHT_BUDGET = 8;
+
+	// every pass only draws the instances inside its frustum, and each one keeps its culled instances in its own view of
+	// the instance buffers, see Model.renderModels(int, Frustum, int)
+	private static final int CAMERA_VIEW = 1;
+	private static final int CASCADE_VIEW = 2; // one per cascade
+	private static final int STATIC_CASCADE_VIEW = CASCADE_VIEW + SHADOW_MAP_NR_CASCADES; // one per cascade
+	private static final int CUBEMAP_VIEW = STATIC_CASCADE_VIEW + SHADOW_MAP_NR_CASCADES; // one per cubemap face
+
 	private float worldFOV;
 
 	private Framebuffer geometryBuffer;
@@ -61,7 +87,6 @@ public class PerspectiveScreen extends Screen {
 
 	private Texture shadowDepthMap; // R: depth
 	private Texture shadowBackfaceMap; // R: isBackface
-	private Cubemap shadowCubemap; // R: depth
 
 	private Texture skyboxColorMap; // RGB: color
 	private Texture skyboxDirectionMap; // RGB: frag dir vector
@@ -87,6 +112,121 @@ public class PerspectiveScreen extends Screen {
 		this.shadowBuffer.kill();
 		this.skyboxBuffer.kill();
 		this.playermodelBuffer.kill();
+		this.killCachedCascades();
+		for (ShadowCubemap c : this.shadowCubemaps.values()) {
+			c.kill();
+		}
+		this.shadowCubemaps.clear();
+	}
+
+	private ShadowCascade getCachedCascade(Light light, int cascade) {
+		ShadowCascade[] cascades = this.cachedCascades.get(light);
+		if (cascades == null) {
+			cascades = new ShadowCascade[SHADOW_MAP_NR_CASCADES];
+			this.cachedCascades.put(light, cascades);
+		}
+		if (cascades[cascade] == null) {
+			cascades[cascade] = new ShadowCascade(Main.windowWidth, Main.windowHeight);
+		}
+		return cascades[cascade];
+	}
+
+	private ShadowCubemap getShadowCubemap(Light light) {
+		ShadowCubemap cubemap = this.shadowCubemaps.get(light);
+		if (cubemap == null) {
+			cubemap = new ShadowCubemap();
+			this.shadowCubemaps.put(light, cubemap);
+		}
+		return cubemap;
+	}
+
+	// drops the cubemaps of lights that aren't in the scene anymore, and marks the ones something moved near as dirty
+	private void updateShadowCubemaps(ArrayList<Light> lights) {
+		Iterator<Light> it = this.shadowCubemaps.keySet().iterator();
+		while (it.hasNext()) {
+			Light light = it.next();
+			if (!lights.contains(light)) {
+				this.shadowCubemaps.get(light).kill();
+				it.remove();
+			}
+			else if (Model.casterMovedNear(this.world_scene, light.pos, CUBEMAP_FAR)) {
+				this.shadowCubemaps.get(light).markDirty();
+			}
+		}
+		Model.clearMovedCasters(this.world_scene);
+	}
+
+	/**
+	 * Picks the lights to draw this frame, most important first. Directional lights light up everything, so they're
+	 * always drawn. Of the rest, only the LIGHT_BUDGET ones that contribute the most to what's on screen are.
+	 *
+	 * @param lights
+	 * @param frustum
+	 * @return
+	 */
+	private ArrayList<Light> selectLights(ArrayList<Light> lights, Frustum frustum) {
+		ArrayList<Light> ans = new ArrayList<>();
+		ArrayList<Light> ranked = new ArrayList<>();
+		ArrayList<Float> importances = new ArrayList<>();
+		for (Light light : lights) {
+			if (light.type == Light.DIR_LIGHT) {
+				ans.add(light);
+				continue;
+			}
+			float importance = this.getImportance(light, frustum);
+			if (importance <= 0) {
+				continue;
+			}
+			int j = importances.size();
+			while (j > 0 && importances.get(j - 1) < importance) {
+				j--;
+			}
+			ranked.add(j, light);
+			importances.add(j, importance);
+		}
+		for (int j = 0; j < Math.min(LIGHT_BUDGET, ranked.size()); j++) {
+			ans.add(ranked.get(j));
+		}
+		return ans;
+	}
+
+	// roughly how much a light adds to the screen, its brightness times how much of the view its reach covers
+	private float getImportance(Light light, Frustum frustum) {
+		float radius = light.getRadius();
+		if (radius <= 0 || !frustum.intersectsSphere(light.pos, radius)) {
+			return 0;
+		}
+		float brightness = 0.2126f * light.color.x + 0.7152f * light.color.y + 0.0722f * light.color.z;
+		float dist = new Vec3(this.camera.getPos(), light.pos).length();
+		float coverage = dist <= radius ? 1 : (radius / dist) * (radius / dist);
+		return brightness * coverage;
+	}
+
+	// drops the cached cascades of lights that aren't in the scene anymore
+	private void pruneCachedCascades(ArrayList<Light> lights) {
+		Iterator<Light> it = this.cachedCascades.keySet().iterator();
+		while (it.hasNext()) {
+			Light light = it.next();
+			if (!lights.contains(light)) {
+				for (ShadowCascade c : this.cachedCascades.get(light)) {
+					if (c != null) {
+						c.kill();
+					}
+				}
+				it.remove();
+			}
+		}
+	}
+
+	private void killCachedCascades() {
+		for (ShadowCascade[] cascades : this.cachedCascades.values()) {
+			for (ShadowCascade c : cascades) {
+				if (c != null) {
+					c.kill();
+				}
+			}
+		}
+		this.cachedCascades.clear();
 	}
 
 	@Override
@@ -126,6 +266,7 @@ public class PerspectiveScreen extends Screen {
 		this.lightingBuffer.setDrawBuffers(new int[] { GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1 });
 		this.lightingBuffer.isComplete();
 
+		this.killCachedCascades(); // they have to be the same size as the shadow buffer
 		this.shadowBuffer = new Framebuffer(Main.windowWidth, Main.windowHeight);
 		this.shadowDepthMap = new Texture(GL_DEPTH_COMPONENT, Main.windowWidth, Main.windowHeight, GL_DEPTH_COMPONENT, GL_FLOAT);
 		this.shadowBackfaceMap = new Texture(GL_RGBA16F, Main.windowWidth, Main.windowHeight, GL_RGBA, GL_FLOAT);
@@ -133,7 +274,6 @@ public class PerspectiveScreen extends Screen {
 		this.shadowBuffer.bindTextureToBuffer(GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, this.shadowBackfaceMap.getID());
 		this.shadowBuffer.setDrawBuffers(new int[] { GL_COLOR_ATTACHMENT0 });
 		this.shadowBuffer.isComplete();
-		this.shadowCubemap = new Cubemap(GL_DEPTH_COMPONENT, GL_DEPTH_COMPONENT, GL_FLOAT);
 
 		this.skyboxBuffer = new Framebuffer(Main.windowWidth, Main.windowHeight);
 		this.skyboxColorMap = new Texture(GL_RGBA, Main.windowWidth, Main.windowHeight, GL_RGBA, GL_FLOAT);
@@ -236,7 +376,8 @@ public class PerspectiveScreen extends Screen {
 		Shader.PLANET.bind();
 		this.setCameraFOV(this.worldFOV);
 		this.setShaderCameraUniforms(Shader.PLANET, this.camera);
-		Model.renderModels(this.world_scene);
+		Frustum cameraFrustum = this.camera.getFrustum();
+		Model.renderModels(this.world_scene, cameraFrustum, CAMERA_VIEW);
 
 		// -- DECALS -- : screen space decals
 		//decals can be transparent, but they cannot have a shininess value greater than 0. 
@@ -257,7 +398,7 @@ public class PerspectiveScreen extends Screen {
 			Shader.DECAL.setUniformMat4("pr_matrix", camera.getProjectionMatrix());
 			Shader.DECAL.setUniformMat4("vw_matrix", camera.getViewMatrix());
 			this.geometryPositionMap.bind(GL_TEXTURE4);
-			Model.renderModels(this.decal_scene);
+			Model.renderModels(this.decal_scene, cameraFrustum, CAMERA_VIEW);
 
 			glDisable(GL_BLEND);
 		}
@@ -329,7 +470,6 @@ public class PerspectiveScreen extends Screen {
 		this.geometrySpecularMap.bind(GL_TEXTURE3);
 		this.shadowDepthMap.bind(GL_TEXTURE4);
 		this.shadowBackfaceMap.bind(GL_TEXTURE5);
-		this.shadowCubemap.bind(GL_TEXTURE6);
 
 		Shader.LIGHTING.setUniform3f("view_pos", this.camera.getPos());
 
@@ -341,7 +481,12 @@ public class PerspectiveScreen extends Screen {
 		glDisable(GL_CULL_FACE);
 
 		// calculate lighting with each light seperately
-		ArrayList<Light> lights = Light.lights.get(this.world_scene);
+		ArrayList<Light> sceneLights = Light.lights.get(this.world_scene);
+		this.pruneCachedCascades(sceneLights);
+		this.updateShadowCubemaps(sceneLights);
+		ArrayList<Light> lights = this.selectLights(sceneLights, cameraFrustum);
+		boolean refreshedStale = false; // only one out of date cached cascade is redrawn per frame
+		int cubemapUpdates = 0;
 		for (int i = 0; i < lights.size(); i++) {
 			// generate depth map for light
 			if (lights.get(i).type == Light.DIR_LIGHT) {
@@ -396,24 +541,46 @@ public class PerspectiveScreen extends Screen {
 						far = Math.max(far, v.z);
 					}
 
-					// construct orthographic projection matrix
-					Camera lightCamera = new Camera(left, right, bottom, top, near - 100f, far + 100f);
-					lightCamera.setFacing(lightDir);
-
 					// render shadow map
-					shadowBuffer.bind();
+					Camera lightCamera;
 					glViewport(0, 0, Main.windowWidth, Main.windowHeight);
 					glEnable(GL_DEPTH_TEST);
-					glClear(GL_DEPTH_BUFFER_BIT | GL_COLOR_BUFFER_BIT);
 					glDisable(GL_BLEND);
 					glEnable(GL_CULL_FACE);
 					glCullFace(GL_FRONT);
-
-					Shader.LIGHTING.setUniformMat4("lightSpace_matrix", lightMat.mul(lightCamera.getProjectionMatrix()));
 					Shader.DEPTH.bind();
-
-					this.setShaderCameraUniforms(Shader.DEPTH, lightCamera);
-					Model.renderModels(this.world_scene);
+					if (cascade < REALTIME_CASCADES) {
+						// construct orthographic projection matrix
+						lightCamera = new Camera(left, right, bottom, top, near - 100f, far + 100f);
+						lightCamera.setFacing(lightDir);
+
+						shadowBuffer.bind();
+						glClear(GL_DEPTH_BUFFER_BIT | GL_COLOR_BUFFER_BIT);
+						this.setShaderCameraUniforms(Shader.DEPTH, lightCamera);
+						Model.renderModels(this.world_scene, lightCamera.getFrustum(), CASCADE_VIEW + cascade);
+					}
+					else {
+						ShadowCascade cached = this.getCachedCascade(lights.get(i), cascade);
+						int staticVersion = Model.getStaticVersion();
+						boolean moved = !cached.covers(lightDir, left, right, bottom, top, near, far);
+						if (moved || (cached.isStale(staticVersion) && !refreshedStale)) {
+							refreshedStale |= !moved;
+							Camera staticCamera = cached.fit(lightDir, left, right, bottom, top, near, far, staticVersion);
+							cached.getBuffer().bind();
+							glClear(GL_DEPTH_BUFFER_BIT | GL_COLOR_BUFFER_BIT);
+							this.setShaderCameraUniforms(Shader.DEPTH, staticCamera);
+							Model.renderModels(this.world_scene, staticCamera.getFrustum(), STATIC_CASCADE_VIEW + cascade, Model.RENDER_STATIC);
+						}
+
+						// start from the static shadows, and draw the dynamic models over them with the same camera
+						lightCamera = cached.getCamera();
+						cached.getBuffer().blitTo(shadowBuffer, GL_DEPTH_BUFFER_BIT | GL_COLOR_BUFFER_BIT);
+						shadowBuffer.bind();
+						this.setShaderCameraUniforms(Shader.DEPTH, lightCamera);
+						Model.renderModels(this.world_scene, lightCamera.getFrustum(), CASCADE_VIEW + cascade, Model.RENDER_DYNAMIC);
+					}
+					// a cached cascade can still be facing the light dir it was fit to, so use the camera that drew the depth map
+					Shader.LIGHTING.setUniformMat4("lightSpace_matrix", lightCamera.getViewMatrix().mul(lightCamera.getProjectionMatrix()));
 
 					// render portion of lit scene
 					lightingBuffer.bind();
@@ -428,44 +595,50 @@ public class PerspectiveScreen extends Screen {
 			}
 			else {
 				Light light = lights.get(i);
+				ShadowCubemap shadow = this.getShadowCubemap(light);
+				int staticVersion = Model.getStaticVersion();
+				boolean update = shadow.isStale(light.pos, staticVersion) && cubemapUpdates < MAX_CUBEMAP_UPDATES;
 
-				// generate cubemap
-				shadowBuffer.bind();
-				Shader.CUBE_DEPTH.bind();
-				float near = 0.1f;
-				float far = 50f;
-
-				Shader.CUBE_DEPTH.setUniform1f("far", far);
-
-				Vec3[][] camVectors = new Vec3[][] { { new Vec3(1, 0, 0), new Vec3(0, -1, 0) }, // -x
-						{ new Vec3(-1, 0, 0), new Vec3(0, -1, 0) }, // +x
-						{ new Vec3(0, 1, 0), new Vec3(0, 0, 1) }, // -y
-						{ new Vec3(0, -1, 0), new Vec3(0, 0, -1) }, // +y
-						{ new Vec3(0, 0, 1), new Vec3(0, -1, 0) }, // -z
-						{ new Vec3(0, 0, -1), new Vec3(0, -1, 0) }, // +z
-				};
-
-				Camera cubemapCamera = new Camera((float) Math.toRadians(90), 1f, 1f, near, far); // aspect ratio of 1
-				cubemapCamera.setPos(light.pos);
-
-				glViewport(0, 0, shadowCubemap.getSize(), shadowCubemap.getSize());
-				glEnable(GL_DEPTH_TEST);
-				glDisable(GL_BLEND);
-				glClear(GL_DEPTH_BUFFER_BIT);
-
-				// render each side of cubemap separately
-				for (int j = 0; j < 6; j++) {
-					cubemapCamera.setFacing(camVectors[j][0]);
-					cubemapCamera.setUp(camVectors[j][1]);
-
-					int face = GL_TEXTURE_CUBE_MAP_POSITIVE_X + j;
-					shadowBuffer.bindTextureToBuffer(GL_DEPTH_ATTACHMENT, face, shadowCubemap.getID());
+				if (update) {
+					// generate cubemap
 					shadowBuffer.bind();
-					glClear(GL_DEPTH_BUFFER_BIT);
-					// world.render(Shader.CUBE_DEPTH, cubemapCamera);
-					this.setShaderCameraUniforms(Shader.CUBE_DEPTH, cubemapCamera);
 					Shader.CUBE_DEPTH.bind();
-					Model.renderModels(this.world_scene);
+
+					Shader.CUBE_DEPTH.setUniform1f("far", CUBEMAP_FAR);
+
+					Vec3[][] camVectors = new Vec3[][] { { new Vec3(1, 0, 0), new Vec3(0, -1, 0) }, // -x
+							{ new Vec3(-1, 0, 0), new Vec3(0, -1, 0) }, // +x
+							{ new Vec3(0, 1, 0), new Vec3(0, 0, 1) }, // -y
+							{ new Vec3(0, -1, 0), new Vec3(0, 0, -1) }, // +y
+							{ new Vec3(0, 0, 1), new Vec3(0, -1, 0) }, // -z
+							{ new Vec3(0, 0, -1), new Vec3(0, -1, 0) }, // +z
+					};
+
+					Camera cubemapCamera = new Camera((float) Math.toRadians(90), 1f, 1f, CUBEMAP_NEAR, CUBEMAP_FAR); // aspect ratio of 1
+					cubemapCamera.setPos(light.pos);
+
+					Cubemap cubemap = shadow.getCubemap();
+					glViewport(0, 0, cubemap.getSize(), cubemap.getSize());
+					glEnable(GL_DEPTH_TEST);
+					glDisable(GL_BLEND);
+					glClear(GL_DEPTH_BUFFER_BIT);
+
+					// render each side of cubemap separately
+					for (int j = 0; j < 6; j++) {
+						cubemapCamera.setFacing(camVectors[j][0]);
+						cubemapCamera.setUp(camVectors[j][1]);
+
+						int face = GL_TEXTURE_CUBE_MAP_POSITIVE_X + j;
+						shadowBuffer.bindTextureToBuffer(GL_DEPTH_ATTACHMENT, face, cubemap.getID());
+						shadowBuffer.bind();
+						glClear(GL_DEPTH_BUFFER_BIT);
+						// world.render(Shader.CUBE_DEPTH, cubemapCamera);
+						this.setShaderCameraUniforms(Shader.CUBE_DEPTH, cubemapCamera);
+						Shader.CUBE_DEPTH.bind();
+						Model.renderModels(this.world_scene, cubemapCamera.getFrustum(), CUBEMAP_VIEW + j);
+					}
+					shadow.markRendered(light.pos, staticVersion);
+					cubemapUpdates++;
 				}
 
 				// render lit scene
@@ -475,7 +648,10 @@ public class PerspectiveScreen extends Screen {
 				glEnable(GL_BLEND);
 
 				Shader.LIGHTING.bind();
-				Shader.LIGHTING.setUniform1f("shadowCubemapFar", far);
+				Shader.LIGHTING.setUniform1f("shadowCubemapFar", CUBEMAP_FAR);
+				// a light whose cubemap hasn't had its turn yet is still lit, just without shadows until it does
+				Shader.LIGHTING.setUniform1i("shadowCubemapEnabled", shadow.isRendered() ? 1 : 0);
+				shadow.getCubemap().bind(GL_TEXTURE6);
 
 				lights.get(i).bind(Shader.LIGHTING, i);
 				screenQuad.render();
@@ -501,7 +677,7 @@ public class PerspectiveScreen extends Screen {
 			Shader.PARTICLE.bind();
 			this.setCameraFOV(this.worldFOV);
 			this.setShaderCameraUniforms(Shader.PARTICLE, this.camera);
-			Model.renderModels(this.particle_scene);
+			Model.renderModels(this.particle_scene, cameraFrustum, CAMERA_VIEW);
 		}
 
 		// -- RENDER TO OUTPUT --
@@ -0,0 +1,107 @@
+package screen;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+
+import graphics.Framebuffer;
+import graphics.Texture;
+import player.Camera;
+import util.Vec3;
+
+public class ShadowCascade {
+
+	// cached shadow map of one cascade of a directional light, with only the static models drawn into it.
+	// each frame it's copied into the working shadow map, and only the dynamic models are drawn on top, so the planet
+	// doesn't have to be drawn into every cascade every frame.
+
+	// the map covers a bit more than the cascade, so the camera can move and turn a little before it has to be
+	// re-rendered. It also has to be re-rendered when the light turns, or when static geometry changes.
+
+	private static final float MARGIN = 0.25f; // how much bigger the covered area is than the cascade, relative to its size
+	private static final float LIGHT_DIR_TOLERANCE = 0.99999f; // cos of how far the light can turn
+	private static final float CASTER_DEPTH = 100f; // how far past the cascade things still cast shadows into it
+
+	private Framebuffer buffer;
+	private Texture depthMap; // R: depth
+	private Texture backfaceMap; // R: isBackface
+
+	private boolean rendered = false;
+	private int staticVersion;
+	private Vec3 lightDir = new Vec3(0);
+	private float left, right, bottom, top, near, far; // light space area the map covers
+
+	private Camera camera;
+
+	public ShadowCascade(int width, int height) {
+		this.buffer = new Framebuffer(width, height);
+		this.depthMap = new Texture(GL_DEPTH_COMPONENT, width, height, GL_DEPTH_COMPONENT, GL_FLOAT);
+		this.backfaceMap = new Texture(GL_RGBA16F, width, height, GL_RGBA, GL_FLOAT);
+		this.buffer.bindTextureToBuffer(GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, this.depthMap.getID());
+		this.buffer.bindTextureToBuffer(GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, this.backfaceMap.getID());
+		this.buffer.setDrawBuffers(new int[] { GL_COLOR_ATTACHMENT0 });
+		this.buffer.isComplete();
+	}
+
+	/**
+	 * Whether the map, as it was last rendered, can still be used for a cascade with the given light space bounds.
+	 *
+	 * @param lightDir
+	 * @param left
+	 * @param right
+	 * @param bottom
+	 * @param top
+	 * @param near
+	 * @param far
+	 * @return
+	 */
+	public boolean covers(Vec3 lightDir, float left, float right, float bottom, float top, float near, float far) {
+		if (!this.rendered || this.lightDir.dot(lightDir) < LIGHT_DIR_TOLERANCE) {
+			return false;
+		}
+		return left >= this.left && right <= this.right && bottom >= this.bottom && top <= this.top && near >= this.near && far <= this.far;
+	}
+
+	// static geometry changed since the map was rendered
+	public boolean isStale(int staticVersion) {
+		return this.staticVersion != staticVersion;
+	}
+
+	/**
+	 * Fits the map around a cascade with the given light space bounds, and returns the camera to draw the static models
+	 * into it with. The map is rendered after this.
+	 *
+	 * @return
+	 */
+	public Camera fit(Vec3 lightDir, float left, float right, float bottom, float top, float near, float far, int staticVersion) {
+		float marginX = (right - left) * MARGIN;
+		float marginY = (top - bottom) * MARGIN;
+		float marginZ = (far - near) * MARGIN;
+		this.left = left - marginX;
+		this.right = right + marginX;
+		this.bottom = bottom - marginY;
+		this.top = top + marginY;
+		this.near = near - marginZ;
+		this.far = far + marginZ;
+		this.lightDir = new Vec3(lightDir);
+		this.staticVersion = staticVersion;
+		this.rendered = true;
+
+		this.camera = new Camera(this.left, this.right, this.bottom, this.top, this.near - CASTER_DEPTH, this.far + CASTER_DEPTH);
+		this.camera.setFacing(lightDir);
+		return this.camera;
+	}
+
+	// the camera the map was rendered with, dynamic models have to be drawn with it too
+	public Camera getCamera() {
+		return this.camera;
+	}
+
+	public Framebuffer getBuffer() {
+		return this.buffer;
+	}
+
+	public void kill() {
+		this.buffer.kill();
+	}
+
+}
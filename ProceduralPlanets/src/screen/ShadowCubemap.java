@@ -0,0 +1,53 @@
+package screen;
+
+import static org.lwjgl.opengl.GL11.*;
+
+import graphics.Cubemap;
+import util.Vec3;
+
+public class ShadowCubemap {
+
+	// cached shadow cubemap of one point light. Nothing about it changes unless the light moves, or something moves
+	// within its reach, so it's only re-rendered when one of those happens.
+
+	private Cubemap cubemap; // R: depth
+
+	private boolean rendered = false;
+	private boolean dirty = false; // a caster moved near the light since it was rendered
+	private int staticVersion;
+	private Vec3 pos = new Vec3(0);
+
+	public ShadowCubemap() {
+		this.cubemap = new Cubemap(GL_DEPTH_COMPONENT, GL_DEPTH_COMPONENT, GL_FLOAT);
+	}
+
+	public boolean isRendered() {
+		return this.rendered;
+	}
+
+	// whether the cubemap has to be re-rendered for a light at pos
+	public boolean isStale(Vec3 pos, int staticVersion) {
+		return !this.rendered || this.dirty || this.staticVersion != staticVersion || this.pos.x != pos.x || this.pos.y != pos.y || this.pos.z != pos.z;
+	}
+
+	public void markDirty() {
+		this.dirty = true;
+	}
+
+	// call after rendering
+	public void markRendered(Vec3 pos, int staticVersion) {
+		this.rendered = true;
+		this.dirty = false;
+		this.pos = new Vec3(pos);
+		this.staticVersion = staticVersion;
+	}
+
+	public Cubemap getCubemap() {
+		return this.cubemap;
+	}
+
+	public void kill() {
+		this.cubemap.kill();
+	}
+
+}
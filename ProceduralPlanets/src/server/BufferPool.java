@@ -0,0 +1,48 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public class BufferPool {
+
+	// byte buffers that were done being used, so they can be used again instead of allocating new ones. Buffers can
+	// grow while they're out, so after a while the pool is full of buffers that are already big enough.
+
+	// only ever used from one thread.
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private ArrayDeque<ByteBuffer> buffers;
+	private int maxBuffers;
+
+	public BufferPool(int maxBuffers) {
+		this.buffers = new ArrayDeque<>();
+		this.maxBuffers = maxBuffers;
+	}
+
+	// returns an empty buffer
+	public ByteBuffer get() {
+		ByteBuffer b = this.buffers.poll();
+		if (b == null) {
+			return ByteBuffer.allocate(INITIAL_CAPACITY);
+		}
+		return b;
+	}
+
+	public void release(ByteBuffer b) {
+		if (this.buffers.size() >= this.maxBuffers) {
+			return;
+		}
+		b.clear();
+		this.buffers.add(b);
+	}
+
+	// copies b into a buffer with at least the given capacity, b should be in write mode
+	public static ByteBuffer grow(ByteBuffer b, int minCapacity) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(b.capacity() * 2, minCapacity));
+		b.flip();
+		bigger.put(b);
+		return bigger;
+	}
+
+}
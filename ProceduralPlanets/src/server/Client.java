@@ -111,8 +111,8 @@ public abstract class Client implements Runnable {
 			return false;
 		}
 		System.out.println("Successfully connected to the address: " + ip + ":" + port);
-		this.connectedToServer = true;
 		this.packetListener = new PacketListener(this.socket, "Client");
+		this.connectedToServer = true; // after the listener exists, update() runs on another thread
 		return true;
 	}
 
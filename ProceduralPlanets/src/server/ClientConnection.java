@@ -0,0 +1,175 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+public class ClientConnection {
+
+	// the server's end of one client's non blocking socket. The server's selector tells it when there's something to
+	// read, and it splits whatever arrived into packets for its PacketListener. Packets that don't fit into the socket
+	// right away wait in the write queue until the selector says there's room again, and everything waiting goes out in
+	// one gathering write. Written packets go back to the PacketSender that built them, to build later packets in.
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private PacketListener packetListener;
+
+	// a client that can't keep up would otherwise make the write queue grow forever
+	private static final int MAX_QUEUED_BYTES = 1 << 22;
+
+	private ByteBuffer readBuffer; // in write mode, holds the start of a packet that hasn't fully arrived yet
+	private ArrayDeque<ByteBuffer> writeQueue;
+	private ArrayDeque<PacketSender> writeOwners; // where each buffer in the write queue goes once it's written
+	private ByteBuffer[] gather; // the write queue as an array, for channel.write()
+	private int queuedBytes;
+
+	private boolean isOpen;
+
+	public ClientConnection(SocketChannel channel, Selector selector, String name) throws IOException {
+		this.channel = channel;
+		this.channel.configureBlocking(false);
+		this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+		this.packetListener = new PacketListener(name);
+		this.readBuffer = ByteBuffer.allocate(4096);
+		this.writeQueue = new ArrayDeque<>();
+		this.writeOwners = new ArrayDeque<>();
+		this.gather = new ByteBuffer[4];
+		this.isOpen = true;
+	}
+
+	public PacketListener getPacketListener() {
+		return this.packetListener;
+	}
+
+	public boolean isOpen() {
+		return this.isOpen;
+	}
+
+	// reads everything that's available without blocking
+	public void read() {
+		try {
+			while (true) {
+				if (!this.readBuffer.hasRemaining()) {
+					// the buffer starts with the packet that's still arriving, only grow it as far as that packet says it needs
+					int packetSize = this.readBuffer.getInt(0);
+					if (packetSize < 0 || packetSize > PacketListener.MAX_PACKET_SIZE) {
+						System.err.println("Client sent a packet of size " + packetSize + ", dropping it");
+						this.close();
+						return;
+					}
+					if (this.readBuffer.position() >= 4 + packetSize) {
+						break; // it's all here, the listener just doesn't have room for it yet
+					}
+					this.readBuffer = BufferPool.grow(this.readBuffer, 4 + packetSize);
+				}
+				int n = this.channel.read(this.readBuffer);
+				if (n == -1) {
+					this.close();
+					break;
+				}
+				if (n == 0) {
+					break;
+				}
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Lost connection to client");
+			this.close();
+		}
+
+		this.readBuffer.flip();
+		this.packetListener.receive(this.readBuffer);
+		this.readBuffer.compact();
+	}
+
+	// queues a packet, the buffer shouldn't be touched after this. Once it's written, it goes back to owner.
+	public void send(ByteBuffer packet, PacketSender owner) {
+		if (this.queue(packet, owner)) {
+			this.write();
+		}
+	}
+
+	// queues a packet that continues with the bytes in shared, which go back to sharedOwner
+	public void send(ByteBuffer packet, PacketSender owner, ByteBuffer shared, PacketSender sharedOwner) {
+		if (!this.queue(packet, owner)) {
+			sharedOwner.release(shared);
+			return;
+		}
+		if (this.queue(shared, sharedOwner)) {
+			this.write();
+		}
+	}
+
+	private boolean queue(ByteBuffer b, PacketSender owner) {
+		if (!this.isOpen) {
+			owner.release(b);
+			return false;
+		}
+		if (this.queuedBytes + b.remaining() > MAX_QUEUED_BYTES) {
+			System.err.println("Client isn't keeping up, dropping it");
+			owner.release(b);
+			this.close();
+			return false;
+		}
+		this.writeQueue.add(b);
+		this.writeOwners.add(owner);
+		this.queuedBytes += b.remaining();
+		return true;
+	}
+
+	// writes as much of the write queue as the socket takes without blocking
+	public void write() {
+		try {
+			while (!this.writeQueue.isEmpty()) {
+				int n = this.writeQueue.size();
+				if (this.gather.length < n) {
+					this.gather = new ByteBuffer[n * 2];
+				}
+				this.writeQueue.toArray(this.gather);
+				long written = this.channel.write(this.gather, 0, n);
+				this.queuedBytes -= written;
+				while (!this.writeQueue.isEmpty() && !this.writeQueue.peek().hasRemaining()) {
+					this.writeOwners.poll().release(this.writeQueue.poll());
+				}
+				if (written == 0) { // socket's full
+					break;
+				}
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Lost connection to client");
+			this.close();
+			return;
+		}
+
+		// only ask the selector about room in the socket while there's something waiting for it
+		int ops = this.writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		if (this.key.isValid() && this.key.interestOps() != ops) {
+			this.key.interestOps(ops);
+		}
+	}
+
+	public void close() {
+		if (!this.isOpen) {
+			return;
+		}
+		this.isOpen = false;
+		this.packetListener.exit();
+		while (!this.writeQueue.isEmpty()) {
+			this.writeOwners.poll().release(this.writeQueue.poll());
+		}
+		this.queuedBytes = 0;
+		this.key.cancel();
+		try {
+			this.channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -22,6 +22,12 @@ public class GameClient extends Client {
 
 	private ArrayList<Integer> disconnectedPlayers;
 
+	// the last few snapshots from the server, by sequence number. The server sends each one as a delta against one we
+	// already have, see Snapshot
+	private static final int SNAPSHOT_HISTORY = 64;
+	private HashMap<Integer, Snapshot> snapshots;
+	private int snapshotAck = 0; // the newest snapshot we have, 0 asks the server for a full one
+
 	private ArrayList<Pair<String, String>> killfeed;
 
 	private ArrayList<Pair<Integer, Pair<Integer, Vec3[]>>> inBulletRays; //player id, (weapon id, bullet ray)
@@ -54,6 +60,8 @@ public class GameClient extends Client {
 
 		this.disconnectedPlayers = new ArrayList<>();
 
+		this.snapshots = new HashMap<>();
+
 		this.killfeed = new ArrayList<>();
 
 		this.inBulletRays = new ArrayList<>();
@@ -82,6 +90,9 @@ public class GameClient extends Client {
 		packetSender.write(pos.y);
 		packetSender.write(pos.z);
 
+		packetSender.writeSectionHeader("snapshot_ack", 1);
+		packetSender.write(this.snapshotAck);
+
 		if (this.outBulletRays.size() != 0) {
 			packetSender.writeSectionHeader("bullet_rays", this.outBulletRays.size());
 			for (Pair<Integer, Pair<Integer, Vec3[]>> p : this.outBulletRays) {
@@ -134,28 +145,22 @@ public class GameClient extends Client {
 			int elementAmt = packetListener.getSectionElementAmt();
 
 			switch (sectionName) {
-			case "player_positions":
-				for (int i = 0; i < elementAmt; i++) {
-					int playerID = packetListener.readInt();
-					float[] arr = packetListener.readNFloats(3);
-					this.playerPositions.put(playerID, new Vec3(arr[0], arr[1], arr[2]));
-				}
-				break;
-
-			case "player_healths":
-				for (int i = 0; i < elementAmt; i++) {
-					int playerID = packetListener.readInt();
-					int playerHealth = packetListener.readInt();
-					this.playerHealths.put(playerID, playerHealth);
-				}
-				break;
-
-			case "player_life_ids":
-				for (int i = 0; i < elementAmt; i++) {
-					int playerID = packetListener.readInt();
-					int lifeID = packetListener.readInt();
-					this.playerLifeIDs.put(playerID, lifeID);
+			case "snapshot":
+				int seq = packetListener.readInt();
+				int baselineSeq = packetListener.readInt();
+				Snapshot baseline = this.snapshots.get(baselineSeq);
+				boolean missingBaseline = baselineSeq != 0 && baseline == null;
+				Snapshot snapshot = Snapshot.readDelta(packetListener, elementAmt, seq, baseline);
+				if (missingBaseline) {
+					// can't rebuild it, so ask for a full one
+					System.err.println("Missing snapshot " + baselineSeq);
+					this.snapshotAck = 0;
+					break;
 				}
+				this.snapshots.put(seq, snapshot);
+				this.snapshots.remove(seq - SNAPSHOT_HISTORY);
+				this.snapshotAck = seq;
+				this.applySnapshot(snapshot);
 				break;
 
 			case "killfeed":
@@ -213,6 +218,20 @@ public class GameClient extends Client {
 		}
 	}
 
+	private void applySnapshot(Snapshot snapshot) {
+		HashSet<Integer> IDs = new HashSet<>();
+		for (int i = 0; i < snapshot.size(); i++) {
+			int playerID = snapshot.getID(i);
+			IDs.add(playerID);
+			this.playerPositions.put(playerID, snapshot.getPos(i));
+			this.playerHealths.put(playerID, snapshot.getHealth(i));
+			this.playerLifeIDs.put(playerID, snapshot.getLifeID(i));
+		}
+		this.playerPositions.keySet().retainAll(IDs);
+		this.playerHealths.keySet().retainAll(IDs);
+		this.playerLifeIDs.keySet().retainAll(IDs);
+	}
+
 	public HashMap<Integer, Vec3> getPlayerPositions() {
 		return this.playerPositions;
 	}
@@ -1,5 +1,6 @@
 package server;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,6 +36,15 @@ public class GameServer extends Server {
 
 	private ArrayList<String> serverMessages;
 
+	// player positions, healths, and life ids go out as deltas against the last snapshot each client acknowledged, see
+	// Snapshot. Clients that acknowledged the same snapshot get the same delta, so each one is only written once per tick.
+	private static final int SNAPSHOT_HISTORY = 64; // ticks, clients that are further behind get a full snapshot
+	private int snapshotSeq = 0;
+	private HashMap<Integer, Snapshot> snapshots; // by sequence number
+	private HashMap<Integer, Integer> snapshotAcks; // the last snapshot each client got
+	private HashMap<Integer, ByteBuffer> snapshotDeltas; // this tick's deltas, by baseline sequence number
+	private PacketSender snapshotSender;
+
 	public GameServer(String ip, int port) {
 		super(ip, port);
 
@@ -52,6 +62,11 @@ public class GameServer extends Server {
 		this.disconnectedClients = new ArrayList<>();
 
 		this.serverMessages = new ArrayList<>();
+
+		this.snapshots = new HashMap<>();
+		this.snapshotAcks = new HashMap<>();
+		this.snapshotDeltas = new HashMap<>();
+		this.snapshotSender = new PacketSender();
 	}
 
 	@Override
@@ -80,25 +95,8 @@ public class GameServer extends Server {
 	}
 
 	@Override
-	public void writePacket(PacketSender packetSender, int clientID) {
-		packetSender.writeSectionHeader("player_positions", this.playerPositions.size());
-		for (int ID : this.playerPositions.keySet()) {
-			Vec3 pos = this.playerPositions.get(ID);
-			packetSender.write(ID);
-			packetSender.write(new float[] { pos.x, pos.y, pos.z });
-		}
-
-		packetSender.writeSectionHeader("player_healths", this.playerHealths.size());
-		for (int ID : this.playerHealths.keySet()) {
-			packetSender.write(ID);
-			packetSender.write(this.playerHealths.get(ID));
-		}
-
-		packetSender.writeSectionHeader("player_life_ids", this.playerLifeIDs.size());
-		for (int ID : this.playerLifeIDs.keySet()) {
-			packetSender.write(ID);
-			packetSender.write(this.playerLifeIDs.get(ID));
-		}
+	public void writeSharedPacket(PacketSender packetSender) {
+		this.takeSnapshot();
 
 		if (this.killfeed.size() != 0) {
 			packetSender.writeSectionHeader("killfeed", this.killfeed.size());
@@ -110,11 +108,6 @@ public class GameServer extends Server {
 			}
 		}
 
-		if (playerHealths.get(clientID) <= 0) {
-			packetSender.writeSectionHeader("should_respawn", 1);
-			packetSender.write(new Vec3(respawnPoints[(int) (Math.random() * respawnPoints.length)]));
-		}
-
 		if (disconnectedClients.size() != 0) {
 			packetSender.writeSectionHeader("disconnect", disconnectedClients.size());
 			for (int i : disconnectedClients) {
@@ -151,6 +144,44 @@ public class GameServer extends Server {
 
 	}
 
+	// runs once per tick, before any packets are written
+	private void takeSnapshot() {
+		this.snapshotSeq++;
+		if (this.snapshotSeq <= 0) { // 0 means no snapshot
+			this.snapshotSeq = 1;
+		}
+		this.snapshots.put(this.snapshotSeq, new Snapshot(this.snapshotSeq, this.playerPositions, this.playerHealths, this.playerLifeIDs));
+		this.snapshots.remove(this.snapshotSeq - SNAPSHOT_HISTORY);
+		for (ByteBuffer delta : this.snapshotDeltas.values()) {
+			this.snapshotSender.release(delta);
+		}
+		this.snapshotDeltas.clear();
+	}
+
+	private void writeSnapshot(PacketSender packetSender, int clientID) {
+		Integer ack = this.snapshotAcks.get(clientID);
+		Snapshot baseline = ack == null ? null : this.snapshots.get(ack); // null if it's too old, then it gets a full snapshot
+		int baselineSeq = baseline == null ? 0 : baseline.getSeq();
+
+		ByteBuffer delta = this.snapshotDeltas.get(baselineSeq);
+		if (delta == null) {
+			this.snapshots.get(this.snapshotSeq).writeDelta(this.snapshotSender, baseline);
+			delta = this.snapshotSender.takeBytes();
+			this.snapshotDeltas.put(baselineSeq, delta);
+		}
+		packetSender.write(delta);
+	}
+
+	@Override
+	public void writePacket(PacketSender packetSender, int clientID) {
+		this.writeSnapshot(packetSender, clientID);
+
+		if (playerHealths.get(clientID) <= 0) {
+			packetSender.writeSectionHeader("should_respawn", 1);
+			packetSender.write(new Vec3(respawnPoints[(int) (Math.random() * respawnPoints.length)]));
+		}
+	}
+
 	@Override
 	public void writePacketEND() {
 		disconnectedClients.clear();
@@ -167,6 +198,10 @@ public class GameServer extends Server {
 			int elementAmt = packetListener.getSectionElementAmt();
 
 			switch (sectionName) {
+			case "snapshot_ack":
+				this.snapshotAcks.put(clientID, packetListener.readInt());
+				break;
+
 			case "pos":
 				float[] arr = packetListener.readNFloats(3);
 				playerPositions.put(clientID, new Vec3(arr[0], arr[1], arr[2]));
@@ -244,6 +279,7 @@ public class GameServer extends Server {
 		this.playerNicknames.remove(clientID);
 		this.connectedClients.remove(clientID);
 		this.disconnectedClients.add(clientID);
+		this.snapshotAcks.remove(clientID);
 	}
 
 	@Override
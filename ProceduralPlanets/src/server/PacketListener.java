@@ -1,34 +1,48 @@
 package server;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.nio.ByteBuffer;
 
+import util.SPSCQueue;
 import util.Vec3;
 
 public class PacketListener implements Runnable {
-	private boolean isRunning = true;
+	// a packet listener either has its own thread reading packets off a socket, or has bytes handed to it by
+	// something else reading off a non blocking socket, like the server's ClientConnections.
+
+	// each packet is read in one go into a byte buffer, and handed to whoever calls nextPacket() through a lock free
+	// queue. Once they're done reading it, the buffer goes back through another queue, to be reused for a later packet.
+	// Either way, exactly one thread puts packets in, and exactly one takes them out.
+
+	private static final int QUEUE_CAPACITY = 1024; // packets
+
+	// anything that claims to be bigger than this is broken, or someone trying to make us allocate it
+	public static final int MAX_PACKET_SIZE = 1 << 20;
+
+	private volatile boolean isRunning = true;
 	private Thread thread;
 	private String name;
 
 	private Socket socket; // socket on which to listen for packets
-	private Queue<byte[]> packetQueue;
+	private SPSCQueue<ByteBuffer> packetQueue;
+	private SPSCQueue<ByteBuffer> freeBuffers; // read packets, going back to whoever's putting packets in
 
-	private boolean isConnected;
+	private volatile boolean isConnected;
 
-	private long lastPacketTime;
+	private volatile long lastPacketTime;
 	private long timeoutMillis = 5000;
 
-	private byte[] packet;
-	private int readPtr;
+	private ByteBuffer packet; // the packet that's currently being read
 
 	private int sectionElementAmt;
 
 	public PacketListener(Socket socket, String name) {
 		this.socket = socket;
-		this.packetQueue = new ArrayDeque<>();
+		this.packetQueue = new SPSCQueue<>(QUEUE_CAPACITY);
+		this.freeBuffers = new SPSCQueue<>(QUEUE_CAPACITY);
 		this.name = name;
 		this.isConnected = true;
 		this.lastPacketTime = System.currentTimeMillis();
@@ -36,6 +50,16 @@ public class PacketListener implements Runnable {
 		this.start();
 	}
 
+	// for when someone else reads the socket, and hands the bytes over with receive()
+	public PacketListener(String name) {
+		this.socket = null;
+		this.packetQueue = new SPSCQueue<>(QUEUE_CAPACITY);
+		this.freeBuffers = new SPSCQueue<>(QUEUE_CAPACITY);
+		this.name = name;
+		this.isConnected = true;
+		this.lastPacketTime = System.currentTimeMillis();
+	}
+
 	private void start() {
 		this.thread = new Thread(this);
 		this.thread.start();
@@ -43,69 +67,83 @@ public class PacketListener implements Runnable {
 
 	@Override
 	public void run() {
+		DataInputStream dis;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), 1 << 16));
+		}
+		catch (IOException e) {
+			System.err.println(this.name + " closed connection");
+			e.printStackTrace();
+			this.exit();
+			return;
+		}
 		while (this.isRunning) {
-			this.listenForPackets();
+			this.listenForPackets(dis);
 		}
 	}
 
 	public boolean nextPacket() {
-		if (this.packetQueue.size() == 0) {
+		ByteBuffer next = this.packetQueue.poll();
+		if (next == null) {
 			return false;
 		}
-		this.packet = this.packetQueue.poll();
-		this.readPtr = 0;
+		if (this.packet != null) {
+			this.freeBuffers.offer(this.packet); // if there's no room, it's just dropped
+		}
+		this.packet = next;
 		return true;
 	}
 
+	// an empty buffer with room for a packet of the given size, reusing a read packet's buffer if there is one. The size
+	// has to have been checked against MAX_PACKET_SIZE already.
+	private ByteBuffer getBuffer(int size) {
+		ByteBuffer b = this.freeBuffers.poll();
+		if (b == null || b.capacity() < size) {
+			b = ByteBuffer.allocate(Math.max(size, 1024));
+		}
+		b.clear();
+		b.limit(size);
+		return b;
+	}
+
 	public boolean isConnected() {
 		long timeFromLastPacket = System.currentTimeMillis() - lastPacketTime;
 		return timeFromLastPacket < timeoutMillis && isConnected;
 	}
 
 	public boolean hasMoreBytes() {
-		return this.readPtr < this.packet.length;
+		return this.packet.hasRemaining();
 	}
 
 	public byte readByte() {
-		byte ans = this.packet[this.readPtr];
-		this.readPtr++;
-		return ans;
+		return this.packet.get();
 	}
 
 	public byte[] readNBytes(int n) {
 		byte[] ans = new byte[n];
-		for (int i = 0; i < n; i++) {
-			ans[i] = this.readByte();
-		}
+		this.packet.get(ans);
 		return ans;
 	}
 
 	public int readInt() {
-		int ans = 0;
-		for (int i = 0; i < 4; i++) {
-			ans <<= 8;
-			ans |= this.readByte() & 0xFF;
-		}
-		return ans;
+		return this.packet.getInt();
 	}
 
 	public int[] readNInts(int n) {
 		int[] ans = new int[n];
-		for (int i = 0; i < n; i++) {
-			ans[i] = this.readInt();
-		}
+		this.packet.asIntBuffer().get(ans);
+		this.packet.position(this.packet.position() + n * 4);
 		return ans;
 	}
 
 	public float readFloat() {
-		return Float.intBitsToFloat(this.readInt());
+		return this.packet.getFloat();
 	}
 
 	public float[] readNFloats(int n) {
 		float[] ans = new float[n];
-		for (int i = 0; i < n; i++) {
-			ans[i] = this.readFloat();
-		}
+		this.packet.asFloatBuffer().get(ans);
+		this.packet.position(this.packet.position() + n * 4);
 		return ans;
 	}
 
@@ -140,11 +178,20 @@ public class PacketListener implements Runnable {
 		return this.sectionElementAmt;
 	}
 
-	private void listenForPackets() {
+	private void listenForPackets(DataInputStream dis) {
 		try {
-			DataInputStream dis = new DataInputStream(this.socket.getInputStream());
 			int packetSize = dis.readInt();
-			this.packetQueue.add(this.readNBytes(packetSize, dis));
+			if (packetSize < 0 || packetSize > MAX_PACKET_SIZE) {
+				throw new IOException("Broken packet size " + packetSize);
+			}
+			ByteBuffer b = this.getBuffer(packetSize);
+			dis.readFully(b.array(), b.arrayOffset(), packetSize);
+			while (!this.packetQueue.offer(b)) { // nobody's reading them, wait until they do
+				if (!this.isRunning) {
+					return;
+				}
+				Thread.yield();
+			}
 			// System.out.println(this.name + " read packet of size " + packetSize);
 		} catch (IOException e) {
 			// probably closed connection
@@ -156,15 +203,37 @@ public class PacketListener implements Runnable {
 		this.lastPacketTime = System.currentTimeMillis();
 	}
 
-	private byte[] readNBytes(int n, DataInputStream dis) throws IOException {
-		byte[] packet = new byte[n];
-		for (int i = 0; i < n; i++) {
-			packet[i] = dis.readByte();
+	/**
+	 * Takes every complete packet out of buf, which should be in read mode. Whatever's left of a packet that hasn't fully
+	 * arrived yet stays in buf, and so do packets that don't fit into the queue.
+	 *
+	 * @param buf
+	 */
+	public void receive(ByteBuffer buf) {
+		while (buf.remaining() >= 4 && this.packetQueue.size() < this.packetQueue.capacity()) {
+			int packetSize = buf.getInt(buf.position());
+			if (packetSize < 0 || packetSize > MAX_PACKET_SIZE) {
+				System.err.println(this.name + " received a broken packet of size " + packetSize);
+				this.exit();
+				return;
+			}
+			if (buf.remaining() < 4 + packetSize) {
+				break;
+			}
+			buf.getInt();
+			ByteBuffer b = this.getBuffer(packetSize);
+			int limit = buf.limit();
+			buf.limit(buf.position() + packetSize);
+			b.put(buf);
+			buf.limit(limit);
+			b.flip();
+			this.packetQueue.offer(b);
+			this.lastPacketTime = System.currentTimeMillis();
 		}
-		return packet;
 	}
 
 	public void exit() {
 		this.isRunning = false;
+		this.isConnected = false;
 	}
 }
@@ -1,78 +1,194 @@
 package server;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
+import util.IntList;
 import util.Vec3;
 
 public class PacketSender {
 	// packets always start with an int denoting the length of the packet
 
-	private ArrayList<Byte> packet;
+	// the packet is built straight into a byte buffer, with room for the length left at the start. Flushing to a
+	// ClientConnection hands the buffer over as is, and takes an empty one out of the sender's own pool. The connection
+	// gives the buffer back once it's written it. After the first few ticks, packets don't need new buffers, and never get
+	// copied.
+
+	// bytes that are the same for many packets can be written once, taken out with takeBytes(), and then appended to
+	// each packet when it's flushed, without being copied into it. The sender counts who still holds the buffer they're in:
+	// whoever took them until they release() them, and every connection they're queued on until they're written. Once
+	// nobody does, the buffer goes back into the pool.
+
+	private static final int HEADER_SIZE = 4;
+	private static final int POOL_BUFFERS = 64; // empty buffers kept around, about one per client is enough
+
+	private ByteBuffer packet;
+	private BufferPool bufferPool;
+
+	// buffers handed out by takeBytes(), and how many holders each one has left
+	private ArrayList<ByteBuffer> taken;
+	private IntList takenHolders;
 
 	public PacketSender() {
-		this.packet = new ArrayList<>();
+		this.bufferPool = new BufferPool(POOL_BUFFERS);
+		this.taken = new ArrayList<>();
+		this.takenHolders = new IntList();
+		this.packet = this.bufferPool.get();
+		this.packet.position(HEADER_SIZE);
+	}
+
+	// writes the length, and flips the packet so it's ready to be sent. extra is how many bytes are sent right after it
+	private ByteBuffer finishPacket(int extra) {
+		this.packet.putInt(0, this.packet.position() - HEADER_SIZE + extra);
+		this.packet.flip();
+		return this.packet;
 	}
 
 	public void flush(Socket socket) throws IOException {
-		int packetSize = this.packet.size();
-		byte[] packetArr = new byte[packetSize];
-		for (int i = 0; i < packetSize; i++) {
-			packetArr[i] = packet.get(i);
+		ByteBuffer b = this.finishPacket(0);
+		OutputStream out = socket.getOutputStream();
+		out.write(b.array(), b.arrayOffset(), b.limit());
+		out.flush();
+		b.clear();
+		b.position(HEADER_SIZE);
+	}
+
+	// queues the packet on a non blocking connection
+	public void flush(ClientConnection connection) {
+		ByteBuffer b = this.finishPacket(0);
+		this.packet = this.bufferPool.get();
+		this.packet.position(HEADER_SIZE);
+		connection.send(b, this);
+	}
+
+	// queues the packet with shared appended to it, shared comes from sharedSender.takeBytes()
+	public void flush(ClientConnection connection, ByteBuffer shared, PacketSender sharedSender) {
+		ByteBuffer b = this.finishPacket(shared.remaining());
+		this.packet = this.bufferPool.get();
+		this.packet.position(HEADER_SIZE);
+		sharedSender.hold(shared);
+		connection.send(b, this, shared.duplicate(), sharedSender);
+	}
+
+	/**
+	 * Takes everything written so far, to append to any number of packets with flush(ClientConnection, ByteBuffer,
+	 * PacketSender). The bytes shouldn't be written to, and have to be given back with release() once they're not needed
+	 * anymore. Until every connection they're queued on has written them too, the sender builds in another buffer.
+	 *
+	 * @return
+	 */
+	public ByteBuffer takeBytes() {
+		ByteBuffer b = this.packet;
+		b.flip();
+		b.position(HEADER_SIZE);
+		this.taken.add(b);
+		this.takenHolders.add(1);
+		this.packet = this.bufferPool.get();
+		this.packet.position(HEADER_SIZE);
+		return b.slice();
+	}
+
+	/**
+	 * Gives back a buffer that came from this sender, either bytes from takeBytes(), or a packet a connection is done
+	 * writing.
+	 *
+	 * @param b
+	 */
+	public void release(ByteBuffer b) {
+		int i = this.indexOfTaken(b);
+		if (i == -1) {
+			this.bufferPool.release(b);
+			return;
+		}
+		int holders = this.takenHolders.get(i) - 1;
+		if (holders > 0) {
+			this.takenHolders.set(i, holders);
+			return;
+		}
+		this.bufferPool.release(this.taken.get(i));
+		int last = this.taken.size() - 1;
+		this.taken.set(i, this.taken.get(last));
+		this.taken.remove(last);
+		this.takenHolders.set(i, this.takenHolders.get(last));
+		this.takenHolders.removeLast();
+	}
+
+	// one more connection is going to write these bytes from takeBytes()
+	private void hold(ByteBuffer b) {
+		int i = this.indexOfTaken(b);
+		this.takenHolders.set(i, this.takenHolders.get(i) + 1);
+	}
+
+	// slices and duplicates share the array of the buffer they came from
+	private int indexOfTaken(ByteBuffer b) {
+		for (int i = 0; i < this.taken.size(); i++) {
+			if (this.taken.get(i).array() == b.array()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void ensureRemaining(int n) {
+		if (this.packet.remaining() < n) {
+			this.packet = BufferPool.grow(this.packet, this.packet.position() + n);
 		}
-		this.packet.clear();
-		DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-		dos.writeInt(packetSize);
-		dos.write(packetArr);
-		dos.flush();
 	}
 
 	public void write(byte a) {
-		this.packet.add(a);
+		this.ensureRemaining(1);
+		this.packet.put(a);
 	}
 
 	public void write(byte[] a) {
-		for (byte b : a) {
-			this.packet.add(b);
-		}
+		this.ensureRemaining(a.length);
+		this.packet.put(a);
+	}
+
+	// copies over whatever's left in a, without changing a's position
+	public void write(ByteBuffer a) {
+		this.ensureRemaining(a.remaining());
+		this.packet.put(a.duplicate());
 	}
 
 	public void write(float a) {
-		int bits = Float.floatToIntBits(a);
-		this.write(bits);
+		this.ensureRemaining(4);
+		this.packet.putFloat(a);
 	}
 
 	public void write(float[] a) {
-		for (float b : a) {
-			this.write(b);
-		}
+		this.ensureRemaining(a.length * 4);
+		this.packet.asFloatBuffer().put(a);
+		this.packet.position(this.packet.position() + a.length * 4);
 	}
 
 	public void write(Vec3 a) {
-		this.write(a.x);
-		this.write(a.y);
-		this.write(a.z);
+		this.ensureRemaining(12);
+		this.packet.putFloat(a.x);
+		this.packet.putFloat(a.y);
+		this.packet.putFloat(a.z);
 	}
 
 	public void write(int a) {
-		this.packet.add((byte) (0xFF & (a >> 24)));
-		this.packet.add((byte) (0xFF & (a >> 16)));
-		this.packet.add((byte) (0xFF & (a >> 8)));
-		this.packet.add((byte) (0xFF & (a >> 0)));
+		this.ensureRemaining(4);
+		this.packet.putInt(a);
 	}
 
 	public void write(int[] a) {
-		for (int i : a) {
-			this.write(i);
-		}
+		this.ensureRemaining(a.length * 4);
+		this.packet.asIntBuffer().put(a);
+		this.packet.position(this.packet.position() + a.length * 4);
 	}
 
+	// one byte per char
 	public void write(String a) {
-		char[] arr = a.toCharArray();
-		for (char c : arr) {
-			this.write((byte) c);
+		int len = a.length();
+		this.ensureRemaining(len);
+		for (int i = 0; i < len; i++) {
+			this.packet.put((byte) a.charAt(i));
 		}
 	}
 
@@ -82,4 +198,4 @@ public class PacketSender {
 		this.write(a);
 		this.write(elementAmt);
 	}
-}
\ No newline at end of file
+}
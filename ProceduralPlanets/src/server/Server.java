@@ -8,13 +8,21 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 
 public abstract class Server implements Runnable {
+	// all sockets are non blocking, and the server thread itself checks them all with one selector at the start of
+	// every tick, so there's no thread per client, or for accepting connections.
+
 	private boolean isRunning = true;
 	private Thread thread;
 
@@ -24,13 +32,12 @@ public abstract class Server implements Runnable {
 	private String ip;
 	private int port;
 
-	private ServerConnectionRequestListener serverConnectionRequestListener;
-
-	private ServerSocket serverSocket;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
 	private HashSet<Integer> clientIDs;
-	private HashMap<Integer, Socket> clientSockets;
-	private HashMap<Integer, PacketListener> packetListeners;
+	private HashMap<Integer, ClientConnection> clientConnections;
 	private PacketSender packetSender;
+	private PacketSender sharedPacketSender;
 
 	private long noClientTimeoutMillis = 15000;
 	private long firstNoClientTime = 0;
@@ -40,19 +47,24 @@ public abstract class Server implements Runnable {
 		this.ip = ip;
 		this.port = port;
 
-		this.serverSocket = null;
+		this.selector = null;
+		this.serverChannel = null;
 		try {
-			this.serverSocket = new ServerSocket(this.port, 8, InetAddress.getByName(this.ip));
+			this.selector = Selector.open();
+			this.serverChannel = ServerSocketChannel.open();
+			this.serverChannel.bind(new InetSocketAddress(InetAddress.getByName(this.ip), this.port), 8);
+			this.serverChannel.configureBlocking(false);
+			this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+			System.out.println("Listening for connection requests");
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 
 		this.clientIDs = new HashSet<>();
-		this.clientSockets = new HashMap<>();
-		this.packetListeners = new HashMap<>();
-		this.serverConnectionRequestListener = new ServerConnectionRequestListener(this.serverSocket);
+		this.clientConnections = new HashMap<>();
 		this.packetSender = new PacketSender();
+		this.sharedPacketSender = new PacketSender();
 
 		this.start();
 	}
@@ -94,29 +106,77 @@ public abstract class Server implements Runnable {
 		return ID;
 	}
 
-	public void update() {
-		if (this.serverConnectionRequestListener.hasNewClients()) {
-			ArrayList<Socket> newClients = this.serverConnectionRequestListener.getNewClients();
-			for (Socket s : newClients) {
-				PacketListener l = new PacketListener(s, "Server");
+	// accepts new clients, reads whatever arrived, and keeps writing packets that didn't fit into their socket last time
+	private void pollSockets() {
+		try {
+			this.selector.selectNow();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			if (!key.isValid()) {
+				continue;
+			}
+			if (key.isAcceptable()) {
+				this.acceptClients();
+				continue;
+			}
+			ClientConnection c = (ClientConnection) key.attachment();
+			if (key.isReadable()) {
+				c.read();
+			}
+			if (key.isValid() && key.isWritable()) {
+				c.write();
+			}
+		}
+	}
+
+	private void acceptClients() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = this.serverChannel.accept();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.socket().setTcpNoDelay(true);
+				ClientConnection c = new ClientConnection(channel, this.selector, "Server");
+				System.out.println("Client has joined");
 				int ID = this.generateNewClientID();
 				this.clientIDs.add(ID);
-				this.clientSockets.put(ID, s);
-				this.packetListeners.put(ID, l);
+				this.clientConnections.put(ID, c);
 				this._clientConnect(ID);
 			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
+	}
+
+	public void update() {
+		this.pollSockets();
 
 		// -- READ -- should open for whenever
 		ArrayList<Integer> disconnectedClients = new ArrayList<>();
 		for (int ID : this.clientIDs) {
-			if (!this.packetListeners.get(ID).isConnected()) {
-				disconnectedClients.add(ID);
-				continue;
+			PacketListener l = this.clientConnections.get(ID).getPacketListener();
+			while (l.nextPacket()) {
+				this.readPacket(l, ID);
 			}
 
-			while (this.packetListeners.get(ID).nextPacket()) {
-				this.readPacket(this.packetListeners.get(ID), ID);
+			if (!l.isConnected()) {
+				disconnectedClients.add(ID);
 			}
 		}
 
@@ -124,15 +184,8 @@ public abstract class Server implements Runnable {
 		for (int ID : disconnectedClients) {
 			// Client Disconnected
 			System.out.println("Client disconnected");
-			this.packetListeners.get(ID).exit();
-			this.packetListeners.remove(ID);
-			try {
-				this.clientSockets.get(ID).close();
-			}
-			catch (IOException e) {
-				e.printStackTrace();
-			}
-			this.clientSockets.remove(ID);
+			this.clientConnections.get(ID).close();
+			this.clientConnections.remove(ID);
 			this.clientIDs.remove(ID);
 			this._clientDisconnect(ID);
 		}
@@ -140,20 +193,20 @@ public abstract class Server implements Runnable {
 		this._update();
 
 		// -- WRITE -- //should run at set tickrate
-		for (int ID : this.clientIDs) {
-			Socket s = this.clientSockets.get(ID);
-			try {
+		// whatever every client gets is only written once, and sent after each client's own part
+		if (this.clientIDs.size() != 0) {
+			this.writeSharedPacket(this.sharedPacketSender);
+			ByteBuffer shared = this.sharedPacketSender.takeBytes();
+			for (int ID : this.clientIDs) {
 				this.packetSender.write(ID);
 				this.writePacket(this.packetSender, ID);
-				this.packetSender.flush(s);
-			}
-			catch (IOException e) {
-				e.printStackTrace();
+				this.packetSender.flush(this.clientConnections.get(ID), shared, this.sharedPacketSender);
 			}
+			this.sharedPacketSender.release(shared);
 		}
 		this.writePacketEND();
 
-		if (this.clientSockets.size() == 0) { // no more clients :((
+		if (this.clientConnections.size() == 0) { // no more clients :((
 			if (this.prevTickNoClients) {
 				if (System.currentTimeMillis() - this.firstNoClientTime > this.noClientTimeoutMillis) {
 					System.out.println("No clients, shutting down server");
@@ -173,7 +226,10 @@ public abstract class Server implements Runnable {
 	//placed between read and write, allows the server to process the information just read in. 
 	public abstract void _update();
 
-	// use the packet sender to write a packet. The parent class will flush it for you
+	// use the packet sender to write the sections that are the same for every client, once per tick
+	public abstract void writeSharedPacket(PacketSender packetSender);
+
+	// use the packet sender to write a packet. The parent class will flush it for you, with the shared sections appended
 	public abstract void writePacket(PacketSender packetSender, int clientID);
 
 	// run once after all packets to clients have been sent. 
@@ -195,24 +251,16 @@ public abstract class Server implements Runnable {
 
 	public void exit() {
 		System.out.println("Closing server at " + ip + ":" + port);
-		this.serverConnectionRequestListener.exit();
 
 		for (int ID : this.clientIDs) {
-			try {
-				if (this.packetListeners.get(ID) != null) {
-					this.packetListeners.get(ID).exit();
-				}
-				if (this.clientSockets.get(ID) != null) {
-					this.clientSockets.get(ID).close();
-				}
-			}
-			catch (IOException e) {
-				e.printStackTrace();
+			if (this.clientConnections.get(ID) != null) {
+				this.clientConnections.get(ID).close();
 			}
 		}
 
 		try {
-			this.serverSocket.close();
+			this.serverChannel.close();
+			this.selector.close();
 		}
 		catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -223,60 +271,3 @@ public abstract class Server implements Runnable {
 	}
 
 }
-
-class ServerConnectionRequestListener implements Runnable {
-	private boolean isRunning = true;
-	private Thread thread;
-
-	private ServerSocket serverSocket; // socket on which to listen for connection requests
-	private ArrayList<Socket> newClients;
-
-	public ServerConnectionRequestListener(ServerSocket serverSocket) {
-		this.serverSocket = serverSocket;
-		this.newClients = new ArrayList<>();
-		this.start();
-	}
-
-	private void start() {
-		this.thread = new Thread(this);
-		this.thread.start();
-	}
-
-	@Override
-	public void run() {
-		while (this.isRunning) {
-			Socket s = listenForServerRequest();
-			if (s != null) {
-				this.newClients.add(s);
-			}
-		}
-	}
-
-	public boolean hasNewClients() {
-		return this.newClients.size() != 0;
-	}
-
-	public ArrayList<Socket> getNewClients() {
-		ArrayList<Socket> out = new ArrayList<>();
-		out.addAll(this.newClients);
-		this.newClients = new ArrayList<>();
-		return out;
-	}
-
-	private Socket listenForServerRequest() {
-		try {
-			System.out.println("Listening for connection requests");
-			Socket socket = this.serverSocket.accept();
-			System.out.println("Client has joined");
-			return socket;
-		}
-		catch (IOException e) {
-			System.out.println("No connection requests");
-		}
-		return null;
-	}
-
-	public void exit() {
-		this.isRunning = false;
-	}
-}
\ No newline at end of file
@@ -0,0 +1,239 @@
+package server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import util.Vec3;
+
+public class Snapshot {
+
+	// the state of every player at one server tick: position, health, and life id.
+
+	// instead of sending the whole thing every tick, the server sends how it differs from the last snapshot the client
+	// said it got, the baseline. Each player that changed gets a bitmask of which of its fields changed, followed by
+	// just those fields, and players that didn't change aren't sent at all. The client rebuilds the snapshot by applying
+	// that on top of its own copy of the baseline, so it has to keep the last few snapshots around too.
+
+	// sequence number 0 means no snapshot, a delta against it is the full snapshot.
+
+	public static final int POS = 1;
+	public static final int HEALTH = 2;
+	public static final int LIFE_ID = 4;
+	public static final int REMOVED = 8;
+	private static final int ALL = POS | HEALTH | LIFE_ID;
+
+	private int seq;
+
+	// sorted by ID, so two snapshots can be compared in one walk
+	private int size;
+	private int[] IDs;
+	private float[] positions; // x, y, z
+	private int[] healths;
+	private int[] lifeIDs;
+
+	public Snapshot(int seq) {
+		this.seq = seq;
+		this.size = 0;
+		this.IDs = new int[8];
+		this.positions = new float[8 * 3];
+		this.healths = new int[8];
+		this.lifeIDs = new int[8];
+	}
+
+	// takes every player that has a position
+	public Snapshot(int seq, HashMap<Integer, Vec3> positions, HashMap<Integer, Integer> healths, HashMap<Integer, Integer> lifeIDs) {
+		this(seq);
+		int[] IDs = new int[positions.size()];
+		int n = 0;
+		for (int ID : positions.keySet()) {
+			IDs[n++] = ID;
+		}
+		Arrays.sort(IDs);
+		for (int ID : IDs) {
+			Vec3 pos = positions.get(ID);
+			Integer health = healths.get(ID);
+			Integer lifeID = lifeIDs.get(ID);
+			this.add(ID, pos.x, pos.y, pos.z, health == null ? 0 : health, lifeID == null ? 0 : lifeID);
+		}
+	}
+
+	public int getSeq() {
+		return this.seq;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// players have to be added in order of increasing ID
+	private void add(int ID, float x, float y, float z, int health, int lifeID) {
+		if (this.size == this.IDs.length) {
+			int capacity = this.size * 2;
+			this.IDs = Arrays.copyOf(this.IDs, capacity);
+			this.positions = Arrays.copyOf(this.positions, capacity * 3);
+			this.healths = Arrays.copyOf(this.healths, capacity);
+			this.lifeIDs = Arrays.copyOf(this.lifeIDs, capacity);
+		}
+		int i = this.size++;
+		this.IDs[i] = ID;
+		this.positions[i * 3 + 0] = x;
+		this.positions[i * 3 + 1] = y;
+		this.positions[i * 3 + 2] = z;
+		this.healths[i] = health;
+		this.lifeIDs[i] = lifeID;
+	}
+
+	public int getID(int i) {
+		return this.IDs[i];
+	}
+
+	public Vec3 getPos(int i) {
+		return new Vec3(this.positions[i * 3 + 0], this.positions[i * 3 + 1], this.positions[i * 3 + 2]);
+	}
+
+	public int getHealth(int i) {
+		return this.healths[i];
+	}
+
+	public int getLifeID(int i) {
+		return this.lifeIDs[i];
+	}
+
+	// which fields of player i differ from player j of the baseline
+	private int diff(int i, Snapshot baseline, int j) {
+		int mask = 0;
+		if (this.positions[i * 3 + 0] != baseline.positions[j * 3 + 0] || this.positions[i * 3 + 1] != baseline.positions[j * 3 + 1] || this.positions[i * 3 + 2] != baseline.positions[j * 3 + 2]) {
+			mask |= POS;
+		}
+		if (this.healths[i] != baseline.healths[j]) {
+			mask |= HEALTH;
+		}
+		if (this.lifeIDs[i] != baseline.lifeIDs[j]) {
+			mask |= LIFE_ID;
+		}
+		return mask;
+	}
+
+	/**
+	 * Writes the "snapshot" section: this snapshot's sequence number, the baseline's, and then every player that differs
+	 * from the baseline. A null baseline writes the full snapshot.
+	 *
+	 * @param packetSender
+	 * @param baseline
+	 */
+	public void writeDelta(PacketSender packetSender, Snapshot baseline) {
+		if (baseline == null) {
+			baseline = new Snapshot(0);
+		}
+
+		// walk both twice, once to count the changed players for the section header, and once to write them
+		for (int pass = 0; pass < 2; pass++) {
+			int changed = 0;
+			int i = 0, j = 0;
+			while (i < this.size || j < baseline.size) {
+				int mask;
+				int ID;
+				int index = i;
+				if (j == baseline.size || (i < this.size && this.IDs[i] < baseline.IDs[j])) { // new player
+					ID = this.IDs[i++];
+					mask = ALL;
+				}
+				else if (i == this.size || baseline.IDs[j] < this.IDs[i]) { // player left
+					ID = baseline.IDs[j++];
+					mask = REMOVED;
+				}
+				else {
+					ID = this.IDs[i];
+					mask = this.diff(i++, baseline, j++);
+				}
+				if (mask == 0) {
+					continue;
+				}
+				changed++;
+				if (pass == 0) {
+					continue;
+				}
+
+				packetSender.write(ID);
+				packetSender.write((byte) mask);
+				if ((mask & POS) != 0) {
+					packetSender.write(this.positions[index * 3 + 0]);
+					packetSender.write(this.positions[index * 3 + 1]);
+					packetSender.write(this.positions[index * 3 + 2]);
+				}
+				if ((mask & HEALTH) != 0) {
+					packetSender.write(this.healths[index]);
+				}
+				if ((mask & LIFE_ID) != 0) {
+					packetSender.write(this.lifeIDs[index]);
+				}
+			}
+			if (pass == 0) {
+				packetSender.writeSectionHeader("snapshot", changed);
+				packetSender.write(this.seq);
+				packetSender.write(baseline.seq);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rest of a "snapshot" section written by writeDelta(), after its header, and rebuilds the snapshot on top
+	 * of the baseline. Pass null when the baseline is a full snapshot, or when it's missing, in which case the result is
+	 * wrong, but the section is still read all the way through.
+	 *
+	 * @param packetListener
+	 * @param elementAmt
+	 * @param seq            the snapshot's sequence number, already read
+	 * @param baseline
+	 * @return
+	 */
+	public static Snapshot readDelta(PacketListener packetListener, int elementAmt, int seq, Snapshot baseline) {
+		if (baseline == null) {
+			baseline = new Snapshot(0);
+		}
+		Snapshot ans = new Snapshot(seq);
+		int j = 0;
+		for (int n = 0; n < elementAmt; n++) {
+			int ID = packetListener.readInt();
+			int mask = packetListener.readByte();
+
+			// players in between didn't change
+			while (j < baseline.size && baseline.IDs[j] < ID) {
+				ans.copy(baseline, j++);
+			}
+			boolean inBaseline = j < baseline.size && baseline.IDs[j] == ID;
+
+			float x = inBaseline ? baseline.positions[j * 3 + 0] : 0;
+			float y = inBaseline ? baseline.positions[j * 3 + 1] : 0;
+			float z = inBaseline ? baseline.positions[j * 3 + 2] : 0;
+			int health = inBaseline ? baseline.healths[j] : 0;
+			int lifeID = inBaseline ? baseline.lifeIDs[j] : 0;
+			if (inBaseline) {
+				j++;
+			}
+			if ((mask & POS) != 0) {
+				x = packetListener.readFloat();
+				y = packetListener.readFloat();
+				z = packetListener.readFloat();
+			}
+			if ((mask & HEALTH) != 0) {
+				health = packetListener.readInt();
+			}
+			if ((mask & LIFE_ID) != 0) {
+				lifeID = packetListener.readInt();
+			}
+			if ((mask & REMOVED) == 0) {
+				ans.add(ID, x, y, z, health, lifeID);
+			}
+		}
+		while (j < baseline.size) {
+			ans.copy(baseline, j++);
+		}
+		return ans;
+	}
+
+	private void copy(Snapshot other, int j) {
+		this.add(other.IDs[j], other.positions[j * 3 + 0], other.positions[j * 3 + 1], other.positions[j * 3 + 2], other.healths[j], other.lifeIDs[j]);
+	}
+
+}
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Queue;
 import java.util.Stack;
+import java.util.concurrent.ThreadLocalRandom;
 
 import audio.Sound;
 import entity.Capsule;
@@ -37,6 +38,7 @@ import model.FilledRectangle;
 import model.Model;
 import particle.Particle;
 import planet.Planet;
+import planet.PlanetTerrain;
 import player.Camera;
 import player.Player;
 import scene.DirLight;
@@ -55,7 +57,6 @@ import util.FontUtils;
 import util.Mat4;
 import util.MathUtils;
 import util.NetworkingUtils;
-import util.NoiseGenerator;
 import util.Pair;
 import util.Vec3;
 import util.Vec4;
@@ -91,6 +92,7 @@ public class GameState extends State {
 
 	private Planet planet;
 	private float planetRadius = 20f;
+	private long planetSeed = 727; //the first planet is always the same one, so its meshes can come from the cache
 
 	public GameState(StateManager sm) {
 		super(sm);
@@ -114,7 +116,7 @@ public class GameState extends State {
 		this.clearScene(WORLD_SCENE);
 		Light.addLight(WORLD_SCENE, new DirLight(new Vec3(0.3f, -1f, -0.5f), new Vec3(0.8f), 0f));
 		Scene.skyboxes.put(WORLD_SCENE, AssetManager.getSkybox("stars_skybox"));
-		player = new Player(new Vec3(0), WORLD_SCENE);
+		player = new Player(new Vec3(0, this.planetRadius * (1 + PlanetTerrain.MAX_HEIGHT), 0), WORLD_SCENE); //above the highest point of the planet
 
 		this.generatePlanet();
 
@@ -134,10 +136,10 @@ public class GameState extends State {
 			this.planet.kill();
 		}
 
-		this.planet = new Planet();
+		this.planet = new Planet(this.planetSeed);
 		long planetID = this.planet.addInstance(new Vec3(0, 0, 0), this.planetRadius, WORLD_SCENE);
 		Model.updateInstance(planetID, new Material(new Vec3(1), new Vec3(1), 8f));
-		NoiseGenerator.randomizeNoise();
+		Model.activateCollisionMesh(planetID);
 	}
 
 	private void togglePauseMenu() {
@@ -190,6 +192,7 @@ public class GameState extends State {
 		Entity.updateEntities();
 		Model.updateModels();
 		updateCamera();
+		this.planet.update(this.perspectiveScreen.getCamera().getPos());
 
 		// -- AUDIO --
 		Sound.cullAllStoppedSources();
@@ -270,6 +273,7 @@ public class GameState extends State {
 			break;
 
 		case GLFW_KEY_G:
+			this.planetSeed = ThreadLocalRandom.current().nextLong();
 			this.generatePlanet();
 			break;
 		}
@@ -0,0 +1,58 @@
+package util;
+
+public class Frustum {
+
+	// the six planes bounding what a camera can see, taken straight from its combined projection and view matrix.
+	// each plane is a, b, c, d with the normal a, b, c pointing into the frustum, so a point is inside when
+	// a * x + b * y + c * z + d >= 0 for every plane.
+
+	// the far plane doubles as the distance cull, nothing further away than the camera's far distance passes.
+
+	private float[] planes = new float[6 * 4]; // left, right, bottom, top, near, far
+
+	/**
+	 * Takes the matrix that goes from world space to clip space, so projection * view. With Mat4.mul(), that's
+	 * view.mul(projection).
+	 *
+	 * @param viewProjection
+	 */
+	public Frustum(Mat4 viewProjection) {
+		this.set(viewProjection);
+	}
+
+	public void set(Mat4 viewProjection) {
+		float[][] m = viewProjection.mat;
+		// a point is inside when -w <= x, y, z <= w, each side of that is one plane
+		for (int i = 0; i < 3; i++) {
+			this.setPlane(i * 2 + 0, m[3][0] + m[i][0], m[3][1] + m[i][1], m[3][2] + m[i][2], m[3][3] + m[i][3]);
+			this.setPlane(i * 2 + 1, m[3][0] - m[i][0], m[3][1] - m[i][1], m[3][2] - m[i][2], m[3][3] - m[i][3]);
+		}
+	}
+
+	private void setPlane(int plane, float a, float b, float c, float d) {
+		float length = (float) Math.sqrt(a * a + b * b + c * c);
+		if (length == 0) {
+			length = 1;
+		}
+		int o = plane * 4;
+		this.planes[o + 0] = a / length;
+		this.planes[o + 1] = b / length;
+		this.planes[o + 2] = c / length;
+		this.planes[o + 3] = d / length;
+	}
+
+	// conservative, it can say a sphere near a corner of the frustum intersects it when it doesn't.
+	public boolean intersectsSphere(float x, float y, float z, float radius) {
+		for (int o = 0; o < this.planes.length; o += 4) {
+			if (this.planes[o + 0] * x + this.planes[o + 1] * y + this.planes[o + 2] * z + this.planes[o + 3] < -radius) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean intersectsSphere(Vec3 center, float radius) {
+		return this.intersectsSphere(center.x, center.y, center.z, radius);
+	}
+
+}
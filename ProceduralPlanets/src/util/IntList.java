@@ -0,0 +1,53 @@
+package util;
+
+import java.util.Arrays;
+
+public class IntList {
+
+	// growable array of primitive ints, so hot loops don't have to box into an ArrayList<Integer>.
+	// clear() keeps the backing array around, so one list can be reused across many queries.
+
+	private int[] data;
+	private int size;
+
+	public IntList() {
+		this(16);
+	}
+
+	public IntList(int capacity) {
+		this.data = new int[Math.max(1, capacity)];
+		this.size = 0;
+	}
+
+	public void add(int val) {
+		if (this.size == this.data.length) {
+			this.data = Arrays.copyOf(this.data, this.data.length * 2);
+		}
+		this.data[this.size++] = val;
+	}
+
+	public int get(int index) {
+		return this.data[index];
+	}
+
+	public void set(int index, int val) {
+		this.data[index] = val;
+	}
+
+	public int removeLast() {
+		return this.data[--this.size];
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public void clear() {
+		this.size = 0;
+	}
+
+	public int[] toArray() {
+		return Arrays.copyOf(this.data, this.size);
+	}
+
+}
@@ -45,6 +45,78 @@ public class Mat4 {
 		return this;
 	}
 
+	/**
+	 * Returns a new matrix equal to the inverse of this one, or null if this matrix is singular.
+	 *
+	 * @return
+	 */
+	public Mat4 inverse() {
+		Mat4 result = new Mat4();
+		if (!this.inverse(result)) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the inverse of this matrix into result, so callers can reuse a matrix instead of allocating one. 
+	 * Returns false, and leaves result untouched, if this matrix is singular. Result may be this matrix.
+	 *
+	 * @param result
+	 * @return
+	 */
+	public boolean inverse(Mat4 result) {
+		// plain locals rather than arrays, so this doesn't allocate
+		float[][] a = this.mat;
+		float m00 = a[0][0], m01 = a[0][1], m02 = a[0][2], m03 = a[0][3];
+		float m10 = a[1][0], m11 = a[1][1], m12 = a[1][2], m13 = a[1][3];
+		float m20 = a[2][0], m21 = a[2][1], m22 = a[2][2], m23 = a[2][3];
+		float m30 = a[3][0], m31 = a[3][1], m32 = a[3][2], m33 = a[3][3];
+
+		// cofactor expansion. Works on the flattened matrix regardless of row or column ordering,
+		// since the inverse of the transpose is the transpose of the inverse.
+		float i00 = m11 * m22 * m33 - m11 * m23 * m32 - m21 * m12 * m33 + m21 * m13 * m32 + m31 * m12 * m23 - m31 * m13 * m22;
+		float i10 = -m10 * m22 * m33 + m10 * m23 * m32 + m20 * m12 * m33 - m20 * m13 * m32 - m30 * m12 * m23 + m30 * m13 * m22;
+		float i20 = m10 * m21 * m33 - m10 * m23 * m31 - m20 * m11 * m33 + m20 * m13 * m31 + m30 * m11 * m23 - m30 * m13 * m21;
+		float i30 = -m10 * m21 * m32 + m10 * m22 * m31 + m20 * m11 * m32 - m20 * m12 * m31 - m30 * m11 * m22 + m30 * m12 * m21;
+		float i01 = -m01 * m22 * m33 + m01 * m23 * m32 + m21 * m02 * m33 - m21 * m03 * m32 - m31 * m02 * m23 + m31 * m03 * m22;
+		float i11 = m00 * m22 * m33 - m00 * m23 * m32 - m20 * m02 * m33 + m20 * m03 * m32 + m30 * m02 * m23 - m30 * m03 * m22;
+		float i21 = -m00 * m21 * m33 + m00 * m23 * m31 + m20 * m01 * m33 - m20 * m03 * m31 - m30 * m01 * m23 + m30 * m03 * m21;
+		float i31 = m00 * m21 * m32 - m00 * m22 * m31 - m20 * m01 * m32 + m20 * m02 * m31 + m30 * m01 * m22 - m30 * m02 * m21;
+		float i02 = m01 * m12 * m33 - m01 * m13 * m32 - m11 * m02 * m33 + m11 * m03 * m32 + m31 * m02 * m13 - m31 * m03 * m12;
+		float i12 = -m00 * m12 * m33 + m00 * m13 * m32 + m10 * m02 * m33 - m10 * m03 * m32 - m30 * m02 * m13 + m30 * m03 * m12;
+		float i22 = m00 * m11 * m33 - m00 * m13 * m31 - m10 * m01 * m33 + m10 * m03 * m31 + m30 * m01 * m13 - m30 * m03 * m11;
+		float i32 = -m00 * m11 * m32 + m00 * m12 * m31 + m10 * m01 * m32 - m10 * m02 * m31 - m30 * m01 * m12 + m30 * m02 * m11;
+		float i03 = -m01 * m12 * m23 + m01 * m13 * m22 + m11 * m02 * m23 - m11 * m03 * m22 - m21 * m02 * m13 + m21 * m03 * m12;
+		float i13 = m00 * m12 * m23 - m00 * m13 * m22 - m10 * m02 * m23 + m10 * m03 * m22 + m20 * m02 * m13 - m20 * m03 * m12;
+		float i23 = -m00 * m11 * m23 + m00 * m13 * m21 + m10 * m01 * m23 - m10 * m03 * m21 - m20 * m01 * m13 + m20 * m03 * m11;
+		float i33 = m00 * m11 * m22 - m00 * m12 * m21 - m10 * m01 * m22 + m10 * m02 * m21 + m20 * m01 * m12 - m20 * m02 * m11;
+
+		float det = m00 * i00 + m01 * i10 + m02 * i20 + m03 * i30;
+		if (det == 0) {
+			return false;
+		}
+
+		float invDet = 1f / det;
+		result.mat[0][0] = i00 * invDet;
+		result.mat[0][1] = i01 * invDet;
+		result.mat[0][2] = i02 * invDet;
+		result.mat[0][3] = i03 * invDet;
+		result.mat[1][0] = i10 * invDet;
+		result.mat[1][1] = i11 * invDet;
+		result.mat[1][2] = i12 * invDet;
+		result.mat[1][3] = i13 * invDet;
+		result.mat[2][0] = i20 * invDet;
+		result.mat[2][1] = i21 * invDet;
+		result.mat[2][2] = i22 * invDet;
+		result.mat[2][3] = i23 * invDet;
+		result.mat[3][0] = i30 * invDet;
+		result.mat[3][1] = i31 * invDet;
+		result.mat[3][2] = i32 * invDet;
+		result.mat[3][3] = i33 * invDet;
+		return true;
+	}
+
 	public static Mat4 identity() {
 		Mat4 result = new Mat4();
 
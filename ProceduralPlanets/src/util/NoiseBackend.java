@@ -0,0 +1,43 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public abstract class NoiseBackend {
+
+	//a single octave of 3d gradient noise. NoiseGenerator layers the octaves on top, so a backend only has to
+	//know how to sample one. Backends must not change after they're constructed, since they're sampled from many threads at once.
+
+	//noise at (x, y, z), in about [-1, 1]
+	public abstract double noise(double x, double y, double z);
+
+	//adds amplitude * noise(xs[i] * frequency, ys[i] * frequency, zs[i] * frequency) to out[i] for every i in [0, count).
+	//this is where batches spend their time, so it should be written in float with long, branch free loops.
+	public abstract void addNoise(float[] xs, float[] ys, float[] zs, float[] out, int count, float frequency, float amplitude);
+
+	//the reference permutation shuffled with the given seed, repeated twice so corner hashes don't need wrapping
+	protected static int[] createPermutation(long seed) {
+		int[] perm = Arrays.copyOf(PERMUTATION, PERMUTATION.length);
+		Random random = new Random(seed);
+		for (int i = perm.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = tmp;
+		}
+
+		int[] p = new int[512];
+		for (int i = 0; i < 256; i++) {
+			p[256 + i] = p[i] = perm[i];
+		}
+		return p;
+	}
+
+	//reference permutation that the seeds shuffle, from ken perlin's reference implementation
+	private static final int[] PERMUTATION = { 151, 160, 137, 91, 90, 15, 131, 13, 201, 95, 96, 53, 194, 233, 7, 225, 140, 36, 103, 30, 69, 142, 8, 99, 37, 240, 21, 10, 23, 190, 6, 148, 247, 120, 234, 75, 0, 26, 197, 62, 94, 252, 219, 203, 117, 35, 11, 32, 57, 177, 33, 88, 237, 149, 56,
+			87, 174, 20, 125, 136, 171, 168, 68, 175, 74, 165, 71, 134, 139, 48, 27, 166, 77, 146, 158, 231, 83, 111, 229, 122, 60, 211, 133, 230, 220, 105, 92, 41, 55, 46, 245, 40, 244, 102, 143, 54, 65, 25, 63, 161, 1, 216, 80, 73, 209, 76, 132, 187, 208, 89, 18, 169, 200, 196, 135, 130, 116, 188,
+			159, 86, 164, 100, 109, 198, 173, 186, 3, 64, 52, 217, 226, 250, 124, 123, 5, 202, 38, 147, 118, 126, 255, 82, 85, 212, 207, 206, 59, 227, 47, 16, 58, 17, 182, 189, 28, 42, 223, 183, 170, 213, 119, 248, 152, 2, 44, 154, 163, 70, 221, 153, 101, 155, 167, 43, 172, 9, 129, 22, 39, 253, 19,
+			98, 108, 110, 79, 113, 224, 232, 178, 185, 112, 104, 218, 246, 97, 228, 251, 34, 242, 193, 238, 210, 144, 12, 191, 179, 162, 241, 81, 51, 145, 235, 249, 14, 239, 107, 49, 192, 214, 31, 181, 199, 106, 157, 184, 84, 204, 176, 115, 121, 50, 45, 127, 4, 150, 254, 138, 236, 205, 93, 222, 114,
+			67, 29, 24, 72, 243, 141, 128, 195, 78, 66, 215, 61, 156, 180 };
+
+}
@@ -1,9 +1,6 @@
 package util;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.Random;
 
 public class NoiseGenerator {
 
@@ -14,91 +11,118 @@ public class NoiseGenerator {
 
 	//octaves : integer value giving the number of layers of noise. 
 
-	public static int seed = 727;
+	//a generator is immutable once it's created, so any number of threads can sample the same one at once,
+	//and two generators made from the same seed and backend always give the same noise.
+	//the static methods sample the default generator, which randomizeNoise() replaces instead of changing.
 
-	public static double noise(double x, double y, double z, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
+	//backends
+	public static final int PERLIN = 0; //8 corners per sample
+	public static final int SIMPLEX = 1; //4 corners per sample, cheaper, and without the grid aligned artifacts
+
+	public static final long DEFAULT_SEED = 727;
+
+	private static volatile NoiseGenerator defaultGenerator = new NoiseGenerator(DEFAULT_SEED);
+
+	private final long seed;
+	private final int type;
+	private final NoiseBackend backend;
+
+	public NoiseGenerator(long seed) {
+		this(seed, PERLIN);
+	}
+
+	public NoiseGenerator(long seed, int type) {
+		this.seed = seed;
+		this.type = type;
+		switch (type) {
+		case SIMPLEX:
+			this.backend = new SimplexNoise(seed);
+			break;
+		default:
+			if (type != PERLIN) {
+				System.err.println("Unknown noise type " + type + ", using perlin");
+			}
+			this.backend = new PerlinNoise(seed);
+			break;
+		}
+	}
+
+	public long getSeed() {
+		return this.seed;
+	}
+
+	public int getType() {
+		return this.type;
+	}
+
+	public static NoiseGenerator getDefault() {
+		return defaultGenerator;
+	}
+
+	public double sample(double x, double y, double z, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
 		assert octaves >= 1 : "Octaves must be greater than or equal to 1";
 
 		double ans = 0;
 		for (int i = 0; i < octaves; i++) {
-			ans += _noise(x * frequency, y * frequency, z * frequency) * amplitude;
+			ans += this.backend.noise(x * frequency, y * frequency, z * frequency) * amplitude;
 			amplitude *= persistence;
 			frequency *= lacunarity;
 		}
 		return ans;
 	}
 
+	public double sample(double x, double y, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
+		return this.sample(x, y, 0, frequency, amplitude, persistence, lacunarity, octaves);
+	}
+
+	public double sample(double x, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
+		return this.sample(x, 0, 0, frequency, amplitude, persistence, lacunarity, octaves);
+	}
+
+	public double sample(Vec3 v, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
+		return this.sample(v.x, v.y, v.z, frequency, amplitude, persistence, lacunarity, octaves);
+	}
+
+	//batch version, for when lots of points need the same noise.
+	//writes the noise at (xs[i], ys[i], zs[i]) into out[i] for every i in [0, count).
+	//everything is in float, and instead of running every octave per point, every point is run per octave, so the
+	//backends get long loops that the jit can vectorize.
+	public void sample(float[] xs, float[] ys, float[] zs, float[] out, int count, float frequency, float amplitude, float persistence, float lacunarity, int octaves) {
+		assert octaves >= 1 : "Octaves must be greater than or equal to 1";
+
+		for (int i = 0; i < count; i++) {
+			out[i] = 0;
+		}
+		for (int i = 0; i < octaves; i++) {
+			this.backend.addNoise(xs, ys, zs, out, count, frequency, amplitude);
+			amplitude *= persistence;
+			frequency *= lacunarity;
+		}
+	}
+
+	public static double noise(double x, double y, double z, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
+		return defaultGenerator.sample(x, y, z, frequency, amplitude, persistence, lacunarity, octaves);
+	}
+
 	public static double noise(double x, double y, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
-		return noise(x, y, 0, frequency, amplitude, persistence, lacunarity, octaves);
+		return defaultGenerator.sample(x, y, frequency, amplitude, persistence, lacunarity, octaves);
 	}
 
 	public static double noise(double x, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
-		return noise(x, 0, 0, frequency, amplitude, persistence, lacunarity, octaves);
+		return defaultGenerator.sample(x, frequency, amplitude, persistence, lacunarity, octaves);
 	}
 
 	public static double noise(Vec3 v, double frequency, double amplitude, double persistence, double lacunarity, int octaves) {
-		return noise(v.x, v.y, v.z, frequency, amplitude, persistence, lacunarity, octaves);
-	}
-
-	private static double _noise(double x, double y, double z) {
-		int X = (int) Math.floor(x) & 255, // FIND UNIT CUBE THAT
-				Y = (int) Math.floor(y) & 255, // CONTAINS POINT.
-				Z = (int) Math.floor(z) & 255;
-		x -= Math.floor(x); // FIND RELATIVE X,Y,Z
-		y -= Math.floor(y); // OF POINT IN CUBE.
-		z -= Math.floor(z);
-		double u = fade(x), // COMPUTE FADE CURVES
-				v = fade(y), // FOR EACH OF X,Y,Z.
-				w = fade(z);
-		int A = p[X] + Y, AA = p[A] + Z, AB = p[A + 1] + Z, // HASH COORDINATES OF
-				B = p[X + 1] + Y, BA = p[B] + Z, BB = p[B + 1] + Z; // THE 8 CUBE CORNERS,
-
-		return lerp(w, lerp(v, lerp(u, grad(p[AA], x, y, z), // AND ADD
-				grad(p[BA], x - 1, y, z)), // BLENDED
-				lerp(u, grad(p[AB], x, y - 1, z), // RESULTS
-						grad(p[BB], x - 1, y - 1, z))), // FROM  8
-				lerp(v, lerp(u, grad(p[AA + 1], x, y, z - 1), // CORNERS
-						grad(p[BA + 1], x - 1, y, z - 1)), // OF CUBE
-						lerp(u, grad(p[AB + 1], x, y - 1, z - 1), grad(p[BB + 1], x - 1, y - 1, z - 1))));
-	}
-
-	private static double fade(double t) {
-		return t * t * t * (t * (t * 6 - 15) + 10);
-	}
-
-	private static double lerp(double t, double a, double b) {
-		return a + t * (b - a);
-	}
-
-	private static double grad(int hash, double x, double y, double z) {
-		int h = hash & 15; // CONVERT LO 4 BITS OF HASH CODE
-		double u = h < 8 ? x : y, // INTO 12 GRADIENT DIRECTIONS.
-				v = h < 4 ? y : h == 12 || h == 14 ? x : z;
-		return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
-	}
-
-	static final int p[] = new int[512], permutation[] = { 151, 160, 137, 91, 90, 15, 131, 13, 201, 95, 96, 53, 194, 233, 7, 225, 140, 36, 103, 30, 69, 142, 8, 99, 37, 240, 21, 10, 23, 190, 6, 148, 247, 120, 234, 75, 0, 26, 197, 62, 94, 252, 219, 203, 117, 35, 11, 32, 57, 177, 33, 88, 237, 149, 56,
-			87, 174, 20, 125, 136, 171, 168, 68, 175, 74, 165, 71, 134, 139, 48, 27, 166, 77, 146, 158, 231, 83, 111, 229, 122, 60, 211, 133, 230, 220, 105, 92, 41, 55, 46, 245, 40, 244, 102, 143, 54, 65, 25, 63, 161, 1, 216, 80, 73, 209, 76, 132, 187, 208, 89, 18, 169, 200, 196, 135, 130, 116, 188,
-			159, 86, 164, 100, 109, 198, 173, 186, 3, 64, 52, 217, 226, 250, 124, 123, 5, 202, 38, 147, 118, 126, 255, 82, 85, 212, 207, 206, 59, 227, 47, 16, 58, 17, 182, 189, 28, 42, 223, 183, 170, 213, 119, 248, 152, 2, 44, 154, 163, 70, 221, 153, 101, 155, 167, 43, 172, 9, 129, 22, 39, 253, 19,
-			98, 108, 110, 79, 113, 224, 232, 178, 185, 112, 104, 218, 246, 97, 228, 251, 34, 242, 193, 238, 210, 144, 12, 191, 179, 162, 241, 81, 51, 145, 235, 249, 14, 239, 107, 49, 192, 214, 31, 181, 199, 106, 157, 184, 84, 204, 176, 115, 121, 50, 45, 127, 4, 150, 254, 138, 236, 205, 93, 222, 114,
-			67, 29, 24, 72, 243, 141, 128, 195, 78, 66, 215, 61, 156, 180 };
-	static {
-		for (int i = 0; i < 256; i++) {
-			p[256 + i] = p[i] = permutation[i];
-		}
+		return defaultGenerator.sample(v, frequency, amplitude, persistence, lacunarity, octaves);
 	}
 
+	public static void noise(float[] xs, float[] ys, float[] zs, float[] out, int count, float frequency, float amplitude, float persistence, float lacunarity, int octaves) {
+		defaultGenerator.sample(xs, ys, zs, out, count, frequency, amplitude, persistence, lacunarity, octaves);
+	}
+
+	//replaces the default generator with a randomly seeded one.
+	//anything still sampling the old one keeps getting consistent noise.
 	public static void randomizeNoise() {
-		ArrayList<Integer> list = new ArrayList<>();
-		for (int i = 0; i < permutation.length; i++) {
-			list.add(permutation[i]);
-		}
-		Collections.shuffle(list);
-		for (int i = 0; i < permutation.length; i++) {
-			permutation[i] = list.get(i);
-		}
-		for (int i = 0; i < 256; i++) {
-			p[256 + i] = p[i] = permutation[i];
-		}
+		defaultGenerator = new NoiseGenerator(new Random().nextLong());
 	}
-}
\ No newline at end of file
+}
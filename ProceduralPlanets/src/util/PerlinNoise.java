@@ -0,0 +1,122 @@
+package util;
+
+public class PerlinNoise extends NoiseBackend {
+
+	//ken perlin's improved noise. Every sample blends the gradients of the 8 corners of the unit cube it's in.
+
+	private final int[] p;
+
+	public PerlinNoise(long seed) {
+		this.p = createPermutation(seed);
+	}
+
+	@Override
+	public double noise(double x, double y, double z) {
+		int X = (int) Math.floor(x) & 255, // FIND UNIT CUBE THAT
+				Y = (int) Math.floor(y) & 255, // CONTAINS POINT.
+				Z = (int) Math.floor(z) & 255;
+		x -= Math.floor(x); // FIND RELATIVE X,Y,Z
+		y -= Math.floor(y); // OF POINT IN CUBE.
+		z -= Math.floor(z);
+		double u = fade(x), // COMPUTE FADE CURVES
+				v = fade(y), // FOR EACH OF X,Y,Z.
+				w = fade(z);
+		int A = p[X] + Y, AA = p[A] + Z, AB = p[A + 1] + Z, // HASH COORDINATES OF
+				B = p[X + 1] + Y, BA = p[B] + Z, BB = p[B + 1] + Z; // THE 8 CUBE CORNERS,
+
+		return lerp(w, lerp(v, lerp(u, grad(p[AA], x, y, z), // AND ADD
+				grad(p[BA], x - 1, y, z)), // BLENDED
+				lerp(u, grad(p[AB], x, y - 1, z), // RESULTS
+						grad(p[BB], x - 1, y - 1, z))), // FROM  8
+				lerp(v, lerp(u, grad(p[AA + 1], x, y, z - 1), // CORNERS
+						grad(p[BA + 1], x - 1, y, z - 1)), // OF CUBE
+						lerp(u, grad(p[AB + 1], x, y - 1, z - 1), grad(p[BB + 1], x - 1, y - 1, z - 1))));
+	}
+
+	private static double fade(double t) {
+		return t * t * t * (t * (t * 6 - 15) + 10);
+	}
+
+	private static double lerp(double t, double a, double b) {
+		return a + t * (b - a);
+	}
+
+	private static double grad(int hash, double x, double y, double z) {
+		int h = hash & 15; // CONVERT LO 4 BITS OF HASH CODE
+		double u = h < 8 ? x : y, // INTO 12 GRADIENT DIRECTIONS.
+				v = h < 4 ? y : h == 12 || h == 14 ? x : z;
+		return ((h & 1) == 0 ? u : -u) + ((h & 2) == 0 ? v : -v);
+	}
+
+	private static float lerp(float t, float a, float b) {
+		return a + t * (b - a);
+	}
+
+	//same 12 gradient directions as the double version, but looked up, since the branches there can't be predicted
+	private static final float[] GRAD_X = { 1, -1, 1, -1, 1, -1, 1, -1, 0, 0, 0, 0, 1, 0, -1, 0 };
+	private static final float[] GRAD_Y = { 1, 1, -1, -1, 0, 0, 0, 0, 1, -1, 1, -1, 1, -1, 1, -1 };
+	private static final float[] GRAD_Z = { 0, 0, 0, 0, 1, 1, -1, -1, 1, 1, -1, -1, 0, 1, 0, -1 };
+
+	private static float grad(int hash, float x, float y, float z) {
+		int h = hash & 15;
+		return GRAD_X[h] * x + GRAD_Y[h] * y + GRAD_Z[h] * z;
+	}
+
+	//the first pass is pure arithmetic, so the jit can vectorize it. The second pass needs the permutation table,
+	//and its lookups are gathers, so it stays scalar.
+	@Override
+	public void addNoise(float[] xs, float[] ys, float[] zs, float[] out, int count, float frequency, float amplitude) {
+		int[] cells = new int[count * 3];
+		float[] fractions = new float[count * 3];
+		float[] fades = new float[count * 3];
+
+		//unit cube, position in cube, and fade curves of every point
+		for (int i = 0; i < count; i++) {
+			float x = xs[i] * frequency;
+			float y = ys[i] * frequency;
+			float z = zs[i] * frequency;
+			int ix = (int) x;
+			int iy = (int) y;
+			int iz = (int) z;
+			ix -= x < ix ? 1 : 0;
+			iy -= y < iy ? 1 : 0;
+			iz -= z < iz ? 1 : 0;
+			cells[i * 3 + 0] = ix & 255;
+			cells[i * 3 + 1] = iy & 255;
+			cells[i * 3 + 2] = iz & 255;
+			x -= ix;
+			y -= iy;
+			z -= iz;
+			fractions[i * 3 + 0] = x;
+			fractions[i * 3 + 1] = y;
+			fractions[i * 3 + 2] = z;
+			fades[i * 3 + 0] = x * x * x * (x * (x * 6 - 15) + 10);
+			fades[i * 3 + 1] = y * y * y * (y * (y * 6 - 15) + 10);
+			fades[i * 3 + 2] = z * z * z * (z * (z * 6 - 15) + 10);
+		}
+
+		//hash the corners and blend the gradients
+		int[] p = this.p;
+		for (int i = 0; i < count; i++) {
+			int X = cells[i * 3 + 0];
+			int Y = cells[i * 3 + 1];
+			int Z = cells[i * 3 + 2];
+			float x = fractions[i * 3 + 0];
+			float y = fractions[i * 3 + 1];
+			float z = fractions[i * 3 + 2];
+			float u = fades[i * 3 + 0];
+			float v = fades[i * 3 + 1];
+			float w = fades[i * 3 + 2];
+
+			int A = p[X] + Y, AA = p[A] + Z, AB = p[A + 1] + Z;
+			int B = p[X + 1] + Y, BA = p[B] + Z, BB = p[B + 1] + Z;
+
+			float x0 = lerp(u, grad(p[AA], x, y, z), grad(p[BA], x - 1, y, z));
+			float x1 = lerp(u, grad(p[AB], x, y - 1, z), grad(p[BB], x - 1, y - 1, z));
+			float x2 = lerp(u, grad(p[AA + 1], x, y, z - 1), grad(p[BA + 1], x - 1, y, z - 1));
+			float x3 = lerp(u, grad(p[AB + 1], x, y - 1, z - 1), grad(p[BB + 1], x - 1, y - 1, z - 1));
+			out[i] += lerp(w, lerp(v, x0, x1), lerp(v, x2, x3)) * amplitude;
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SPSCQueue<T> {
+
+	// bounded lock free queue for handing things from exactly one producer thread to exactly one consumer thread.
+	// it's a ring buffer, the producer only ever moves the tail, and the consumer only ever moves the head, so neither
+	// has to wait on the other. Moving them with lazySet() publishes the element written before it.
+
+	private final Object[] buffer;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong(0); // next element to poll, only written by the consumer
+	private final AtomicLong tail = new AtomicLong(0); // next element to offer, only written by the producer
+
+	// capacity gets rounded up to a power of 2
+	public SPSCQueue(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.buffer = new Object[size];
+		this.mask = size - 1;
+	}
+
+	// producer only. Returns false if the queue is full
+	public boolean offer(T e) {
+		long t = this.tail.get();
+		if (t - this.head.get() == this.buffer.length) {
+			return false;
+		}
+		this.buffer[(int) t & this.mask] = e;
+		this.tail.lazySet(t + 1);
+		return true;
+	}
+
+	// consumer only. Returns null if the queue is empty
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long h = this.head.get();
+		if (h == this.tail.get()) {
+			return null;
+		}
+		int i = (int) h & this.mask;
+		T e = (T) this.buffer[i];
+		this.buffer[i] = null;
+		this.head.lazySet(h + 1);
+		return e;
+	}
+
+	public boolean isEmpty() {
+		return this.head.get() == this.tail.get();
+	}
+
+	public int size() {
+		return (int) (this.tail.get() - this.head.get());
+	}
+
+	public int capacity() {
+		return this.buffer.length;
+	}
+
+}
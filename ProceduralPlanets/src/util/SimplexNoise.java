@@ -0,0 +1,131 @@
+package util;
+
+public class SimplexNoise extends NoiseBackend {
+
+	//3d simplex noise, after stefan gustavson's "simplex noise demystified".
+	//space is skewed so that it's tiled by tetrahedrons instead of cubes, so every sample only blends the 4 corners
+	//of the tetrahedron it's in, instead of the 8 corners of a cube.
+
+	private static final float F3 = 1f / 3f; //skews a point into simplex cell space
+	private static final float G3 = 1f / 6f; //unskews it back
+
+	//the 12 edge midpoints of a cube
+	private static final float[] GRAD_X = { 1, -1, 1, -1, 1, -1, 1, -1, 0, 0, 0, 0 };
+	private static final float[] GRAD_Y = { 1, 1, -1, -1, 0, 0, 0, 0, 1, -1, 1, -1 };
+	private static final float[] GRAD_Z = { 0, 0, 0, 0, 1, 1, -1, -1, 1, 1, -1, -1 };
+
+	private final int[] p;
+	private final int[] pMod12;
+
+	public SimplexNoise(long seed) {
+		this.p = createPermutation(seed);
+		this.pMod12 = new int[this.p.length];
+		for (int i = 0; i < this.p.length; i++) {
+			this.pMod12[i] = this.p[i] % 12;
+		}
+	}
+
+	@Override
+	public double noise(double x, double y, double z) {
+		//find the cell, and the first corner of the simplex
+		double s = (x + y + z) * F3;
+		int i = fastFloor(x + s);
+		int j = fastFloor(y + s);
+		int k = fastFloor(z + s);
+		double t = (i + j + k) * G3;
+		double x0 = x - (i - t);
+		double y0 = y - (j - t);
+		double z0 = z - (k - t);
+
+		//the order of the coordinates picks which of the 6 simplices in the cell the point is in,
+		//and the offsets of its second and third corners
+		int xy = x0 >= y0 ? 1 : 0;
+		int yz = y0 >= z0 ? 1 : 0;
+		int xz = x0 >= z0 ? 1 : 0;
+		int i1 = xy & xz, j1 = (1 - xy) & yz, k1 = (1 - yz) & (1 - xz);
+		int i2 = xy | xz, j2 = (1 - xy) | yz, k2 = (1 - yz) | (1 - xz);
+
+		double x1 = x0 - i1 + G3, y1 = y0 - j1 + G3, z1 = z0 - k1 + G3;
+		double x2 = x0 - i2 + 2 * G3, y2 = y0 - j2 + 2 * G3, z2 = z0 - k2 + 2 * G3;
+		double x3 = x0 - 1 + 3 * G3, y3 = y0 - 1 + 3 * G3, z3 = z0 - 1 + 3 * G3;
+
+		int ii = i & 255, jj = j & 255, kk = k & 255;
+		int g0 = this.pMod12[ii + this.p[jj + this.p[kk]]];
+		int g1 = this.pMod12[ii + i1 + this.p[jj + j1 + this.p[kk + k1]]];
+		int g2 = this.pMod12[ii + i2 + this.p[jj + j2 + this.p[kk + k2]]];
+		int g3 = this.pMod12[ii + 1 + this.p[jj + 1 + this.p[kk + 1]]];
+
+		double n = corner(g0, x0, y0, z0) + corner(g1, x1, y1, z1) + corner(g2, x2, y2, z2) + corner(g3, x3, y3, z3);
+
+		//scale to about [-1, 1]
+		return 32 * n;
+	}
+
+	private static double corner(int g, double x, double y, double z) {
+		double t = 0.6 - x * x - y * y - z * z;
+		if (t < 0) {
+			return 0;
+		}
+		t *= t;
+		return t * t * (GRAD_X[g] * x + GRAD_Y[g] * y + GRAD_Z[g] * z);
+	}
+
+	//same as noise(), in float. The skewing and corner ordering is done with comparisons instead of branches,
+	//so the only thing keeping the loop from vectorizing is the permutation lookups.
+	@Override
+	public void addNoise(float[] xs, float[] ys, float[] zs, float[] out, int count, float frequency, float amplitude) {
+		int[] p = this.p;
+		int[] pMod12 = this.pMod12;
+		float scale = 32 * amplitude;
+		for (int n = 0; n < count; n++) {
+			float x = xs[n] * frequency;
+			float y = ys[n] * frequency;
+			float z = zs[n] * frequency;
+
+			float s = (x + y + z) * F3;
+			int i = fastFloor(x + s);
+			int j = fastFloor(y + s);
+			int k = fastFloor(z + s);
+			float t = (i + j + k) * G3;
+			float x0 = x - (i - t);
+			float y0 = y - (j - t);
+			float z0 = z - (k - t);
+
+			int xy = x0 >= y0 ? 1 : 0;
+			int yz = y0 >= z0 ? 1 : 0;
+			int xz = x0 >= z0 ? 1 : 0;
+			int i1 = xy & xz, j1 = (1 - xy) & yz, k1 = (1 - yz) & (1 - xz);
+			int i2 = xy | xz, j2 = (1 - xy) | yz, k2 = (1 - yz) | (1 - xz);
+
+			float x1 = x0 - i1 + G3, y1 = y0 - j1 + G3, z1 = z0 - k1 + G3;
+			float x2 = x0 - i2 + 2 * G3, y2 = y0 - j2 + 2 * G3, z2 = z0 - k2 + 2 * G3;
+			float x3 = x0 - 1 + 3 * G3, y3 = y0 - 1 + 3 * G3, z3 = z0 - 1 + 3 * G3;
+
+			int ii = i & 255, jj = j & 255, kk = k & 255;
+			int g0 = pMod12[ii + p[jj + p[kk]]];
+			int g1 = pMod12[ii + i1 + p[jj + j1 + p[kk + k1]]];
+			int g2 = pMod12[ii + i2 + p[jj + j2 + p[kk + k2]]];
+			int g3 = pMod12[ii + 1 + p[jj + 1 + p[kk + 1]]];
+
+			float sum = corner(g0, x0, y0, z0) + corner(g1, x1, y1, z1) + corner(g2, x2, y2, z2) + corner(g3, x3, y3, z3);
+			out[n] += sum * scale;
+		}
+	}
+
+	private static float corner(int g, float x, float y, float z) {
+		float t = Math.max(0, 0.6f - x * x - y * y - z * z);
+		t *= t;
+		return t * t * (GRAD_X[g] * x + GRAD_Y[g] * y + GRAD_Z[g] * z);
+	}
+
+	private static int fastFloor(double x) {
+		int i = (int) x;
+		return x < i ? i - 1 : i;
+	}
+
+	private static int fastFloor(float x) {
+		int i = (int) x;
+		return x < i ? i - 1 : i;
+	}
+
+}